@@ -2,10 +2,18 @@ package pl.nn44.xmlrpc.client;
 
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
 import org.apache.xmlrpc.client.XmlRpcSun15HttpTransport;
 import org.apache.xmlrpc.common.XmlRpcInvocationException;
 import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import pl.nn44.xmlrpc.common.XmlReaderPool;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -35,13 +43,20 @@ public class AnyXmlRpcTransport extends XmlRpcSun15HttpTransport {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    // HttpURLConnection buffers request itself and sets Content-Length,
+    // there is no need to buffer it before (default if !enabledForExtensions)
+    @Override
+    protected boolean isUsingByteArrayOutput(XmlRpcHttpClientConfig pConfig) {
+        return false;
+    }
+
     @Override
     protected Object readResponse(XmlRpcStreamRequestConfig pConfig,
                                   InputStream pStream)
             throws XmlRpcException {
 
         try {
-            return super.readResponse(pConfig, pStream);
+            return parseResponse(pConfig, pStream);
 
         } catch (Throwable t) {
             if (faultRevMapper != null && t instanceof XmlRpcException) {
@@ -56,4 +71,42 @@ public class AnyXmlRpcTransport extends XmlRpcSun15HttpTransport {
             throw t;
         }
     }
+
+    // as XmlRpcStreamTransport.readResponse, but with pooled XMLReader
+    protected Object parseResponse(XmlRpcStreamRequestConfig pConfig,
+                                   InputStream pStream)
+            throws XmlRpcException {
+
+        XmlRpcResponseParser parser = new XmlRpcResponseParser(pConfig, getClient().getTypeFactory());
+        XMLReader reader = XmlReaderPool.acquire();
+        reader.setContentHandler(parser);
+
+        try {
+            reader.parse(new InputSource(pStream));
+
+        } catch (SAXException e) {
+            throw new XmlRpcClientException("Failed to parse server's response: " + e.getMessage(), e);
+
+        } catch (IOException e) {
+            throw new XmlRpcClientException("Failed to read server's response: " + e.getMessage(), e);
+        }
+
+        XmlReaderPool.release(reader);
+
+        if (parser.isSuccess()) {
+            return parser.getResult();
+        }
+
+        Throwable cause = parser.getErrorCause();
+        if (cause == null) {
+            throw new XmlRpcException(parser.getErrorCode(), parser.getErrorMessage());
+        }
+        if (cause instanceof XmlRpcException) {
+            throw (XmlRpcException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new XmlRpcException(parser.getErrorCode(), parser.getErrorMessage(), cause);
+    }
 }
@@ -0,0 +1,206 @@
+package pl.nn44.xmlrpc.common;
+
+import org.apache.ws.commons.serialize.XMLWriterImpl;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.serializer.XmlWriterFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * XmlWriterFactory with per-thread char/byte buffers and charset encoders.<br/>
+ * Default factory allocates BufferedWriter, OutputStreamWriter and CharsetEncoder on each call.<br/>
+ * Output is written to stream as buffer fills up, and flushed on endDocument.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class BufferedXmlWriterFactory implements XmlWriterFactory {
+
+    public static final int BUFFER_SIZE = 8192;
+
+    // one document is written at a time by thread (response/request is written before next one is started)
+    private static final ThreadLocal<EncodingWriter> WRITERS = ThreadLocal.withInitial(EncodingWriter::new);
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public ContentHandler getXmlWriter(XmlRpcStreamConfig pConfig, OutputStream pStream) throws XmlRpcException {
+        String encoding = pConfig.getEncoding() != null
+                ? pConfig.getEncoding()
+                : XmlRpcStreamConfig.UTF8_ENCODING;
+
+        EncodingWriter writer = WRITERS.get();
+        try {
+            writer.reset(pStream, encoding);
+        } catch (IllegalArgumentException e) {
+            throw new XmlRpcException("Unsupported encoding: " + encoding, e);
+        }
+
+        XMLWriterImpl xw = new XMLWriterImpl() {
+
+            @Override
+            public boolean canEncode(char c) {
+                return writer.canEncode(c);
+            }
+
+            @Override
+            public void endDocument() throws SAXException {
+                super.endDocument();
+
+                try {
+                    writer.finish();
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+            }
+        };
+
+        xw.setDeclarating(true);
+        xw.setEncoding(encoding);
+        xw.setIndenting(false);
+        xw.setFlushing(true);
+        xw.setWriter(writer);
+        return xw;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class EncodingWriter extends Writer {
+
+        private final char[] chars = new char[BUFFER_SIZE];
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+        private int count = 0;
+
+        private String encoding = null;
+        private CharsetEncoder encoder = null;
+        private CharsetEncoder probe = null; // canEncode() can't be used during encoding
+        private OutputStream out = null;
+
+        void reset(OutputStream out, String encoding) {
+            if (!encoding.equals(this.encoding)) {
+                Charset charset = Charset.forName(encoding);
+
+                this.encoding = encoding;
+                this.encoder = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                this.probe = charset.newEncoder();
+            } else {
+                encoder.reset();
+            }
+
+            this.count = 0;
+            this.bytes.clear();
+            this.out = out;
+        }
+
+        boolean canEncode(char c) {
+            return probe.canEncode(c);
+        }
+
+        // end of document: encoder is flushed, stream is flushed and released
+        void finish() throws IOException {
+            encode(true);
+            out.flush();
+            out = null;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (count == chars.length) {
+                encode(false);
+            }
+            chars[count++] = (char) c;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chars.length) {
+                    encode(false);
+                }
+
+                int n = Math.min(len, chars.length - count);
+                System.arraycopy(cbuf, off, chars, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chars.length) {
+                    encode(false);
+                }
+
+                int n = Math.min(len, chars.length - count);
+                str.getChars(off, off + n, chars, count);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                encode(false);
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                OutputStream out = this.out;
+                finish();
+                out.close();
+            }
+        }
+
+        private void encode(boolean endOfInput) throws IOException {
+            CharBuffer in = CharBuffer.wrap(chars, 0, count);
+
+            while (true) {
+                CoderResult result = encoder.encode(in, bytes, endOfInput);
+
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isUnderflow()) {
+                    break;
+                } else {
+                    result.throwException();
+                }
+            }
+
+            if (endOfInput) {
+                while (encoder.flush(bytes).isOverflow()) {
+                    drain();
+                }
+            }
+
+            // not encoded (high surrogate without pair yet) is moved to the beginning
+            int left = in.remaining();
+            System.arraycopy(chars, in.position(), chars, 0, left);
+            count = left;
+
+            drain();
+        }
+
+        private void drain() throws IOException {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
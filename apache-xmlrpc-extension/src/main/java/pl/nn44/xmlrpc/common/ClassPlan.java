@@ -0,0 +1,234 @@
+package pl.nn44.xmlrpc.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fields of a class served as struct members, with accessors, and the way to instantiate the class.<br/>
+ * Computed once per class (reflection is used only here), then shared.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class ClassPlan {
+
+    private static final ClassValue<ClassPlan> PLANS = new ClassValue<ClassPlan>() {
+        @Override
+        protected ClassPlan computeValue(Class<?> type) {
+            return new ClassPlan(type);
+        }
+    };
+
+    // class by name (__class__, type of enum/array)
+    private static final ConcurrentMap<String, Class<?>> CLASSES = new ConcurrentHashMap<>();
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private final Class<?> clazz;
+    private final char[] className;
+    private final Property[] properties;
+    private final Map<String, Property> propertyByName;
+    private final MethodHandle constructor; // null if there is no no-arg constructor
+    private final Map<String, Enum<?>> enumByName; // enum classes only
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static ClassPlan of(Class<?> clazz) {
+        return PLANS.get(clazz);
+    }
+
+    public static ClassPlan of(String className) throws ClassNotFoundException {
+        return of(forName(className));
+    }
+
+    public static Class<?> forName(String className) throws ClassNotFoundException {
+        Class<?> clazz = CLASSES.get(className);
+
+        if (clazz == null) {
+            clazz = Class.forName(className);
+            CLASSES.putIfAbsent(className, clazz);
+        }
+
+        return clazz;
+    }
+
+    private ClassPlan(Class<?> clazz) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<Property> properties = new ArrayList<>();
+        Map<String, Property> propertyByName = new HashMap<>();
+
+        for (Field field : clazz.getDeclaredFields()) {
+            if (!isMember(field)) {
+                continue;
+            }
+
+            field.setAccessible(true);
+
+            try {
+                MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                // final instance field is writable if it is accessible, no Field.modifiers hack is needed
+                MethodHandle setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+
+                Property property = new Property(field, getter, setter);
+                properties.add(property);
+                propertyByName.put(field.getName(), property);
+
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("unable to access field: " + field, e);
+            }
+        }
+
+        this.clazz = clazz;
+        this.className = clazz.getName().toCharArray();
+        this.properties = properties.toArray(new Property[properties.size()]);
+        this.propertyByName = Collections.unmodifiableMap(propertyByName);
+        this.constructor = findConstructor(lookup, clazz);
+        this.enumByName = findEnumConstants(clazz);
+    }
+
+    private static MethodHandle findConstructor(MethodHandles.Lookup lookup, Class<?> clazz) {
+        if (clazz.isInterface() || clazz.isArray() || clazz.isPrimitive() || Modifier.isAbstract(clazz.getModifiers())) {
+            return null;
+        }
+
+        try {
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return lookup.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, Enum<?>> findEnumConstants(Class<?> clazz) {
+        if (!clazz.isEnum()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Enum<?>> enumByName = new HashMap<>();
+        for (Object constant : clazz.getEnumConstants()) {
+            Enum<?> enumKey = (Enum<?>) constant;
+            enumByName.put(enumKey.name(), enumKey);
+        }
+
+        return Collections.unmodifiableMap(enumByName);
+    }
+
+    // ignored: serialVersionUID, __ignore__, static and transient fields
+    protected static boolean isMember(Field field) {
+        int modifiers = field.getModifiers();
+
+        return !field.getName().equals("serialVersionUID")
+                && !field.getName().equals("__ignore__")
+                && !Modifier.isStatic(modifiers)
+                && !Modifier.isTransient(modifiers);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Class<?> getClazz() {
+        return clazz;
+    }
+
+    public char[] getClassName() {
+        return className;
+    }
+
+    public Property[] getProperties() {
+        return properties;
+    }
+
+    // null if there is no such member
+    public Property getProperty(String name) {
+        return propertyByName.get(name);
+    }
+
+    public Object newInstance() throws InstantiationException {
+        if (constructor == null) {
+            throw new InstantiationException("no-arg constructor required: " + clazz.getName());
+        }
+
+        try {
+            return (Object) constructor.invokeExact();
+
+        } catch (RuntimeException | Error e) {
+            throw e;
+
+        } catch (Throwable t) {
+            InstantiationException ie = new InstantiationException(clazz.getName());
+            ie.initCause(t);
+            throw ie;
+        }
+    }
+
+    public Enum<?> enumConstant(String name) throws InstantiationException {
+        Enum<?> enumKey = enumByName.get(name);
+
+        if (enumKey == null) {
+            throw new InstantiationException("enum=" + clazz.getName() + ';' + name);
+        }
+
+        return enumKey;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static class Property {
+
+        private final Field field;
+        private final char[] name;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        Property(Field field, MethodHandle getter, MethodHandle setter) {
+            this.field = field;
+            this.name = field.getName().toCharArray();
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public char[] getName() {
+            return name;
+        }
+
+        public Object get(Object object) {
+            try {
+                return (Object) getter.invokeExact(object);
+
+            } catch (RuntimeException | Error e) {
+                throw e;
+
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        public void set(Object object, Object value) {
+            try {
+                setter.invokeExact(object, value);
+
+            } catch (RuntimeException | Error e) {
+                throw e;
+
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+}
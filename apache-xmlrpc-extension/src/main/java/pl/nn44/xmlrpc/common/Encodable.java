@@ -0,0 +1,14 @@
+package pl.nn44.xmlrpc.common;
+
+/**
+ * Immutable object which keeps own encoded forms, one per encoder.<br/>
+ * Object written into many responses is then encoded once.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public interface Encodable {
+
+    // null if not encoded yet by the encoder
+    Object getEncoded(Object encoder);
+
+    void setEncoded(Object encoder, Object encoded);
+}
@@ -0,0 +1,108 @@
+package pl.nn44.xmlrpc.common;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorded SAX events of one serialized value (document fragment).<br/>
+ * Recorded once, then replayed into any ContentHandler, without serializer lookups and reflection.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class SaxFrame implements ContentHandler {
+
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
+    private final List<Event> events = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void replay(ContentHandler handler) throws SAXException {
+        for (Event event : events) {
+            event.replay(handler);
+        }
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+        Attributes attributes = atts.getLength() == 0
+                ? NO_ATTRIBUTES
+                : new AttributesImpl(atts);
+
+        events.add(handler -> handler.startElement(uri, localName, qName, attributes));
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        events.add(handler -> handler.endElement(uri, localName, qName));
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        char[] chars = new char[length];
+        System.arraycopy(ch, start, chars, 0, length);
+
+        events.add(handler -> handler.characters(chars, 0, chars.length));
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        char[] chars = new char[length];
+        System.arraycopy(ch, start, chars, 0, length);
+
+        events.add(handler -> handler.ignorableWhitespace(chars, 0, chars.length));
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        events.add(handler -> handler.startPrefixMapping(prefix, uri));
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) {
+        events.add(handler -> handler.endPrefixMapping(prefix));
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+        events.add(handler -> handler.processingInstruction(target, data));
+    }
+
+    @Override
+    public void skippedEntity(String name) {
+        events.add(handler -> handler.skippedEntity(name));
+    }
+
+    // fragment only: document events are not recorded
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    @Override
+    public void startDocument() {
+    }
+
+    @Override
+    public void endDocument() {
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @FunctionalInterface
+    private interface Event {
+
+        void replay(ContentHandler handler) throws SAXException;
+    }
+}
@@ -0,0 +1,248 @@
+package pl.nn44.xmlrpc.common;
+
+import org.apache.ws.commons.util.NamespaceContextImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.parser.RecursiveTypeParserImpl;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parser of struct, which binds members directly into object of __class__.<br/>
+ * Members before __class__ are buffered (struct members are not ordered), others are set immediately.<br/>
+ * Struct without __class__ is returned as map, as by MapParser.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class StructParser extends RecursiveTypeParserImpl {
+
+    protected static final String STRUCT = "struct";
+    protected static final String MEMBER = "member";
+    protected static final String NAME = "name";
+    protected static final String VALUE = "value";
+
+    private int level = 0;
+    private boolean inName = false;
+    private boolean inValue = false;
+    private final StringBuilder nameBuffer = new StringBuilder();
+    private String name = null;
+    private Binding binding = null;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public StructParser(XmlRpcStreamConfig pConfig,
+                        NamespaceContextImpl pContext,
+                        TypeFactory pFactory) {
+
+        super(pConfig, pContext, pFactory);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void startDocument() throws SAXException {
+        super.startDocument();
+
+        level = 0;
+        inName = false;
+        inValue = false;
+        name = null;
+        binding = new Binding();
+    }
+
+    @Override
+    public void characters(char[] pChars, int pOffset, int pLength) throws SAXException {
+        if (inName && !inValue) {
+            nameBuffer.append(pChars, pOffset, pLength);
+        } else {
+            super.characters(pChars, pOffset, pLength);
+        }
+    }
+
+    @Override
+    public void startElement(String pURI, String pLocalName, String pQName, Attributes pAttrs) throws SAXException {
+        switch (level++) {
+            case 0:
+                expect(STRUCT, pURI, pLocalName);
+                break;
+
+            case 1:
+                expect(MEMBER, pURI, pLocalName);
+                name = null;
+                break;
+
+            case 2:
+                if (isTag(NAME, pURI, pLocalName)) {
+                    inName = true;
+                    nameBuffer.setLength(0);
+
+                } else if (isTag(VALUE, pURI, pLocalName)) {
+                    if (name == null) {
+                        throw new SAXParseException("Invalid state: Expected name", getDocumentLocator());
+                    }
+
+                    inValue = true;
+                    startValueTag();
+
+                } else {
+                    throw new SAXParseException("Expected name or value, got " + pLocalName, getDocumentLocator());
+                }
+                break;
+
+            default:
+                super.startElement(pURI, pLocalName, pQName, pAttrs);
+                break;
+        }
+    }
+
+    @Override
+    public void endElement(String pURI, String pLocalName, String pQName) throws SAXException {
+        switch (--level) {
+            case 0:
+                try {
+                    setResult(binding.result());
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    throw new SAXException(e.getMessage(), e);
+                }
+                break;
+
+            case 1:
+                break;
+
+            case 2:
+                if (inName) {
+                    inName = false;
+                    name = nameBuffer.toString();
+
+                } else if (inValue) {
+                    endValueTag();
+                    inValue = false;
+                }
+                break;
+
+            default:
+                super.endElement(pURI, pLocalName, pQName);
+                break;
+        }
+    }
+
+    @Override
+    protected void addResult(Object pResult) throws SAXException {
+        try {
+            binding.member(name, pResult);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static boolean isTag(String tag, String pURI, String pLocalName) {
+        return (pURI == null || pURI.isEmpty()) && tag.equals(pLocalName);
+    }
+
+    private void expect(String tag, String pURI, String pLocalName) throws SAXParseException {
+        if (!isTag(tag, pURI, pLocalName)) {
+            throw new SAXParseException("Expected " + tag + ", got " + pLocalName, getDocumentLocator());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Binding {
+
+        private String clazz = null; // __class__
+        private ClassPlan plan = null;
+        private Object instance = null;
+        private Map<String, Object> members = null; // before __class__, or all if there is no __class__
+
+        void member(String name, Object value) throws ReflectiveOperationException {
+            if (instance != null) {
+                set(name, value);
+                return;
+            }
+
+            if (clazz == null && name.equals("__class__")) {
+                clazz = value.toString();
+
+                if (!isSpecial(clazz)) {
+                    plan = ClassPlan.of(clazz);
+                    instance = plan.newInstance();
+
+                    if (members != null) {
+                        for (Map.Entry<String, Object> member : members.entrySet()) {
+                            set(member.getKey(), member.getValue());
+                        }
+                        members = null;
+                    }
+                }
+                return;
+            }
+
+            if (members == null) {
+                members = new HashMap<>(4);
+            }
+            members.put(name, value);
+        }
+
+        Object result() throws ReflectiveOperationException {
+            // special case: not-special-map
+            if (clazz == null) {
+                return members != null
+                        ? members
+                        : new HashMap<>(0);
+            }
+
+            switch (clazz) {
+                // special case: null value
+                case "null":
+                    return null;
+
+                // special case: enum class
+                case "enum":
+                    return ClassPlan.of(member("type").toString())
+                            .enumConstant(member("name").toString());
+
+                // special case: array
+                case "array":
+                    Class<?> type = ClassPlan.forName(member("type").toString());
+                    Object[] values = (Object[]) member("values");
+
+                    Object[] newValues = (Object[]) Array.newInstance(type, values.length);
+                    System.arraycopy(values, 0, newValues, 0, values.length);
+                    return newValues;
+
+                default:
+                    return instance;
+            }
+        }
+
+        private void set(String name, Object value) throws NoSuchFieldException {
+            ClassPlan.Property property = plan.getProperty(name);
+
+            if (property == null) {
+                throw new NoSuchFieldException(plan.getClazz().getName() + '.' + name);
+            }
+
+            property.set(instance, value);
+        }
+
+        private Object member(String name) throws InstantiationException {
+            Object value = members != null ? members.get(name) : null;
+
+            if (value == null) {
+                throw new InstantiationException("missing member: " + clazz + '.' + name);
+            }
+
+            return value;
+        }
+
+        private static boolean isSpecial(String clazz) {
+            return clazz.equals("null") || clazz.equals("enum") || clazz.equals("array");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pl.nn44.xmlrpc.common;
+
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.serializer.TypeSerializerImpl;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.Arrays;
+
+/**
+ * Serializer of complex types (null, enum, array, any class) as struct.<br/>
+ * Members are written straight to ContentHandler, field values are read through cached ClassPlan.<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class StructSerializer extends TypeSerializerImpl {
+
+    protected static final String VALUE = "value";
+    protected static final String STRUCT = "struct";
+    protected static final String MEMBER = "member";
+    protected static final String NAME = "name";
+
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
+    private static final char[] CLASS_KEY = "__class__".toCharArray();
+    private static final char[] TYPE_KEY = "type".toCharArray();
+    private static final char[] NAME_KEY = "name".toCharArray();
+    private static final char[] VALUES_KEY = "values".toCharArray();
+
+    private final TypeFactory typeFactory;
+    private final XmlRpcStreamConfig config;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public StructSerializer(TypeFactory typeFactory, XmlRpcStreamConfig config) {
+        this.typeFactory = typeFactory;
+        this.config = config;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void write(ContentHandler pHandler, Object pObject) throws SAXException {
+        pHandler.startElement("", VALUE, VALUE, NO_ATTRIBUTES);
+        pHandler.startElement("", STRUCT, STRUCT, NO_ATTRIBUTES);
+
+        writeMembers(pHandler, pObject);
+
+        pHandler.endElement("", STRUCT, STRUCT);
+        pHandler.endElement("", VALUE, VALUE);
+    }
+
+    protected void writeMembers(ContentHandler pHandler, Object pObject) throws SAXException {
+        // special case: null value
+        if (pObject == null) {
+            writeMember(pHandler, CLASS_KEY, "null");
+            return;
+        }
+
+        Class<?> clazz = pObject.getClass();
+
+        // special case: enum class
+        if (pObject instanceof Enum) {
+            Enum<?> enumKey = (Enum<?>) pObject;
+
+            writeMember(pHandler, CLASS_KEY, "enum");
+            writeMember(pHandler, TYPE_KEY, enumKey.getDeclaringClass().getName());
+            writeMember(pHandler, NAME_KEY, enumKey.name());
+            return;
+        }
+
+        // special case: arrays
+        if (clazz.isArray()) {
+            writeMember(pHandler, CLASS_KEY, "array");
+            writeMember(pHandler, TYPE_KEY, clazz.getComponentType().getName());
+            writeMember(pHandler, VALUES_KEY, Arrays.asList((Object[]) pObject));
+            return;
+        }
+
+        // any other class: (field-name, field-value) members
+        ClassPlan plan = ClassPlan.of(clazz);
+
+        writeMemberName(pHandler, CLASS_KEY);
+        writeString(pHandler, plan.getClassName());
+        pHandler.endElement("", MEMBER, MEMBER);
+
+        for (ClassPlan.Property property : plan.getProperties()) {
+            writeMember(pHandler, property.getName(), property.get(pObject));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    protected void writeMember(ContentHandler pHandler, char[] name, Object value) throws SAXException {
+        writeMemberName(pHandler, name);
+        typeFactory.getSerializer(config, value).write(pHandler, value);
+        pHandler.endElement("", MEMBER, MEMBER);
+    }
+
+    // <member><name>name</name>
+    private static void writeMemberName(ContentHandler pHandler, char[] name) throws SAXException {
+        pHandler.startElement("", MEMBER, MEMBER, NO_ATTRIBUTES);
+        pHandler.startElement("", NAME, NAME, NO_ATTRIBUTES);
+        pHandler.characters(name, 0, name.length);
+        pHandler.endElement("", NAME, NAME);
+    }
+
+    // <value>string</value>, as StringSerializer does
+    private static void writeString(ContentHandler pHandler, char[] value) throws SAXException {
+        pHandler.startElement("", VALUE, VALUE, NO_ATTRIBUTES);
+        pHandler.characters(value, 0, value.length);
+        pHandler.endElement("", VALUE, VALUE);
+    }
+}
@@ -0,0 +1,69 @@
+package pl.nn44.xmlrpc.common;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Per-thread cache of XMLReader (namespace aware, not validating, as SAXParsers creates).<br/>
+ * Parser is created once per thread instead of once per call, and reset by the reader itself on next parse().<br/>
+ * DOCTYPE is disallowed, XML-RPC doesn't use it (and it closes external entities).<br/>
+ * Please check {@link pl.nn44.xmlrpc} package doc.
+ */
+public class XmlReaderPool {
+
+    private static final SAXParserFactory FACTORY = newFactory();
+    private static final ThreadLocal<XMLReader> READERS = new ThreadLocal<>();
+    private static final ContentHandler NO_HANDLER = new DefaultHandler();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private XmlReaderPool() {
+    }
+
+    private static SAXParserFactory newFactory() {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+
+        try {
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (ParserConfigurationException | SAXException e) {
+            // parser without this feature: as SAXParsers does
+        }
+
+        return factory;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // reader owned by caller until release(), nested acquire() on the same thread gets a new one
+    public static XMLReader acquire() throws XmlRpcException {
+        XMLReader reader = READERS.get();
+
+        if (reader != null) {
+            READERS.set(null);
+            return reader;
+        }
+
+        try {
+            synchronized (FACTORY) {
+                return FACTORY.newSAXParser().getXMLReader();
+            }
+
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new XmlRpcException("Unable to create XML parser: " + e.getMessage(), e);
+        }
+    }
+
+    // only after successful parse, reader which failed is left for gc
+    public static void release(XMLReader reader) {
+        reader.setContentHandler(NO_HANDLER);
+        READERS.set(reader);
+    }
+}
@@ -30,6 +30,12 @@
  * - classes are served as map:
  *   entry=("__class__", "some.java.class.full.name")
  *   for(f in object.fields): entry=(f.name, f.value)
+ *   (without static, transient, serialVersionUID, __ignore__ fields;
+ *   fields and accessors of a class are cached: ClassPlan)
+ *
+ * - structs are parsed by StructParser: members are bound
+ *   directly into instance of __class__ (no intermediate map),
+ *   classes, enums and accessors are resolved from cache
  *
  * - nulls are served as map:
  *   entry=("__class__", "null")
@@ -44,6 +50,27 @@
  *   entry=("type", "some.java.class.full.name")
  *   entry=("values", struct_with_values)
  *
+ *               ENCODED FRAMES
+ *
+ * Class: Encodable, SaxFrame
+ *
+ * Immutable object written into many responses (e.g. one event
+ * send to every member of a channel) may implement Encodable.
+ * It is then serialized once per AnyTypeFactory: SAX events
+ * are recorded (SaxFrame), kept by the object, and replayed
+ * into every next response.
+ *
+ *               PARSERS AND BUFFERS
+ *
+ * Class: XmlReaderPool, BufferedXmlWriterFactory
+ *
+ * XMLReader is cached per thread (AnyXmlRpcServer requests,
+ * AnyXmlRpcTransport responses), DOCTYPE is disallowed.
+ * XML is written through per-thread char/byte buffers
+ * and encoders (server: always, client: setXmlWriterFactory).
+ * AnyXmlRpcServer.setStreaming(true) writes response without
+ * buffering it for Content-Length.
+
  *               TRANSPORT EXCEPTION
  *
  * Class (client-side): AnyXmlRpcServer
@@ -1,10 +1,21 @@
 package pl.nn44.xmlrpc.server;
 
 import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.XmlRpcRequestConfig;
 import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.parser.XmlRpcRequestParser;
 import org.apache.xmlrpc.webserver.XmlRpcServletServer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import pl.nn44.xmlrpc.common.BufferedXmlWriterFactory;
+import pl.nn44.xmlrpc.common.XmlReaderPool;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Please check {@link pl.nn44.xmlrpc} package doc.
@@ -12,6 +23,13 @@ import java.io.OutputStream;
 public class AnyXmlRpcServer extends XmlRpcServletServer {
 
     protected FaultMapper faultMapper;
+    protected boolean streaming = false;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public AnyXmlRpcServer() {
+        setXMLWriterFactory(new BufferedXmlWriterFactory());
+    }
 
     // ---------------------------------------------------------------------------------------------------------------
 
@@ -19,8 +37,46 @@ public class AnyXmlRpcServer extends XmlRpcServletServer {
         this.faultMapper = faultMapper;
     }
 
+    // true: response is written directly to servlet stream, without Content-Length
+    // (by default whole response is buffered first to compute Content-Length)
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
+    @Override
+    protected boolean isContentLengthRequired(XmlRpcStreamRequestConfig pConfig) {
+        return !streaming && super.isContentLengthRequired(pConfig);
+    }
+
+    @Override
+    protected XmlRpcRequest getRequest(XmlRpcStreamRequestConfig pConfig,
+                                       InputStream pStream)
+            throws XmlRpcException {
+
+        XmlRpcRequestParser parser = new XmlRpcRequestParser(pConfig, getTypeFactory());
+        XMLReader reader = XmlReaderPool.acquire();
+        reader.setContentHandler(parser);
+
+        try {
+            reader.parse(new InputSource(pStream));
+
+        } catch (SAXException e) {
+            Exception ex = e.getException();
+            if (ex instanceof XmlRpcException) {
+                throw (XmlRpcException) ex;
+            }
+            throw new XmlRpcException("Failed to parse XML-RPC request: " + e.getMessage(), e);
+
+        } catch (IOException e) {
+            throw new XmlRpcException("Failed to read XML-RPC request: " + e.getMessage(), e);
+        }
+
+        XmlReaderPool.release(reader);
+        return new ParsedRequest(pConfig, parser.getMethodName(), parser.getParams());
+    }
+
     @Override
     protected void writeError(XmlRpcStreamRequestConfig pConfig,
                               OutputStream pStream,
@@ -41,4 +97,39 @@ public class AnyXmlRpcServer extends XmlRpcServletServer {
 
         super.writeError(pConfig, pStream, error);
     }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    protected static class ParsedRequest implements XmlRpcRequest {
+
+        private final XmlRpcRequestConfig config;
+        private final String methodName;
+        private final List<?> params;
+
+        public ParsedRequest(XmlRpcRequestConfig config, String methodName, List<?> params) {
+            this.config = config;
+            this.methodName = methodName;
+            this.params = params;
+        }
+
+        @Override
+        public XmlRpcRequestConfig getConfig() {
+            return config;
+        }
+
+        @Override
+        public String getMethodName() {
+            return methodName;
+        }
+
+        @Override
+        public int getParameterCount() {
+            return params != null ? params.size() : 0;
+        }
+
+        @Override
+        public Object getParameter(int pIndex) {
+            return params.get(pIndex);
+        }
+    }
 }
@@ -0,0 +1,351 @@
+package pl.nn44.niorpc.client;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.SerializerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.niorpc.common.Frame;
+import pl.nn44.niorpc.common.Subscription;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Client of NioRpcServer: calls (also by interface proxy) and subscriptions over one TCP connection.<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public class NioRpcClient implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NioRpcClient.class);
+
+    public static final int CONNECT_TIMEOUT_MS = 10_000;
+    public static final long CALL_TIMEOUT_MS = 2 * 60 * 1000; // more than longest whatsUp long-poll
+    public static final long PING_SECONDS = 60;
+
+    private final InetSocketAddress address;
+    private final SerializerFactory serializerFactory = new SerializerFactory();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ScheduledExecutorService pinger;
+    private Supplier<String> requestIds = null; // null: calls are sent without request id
+
+    private Connection connection = null;
+    private boolean closed = false;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NioRpcClient(InetSocketAddress address) {
+        this.address = address;
+        this.pinger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nio-rpc-client-pinger");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        pinger.scheduleAtFixedRate(this::ping, PING_SECONDS, PING_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // every call is sent with next id of requestIds (server: NioRpcServer.requestId())
+    public void setRequestIds(Supplier<String> requestIds) {
+        this.requestIds = requestIds;
+    }
+
+    public Object call(String methodName, Object[] args) throws Throwable {
+        int id = ids.incrementAndGet();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+
+        ByteBuffer frame = requestIds != null
+                ? Frame.encode(Frame.CALL, id, serializerFactory, methodName, args, requestIds.get())
+                : Frame.encode(Frame.CALL, id, serializerFactory, methodName, args);
+
+        Connection connection = connection();
+        connection.calls.put(id, result);
+
+        try {
+            connection.send(frame);
+            return result.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        } catch (ExecutionException e) {
+            throw e.getCause();
+
+        } catch (TimeoutException e) {
+            throw new IOException("call timeout: " + methodName, e);
+
+        } finally {
+            connection.calls.remove(id);
+        }
+    }
+
+    public Subscription subscribe(Object[] args, PushListener listener) throws IOException {
+        int id = ids.incrementAndGet();
+
+        Connection connection = connection();
+        connection.subscriptions.put(id, listener);
+
+        try {
+            connection.send(Frame.encode(Frame.SUBSCRIBE, id, serializerFactory, new Object[]{args}));
+        } catch (IOException e) {
+            connection.subscriptions.remove(id);
+            throw e;
+        }
+
+        return new Subscription() {
+
+            @Override
+            public void ping() {
+                sendQuietly(connection, Frame.PING, id);
+            }
+
+            @Override
+            public void close() {
+                if (connection.subscriptions.remove(id) != null) {
+                    sendQuietly(connection, Frame.END, id);
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T proxy(Class<T> clazz) {
+        return (T) Proxy.newProxyInstance(
+                clazz.getClassLoader(),
+                new Class<?>[]{clazz},
+                (proxy, method, args) -> invoke(clazz, proxy, method, args)
+        );
+    }
+
+    @Override
+    public void close() {
+        Connection connection;
+
+        synchronized (this) {
+            closed = true;
+            connection = this.connection;
+            this.connection = null;
+        }
+
+        pinger.shutdownNow();
+
+        if (connection != null) {
+            connection.fail(new IOException("client closed"));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private Object invoke(Class<?> clazz, Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return clazz.getSimpleName() + "@" + address;
+                default:
+                    throw new UnsupportedOperationException(method.toString());
+            }
+        }
+
+        try {
+            return call(method.getName(), args != null ? args : new Object[0]);
+
+        } catch (RuntimeException | Error e) {
+            throw e;
+
+        } catch (Throwable e) {
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(e)) {
+                    throw e;
+                }
+            }
+
+            if (e instanceof IOException) {
+                throw new UncheckedIOException((IOException) e);
+            }
+
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private synchronized Connection connection() throws IOException {
+        if (closed) {
+            throw new IOException("client closed");
+        }
+
+        if (connection == null || connection.failed) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+
+            connection = new Connection(socket);
+            connection.start();
+        }
+
+        return connection;
+    }
+
+    private void ping() {
+        Connection connection;
+
+        synchronized (this) {
+            connection = this.connection;
+        }
+
+        if (connection != null && !connection.failed) {
+            for (Integer id : connection.subscriptions.keySet()) {
+                sendQuietly(connection, Frame.PING, id);
+            }
+        }
+    }
+
+    private void sendQuietly(Connection connection, byte type, int id) {
+        try {
+            connection.send(Frame.encode(type, id, serializerFactory));
+        } catch (IOException e) {
+            LOG.debug("Frame {} not sent: {}", type, e.toString());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private class Connection {
+
+        private final Socket socket;
+        private final OutputStream output;
+        private final ConcurrentMap<Integer, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, PushListener> subscriptions = new ConcurrentHashMap<>();
+        private volatile boolean failed = false;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+        }
+
+        void start() {
+            Thread reader = new Thread(this::read, "nio-rpc-client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            if (failed) {
+                throw new IOException("connection failed");
+            }
+
+            try {
+                synchronized (output) {
+                    output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    output.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+
+        private void read() {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                while (true) {
+                    int length = input.readInt();
+                    Frame.checkLength(length);
+
+                    byte type = input.readByte();
+                    int id = input.readInt();
+                    byte[] payload = new byte[length - Frame.HEADER_BYTES];
+                    input.readFully(payload);
+
+                    dispatch(new Frame(type, id, payload));
+                }
+
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void dispatch(Frame frame) throws IOException {
+            CompletableFuture<Object> call;
+            PushListener listener;
+            Hessian2Input input = frame.payload(serializerFactory);
+
+            switch (frame.getType()) {
+                case Frame.RESULT:
+                    call = calls.get(frame.getId());
+                    if (call != null) {
+                        call.complete(input.readObject());
+                    }
+                    break;
+
+                case Frame.ERROR:
+                    call = calls.get(frame.getId());
+                    if (call != null) {
+                        call.completeExceptionally((Throwable) input.readObject());
+                    }
+                    break;
+
+                case Frame.PUSH:
+                    listener = subscriptions.get(frame.getId());
+                    if (listener != null) {
+                        listener.onPush(input.readObject());
+                    }
+                    break;
+
+                case Frame.END:
+                    listener = subscriptions.remove(frame.getId());
+                    if (listener != null) {
+                        listener.onEnd((Throwable) input.readObject());
+                    }
+                    break;
+
+                default:
+                    throw new IOException("unexpected frame: " + frame);
+            }
+        }
+
+        void fail(IOException reason) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Close failure: {}", e.toString());
+            }
+
+            for (CompletableFuture<Object> call : calls.values()) {
+                call.completeExceptionally(reason);
+            }
+            for (PushListener listener : subscriptions.values()) {
+                listener.onEnd(reason);
+            }
+
+            calls.clear();
+            subscriptions.clear();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package pl.nn44.niorpc.client;
+
+/**
+ * Receiver of pushes of one subscription, called by the connection reader thread (so it must be short).<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public interface PushListener {
+
+    void onPush(Object payload);
+
+    // reason is null on normal end, IOException if connection is lost
+    void onEnd(Throwable reason);
+}
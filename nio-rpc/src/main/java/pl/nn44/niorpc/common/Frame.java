@@ -0,0 +1,103 @@
+package pl.nn44.niorpc.common;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.SerializerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frame: [int length][byte type][int id][payload], payload is a sequence of Hessian2 encoded values.<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public class Frame {
+
+    public static final byte CALL = 1;
+    public static final byte RESULT = 2;
+    public static final byte ERROR = 3;
+    public static final byte SUBSCRIBE = 4;
+    public static final byte PUSH = 5;
+    public static final byte PING = 6;
+    public static final byte END = 7;
+
+    public static final int LENGTH_BYTES = 4;
+    public static final int HEADER_BYTES = 1 + 4; // type, id
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final byte type;
+    private final int id;
+    private final byte[] payload;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Frame(byte type, int id, byte[] payload) {
+        this.type = type;
+        this.id = id;
+        this.payload = payload;
+    }
+
+    // whole frame (with length), ready to be written
+    public static ByteBuffer encode(byte type, int id, SerializerFactory factory, Object... values) throws IOException {
+        Buffer buffer = new Buffer();
+        buffer.write(new byte[LENGTH_BYTES + HEADER_BYTES]);
+
+        if (values.length > 0) {
+            Hessian2Output output = new Hessian2Output(buffer);
+            output.setSerializerFactory(factory);
+
+            for (Object value : values) {
+                output.writeObject(value);
+            }
+            output.flush();
+        }
+
+        ByteBuffer frame = buffer.wrap();
+        frame.putInt(0, frame.remaining() - LENGTH_BYTES);
+        frame.put(LENGTH_BYTES, type);
+        frame.putInt(LENGTH_BYTES + 1, id);
+        return frame;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < HEADER_BYTES || length > MAX_LENGTH) {
+            throw new IOException("invalid frame length: " + length);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Hessian2Input payload(SerializerFactory factory) {
+        Hessian2Input input = new Hessian2Input(new ByteArrayInputStream(payload));
+        input.setSerializerFactory(factory);
+        return input;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{type=" + type + ", id=" + id + ", payload=" + payload.length + '}';
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(128);
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package pl.nn44.niorpc.common;
+
+/**
+ * Active subscription of pushes (server: served by PushSource, client: returned by NioRpcClient.subscribe).<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public interface Subscription {
+
+    // client is still interested (received PING / sends PING)
+    void ping();
+
+    // unsubscribe, no more pushes
+    void close();
+}
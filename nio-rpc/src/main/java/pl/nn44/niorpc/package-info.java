@@ -0,0 +1,55 @@
+/**
+ * <pre>
+ *               NIO-RPC
+ *  Service interface over plain TCP connection.
+ *
+ *               WHAT IS IT?
+ * Server (NioRpcServer) exposes any interface, client (NioRpcClient)
+ * creates proxy of the interface. One persistent connection carries
+ * many concurrent calls and server pushes (multiplexed by id).
+ *
+ *               FRAMES
+ *
+ * Class: Frame
+ *
+ * [int length][byte type][int id][payload]
+ * - length: number of bytes after length field (5 + payload),
+ * - payload: Hessian2 encoded values.
+ *
+ * client -> server:
+ * - CALL      id=call          payload=method name, Object[] args,
+ *                                      request id (optional, String)
+ * - SUBSCRIBE id=subscription  payload=Object[] args
+ * - PING      id=subscription  (keeps subscription alive)
+ * - END       id=subscription  (unsubscribe)
+ *
+ * server -> client:
+ * - RESULT    id=call          payload=result
+ * - ERROR     id=call          payload=Throwable
+ * - PUSH      id=subscription  payload=pushed object
+ * - END       id=subscription  payload=Throwable or null
+ *
+ * Responses are not ordered: result of any call may come first.
+ *
+ *               SERVER
+ *
+ * Class: NioRpcServer, PushSource, PushSink
+ *
+ * One selector thread accepts, reads and writes (gathering writes
+ * of queued frames). Frames are decoded and calls are executed
+ * by worker threads, so blocking call blocks one worker only.
+ * Connection with too many not yet written bytes is closed,
+ * as well as connection whose call finds the worker queue full.
+ * Read buffer grows with received bytes of a frame, not by its length.
+ * Subscriptions are served by PushSource, which pushes into PushSink.
+ *
+ *               CLIENT
+ *
+ * Class: NioRpcClient, PushListener
+ *
+ * Blocking socket, frames are read by one reader thread.
+ * Connection is opened on first call, and again after failure.
+ * Active subscriptions are pinged periodically.
+ * </pre>
+ */
+package pl.nn44.niorpc;
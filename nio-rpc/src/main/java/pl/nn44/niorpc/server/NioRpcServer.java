@@ -0,0 +1,618 @@
+package pl.nn44.niorpc.server;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.SerializerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.niorpc.common.Frame;
+import pl.nn44.niorpc.common.Subscription;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service of interface T over TCP: one selector thread for all connections, calls executed by worker threads.<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public class NioRpcServer<T> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NioRpcServer.class);
+    private static final ThreadLocal<String> REQUEST_ID = new ThreadLocal<>();
+
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_GATHER = 64;
+    public static final long MAX_PENDING_BYTES = 8 * 1024 * 1024; // per connection, slow consumer is closed
+    public static final int MAX_QUEUED_TASKS = 4096; // calls waiting for workers, connection is closed above
+    public static final long ACCEPT_PAUSE_MS = 100; // after accept failure (e.g. too many open files)
+
+    private final T service;
+    private final Map<String, Method> methods = new HashMap<>(); // by name/arity
+    private final ExecutorService workers;
+    private final SerializerFactory serializerFactory = new SerializerFactory();
+    private PushSource pushSource = null;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private boolean acceptPaused = false; // selector thread only
+    private long acceptPausedUntilNs;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong pushes = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NioRpcServer(T service, Class<T> clazz, int workerThreads) {
+        this.service = service;
+
+        for (Method method : clazz.getMethods()) {
+            methods.put(key(method.getName(), method.getParameterCount()), method);
+        }
+
+        AtomicInteger workerId = new AtomicInteger();
+        ThreadFactory workerFactory = runnable -> {
+            Thread thread = new Thread(runnable, "nio-rpc-worker-" + workerId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.workers = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_TASKS),
+                workerFactory
+        );
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void setPushSource(PushSource pushSource) {
+        this.pushSource = pushSource;
+    }
+
+    // request id sent by client with the call executed by current thread (see Frame.CALL), null if none
+    public static String requestId() {
+        return REQUEST_ID.get();
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        selectorThread = new Thread(this::loop, "nio-rpc-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        workers.shutdownNow();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getPushes() {
+        return pushes.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NioRpcServer{" +
+                "connections=" + connections.get() +
+                ", calls=" + calls.get() +
+                ", pushes=" + pushes.get() +
+                ", bytesIn=" + bytesIn.get() +
+                ", bytesOut=" + bytesOut.get() +
+                '}';
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(selectTimeoutMs());
+
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Selector failure.", e);
+                continue;
+            }
+
+            for (Connection connection; (connection = pendingWrites.poll()) != null; ) {
+                connection.writeSafe();
+            }
+
+            // every key is handled on its own, failure of one does not leave the rest selected
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (key.isValid()) {
+                    handle(key);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) { // not server channel
+                ((Connection) key.attachment()).close();
+            }
+        }
+
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Close failure.", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(SelectionKey key) {
+        if (key.isAcceptable()) {
+            try {
+                accept();
+
+            } catch (IOException | RuntimeException e) {
+                // pending connection stays acceptable: without a pause the selector would spin
+                LOG.warn("Accept failure, accepting paused for {} ms: {}", ACCEPT_PAUSE_MS, e.toString());
+                key.interestOps(0);
+                acceptPaused = true;
+                acceptPausedUntilNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_PAUSE_MS);
+            }
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Connection failed: {} {}", connection, e.toString());
+            connection.close();
+        }
+    }
+
+    // no timeout (0), unless accepting is paused: then until accepting is resumed
+    private long selectTimeoutMs() {
+        if (!acceptPaused) {
+            return 0;
+        }
+
+        long remainingNs = acceptPausedUntilNs - System.nanoTime();
+        if (remainingNs > 0) {
+            return TimeUnit.NANOSECONDS.toMillis(remainingNs) + 1;
+        }
+
+        acceptPaused = false;
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        return 0;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.incrementAndGet();
+
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Connection setup failed: {} {}", channel, e.toString());
+
+            try {
+                channel.close();
+            } catch (IOException ce) {
+                LOG.debug("Close failure: {}", ce.toString());
+            }
+        }
+    }
+
+    private static String key(String methodName, int parameterCount) {
+        return methodName + '/' + parameterCount;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+        private final ConcurrentMap<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // -- selector thread ------------------------------------------------------------------------------------------
+
+        void read() throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            bytesIn.addAndGet(read);
+            in.flip();
+
+            while (in.remaining() >= Frame.LENGTH_BYTES) {
+                int length = in.getInt(in.position());
+                Frame.checkLength(length);
+
+                if (in.remaining() < Frame.LENGTH_BYTES + length) {
+                    if (in.remaining() == in.capacity()) {
+                        // buffer is full of incomplete frame: doubled as bytes arrive, not allocated by length
+                        int capacity = (int) Math.min(Frame.LENGTH_BYTES + length, 2L * in.capacity());
+                        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+
+                in.getInt();
+                byte type = in.get();
+                int id = in.getInt();
+                byte[] payload = new byte[length - Frame.HEADER_BYTES];
+                in.get(payload);
+
+                dispatch(new Frame(type, id, payload));
+            }
+
+            if (in.capacity() > READ_BUFFER_SIZE && in.remaining() <= READ_BUFFER_SIZE) {
+                ByteBuffer normal = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                normal.put(in);
+                in = normal;
+            } else {
+                in.compact();
+            }
+        }
+
+        void write() throws IOException {
+            do {
+                if (!flush()) {
+                    // socket buffer is full, continued on OP_WRITE
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+                writeScheduled.set(false);
+
+                // frames queued after flush(), before the flag was cleared
+            } while (!out.isEmpty() && writeScheduled.compareAndSet(false, true));
+        }
+
+        void writeSafe() {
+            try {
+                write();
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Connection failed: {} {}", this, e.toString());
+                close();
+            }
+        }
+
+        // true if all queued frames are written
+        private boolean flush() throws IOException {
+            while (true) {
+                int count = 0;
+                for (ByteBuffer frame : out) {
+                    gather[count++] = frame;
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+
+                if (count == 0) {
+                    return true;
+                }
+
+                long written = channel.write(gather, 0, count);
+                pendingBytes.addAndGet(-written);
+                bytesOut.addAndGet(written);
+
+                boolean full = gather[count - 1].hasRemaining();
+                Arrays.fill(gather, 0, count, null);
+
+                for (ByteBuffer frame = out.peek(); frame != null && !frame.hasRemaining(); frame = out.peek()) {
+                    out.poll();
+                }
+
+                if (full) {
+                    return false;
+                }
+            }
+        }
+
+        private void dispatch(Frame frame) throws IOException {
+            Subscription subscription;
+
+            switch (frame.getType()) {
+                case Frame.CALL:
+                    execute(() -> call(frame));
+                    break;
+
+                case Frame.SUBSCRIBE:
+                    execute(() -> subscribe(frame));
+                    break;
+
+                case Frame.PING:
+                    subscription = subscriptions.get(frame.getId());
+                    if (subscription != null) {
+                        subscription.ping();
+                    }
+                    break;
+
+                case Frame.END:
+                    subscription = subscriptions.remove(frame.getId());
+                    if (subscription != null) {
+                        subscription.close();
+                    }
+                    break;
+
+                default:
+                    throw new IOException("unexpected frame: " + frame);
+            }
+        }
+
+        // all workers busy and MAX_QUEUED_TASKS waiting (or shutdown): the connection is closed
+        private void execute(Runnable task) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (!workers.isShutdown()) {
+                    LOG.warn("Workers overloaded, connection closed: {}", this);
+                }
+                close();
+            }
+        }
+
+        // -- worker threads -------------------------------------------------------------------------------------------
+
+        private void call(Frame frame) {
+            calls.incrementAndGet();
+
+            Object result = null;
+            Throwable error = null;
+
+            try {
+                Hessian2Input input = frame.payload(serializerFactory);
+                String methodName = (String) input.readObject();
+                Object[] args = (Object[]) input.readObject();
+                String requestId = input.isEnd() ? null : (String) input.readObject(); // optional
+
+                Method method = methods.get(key(methodName, args.length));
+                if (method == null) {
+                    throw new NoSuchMethodException(methodName + '/' + args.length);
+                }
+
+                REQUEST_ID.set(requestId);
+                try {
+                    result = method.invoke(service, args);
+                } finally {
+                    REQUEST_ID.remove();
+                }
+
+            } catch (InvocationTargetException e) {
+                error = e.getCause();
+
+            } catch (Exception e) {
+                error = e;
+            }
+
+            if (error == null) {
+                send(Frame.RESULT, frame.getId(), result);
+            } else {
+                send(Frame.ERROR, frame.getId(), error);
+            }
+        }
+
+        private void subscribe(Frame frame) {
+            int id = frame.getId();
+
+            try {
+                if (pushSource == null) {
+                    throw new UnsupportedOperationException("push is not supported");
+                }
+
+                Object[] args = (Object[]) frame.payload(serializerFactory).readObject();
+                Sink sink = new Sink(id);
+                Subscription subscription = pushSource.subscribe(args, sink);
+
+                subscriptions.put(id, subscription);
+                if (sink.ended || closed.get()) {
+                    subscriptions.remove(id);
+                    subscription.close();
+                }
+
+            } catch (Exception e) {
+                send(Frame.END, id, e);
+            }
+        }
+
+        // -- any thread -----------------------------------------------------------------------------------------------
+
+        void send(byte type, int id, Object value) {
+            ByteBuffer frame;
+
+            try {
+                frame = Frame.encode(type, id, serializerFactory, value);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Unable to encode {} for frame {}: {}", value, type, e.toString());
+
+                try {
+                    frame = Frame.encode(
+                            type == Frame.RESULT ? Frame.ERROR : type, id, serializerFactory,
+                            new IllegalStateException("not encoded: " + e)
+                    );
+                } catch (IOException ee) {
+                    close();
+                    return;
+                }
+            }
+
+            send(frame);
+        }
+
+        void send(ByteBuffer frame) {
+            if (closed.get()) {
+                return;
+            }
+
+            if (pendingBytes.addAndGet(frame.remaining()) > MAX_PENDING_BYTES) {
+                LOG.warn("Slow consumer, connection closed: {}", this);
+                close();
+                return;
+            }
+
+            out.add(frame);
+
+            if (writeScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            connections.decrementAndGet();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Close failure: {}", e.toString());
+            }
+
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.close();
+            }
+            subscriptions.clear();
+            out.clear();
+        }
+
+        @Override
+        public String toString() {
+            return "Connection{" +
+                    "channel=" + channel +
+                    ", pendingBytes=" + pendingBytes.get() +
+                    ", subscriptions=" + subscriptions.size() +
+                    '}';
+        }
+
+        // ---------------------------------------------------------------------------------------------------------------
+
+        private class Sink implements PushSink {
+
+            private final int id;
+            private volatile boolean ended = false;
+
+            Sink(int id) {
+                this.id = id;
+            }
+
+            @Override
+            public void push(Object payload) throws IOException {
+                if (ended || closed.get()) {
+                    throw new IOException("subscription closed");
+                }
+
+                send(Frame.encode(Frame.PUSH, id, serializerFactory, payload));
+                pushes.incrementAndGet();
+            }
+
+            @Override
+            public void end(Throwable reason) {
+                ended = true;
+                subscriptions.remove(id);
+                send(Frame.END, id, reason);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package pl.nn44.niorpc.server;
+
+import java.io.IOException;
+
+/**
+ * Destination of pushes of one subscription (PUSH and END frames).<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+public interface PushSink {
+
+    // IOException if subscription or connection is already closed
+    void push(Object payload) throws IOException;
+
+    // reason may be null (normal end)
+    void end(Throwable reason);
+}
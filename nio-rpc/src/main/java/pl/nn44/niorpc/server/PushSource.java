@@ -0,0 +1,14 @@
+package pl.nn44.niorpc.server;
+
+import pl.nn44.niorpc.common.Subscription;
+
+/**
+ * Source of pushes, creates subscription for SUBSCRIBE frame.<br/>
+ * Exception thrown by subscribe() is sent to client as END reason.<br/>
+ * Please check {@link pl.nn44.niorpc} package doc.
+ */
+@FunctionalInterface
+public interface PushSource {
+
+    Subscription subscribe(Object[] args, PushSink sink) throws Exception;
+}
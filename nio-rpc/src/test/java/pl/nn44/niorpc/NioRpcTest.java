@@ -0,0 +1,196 @@
+package pl.nn44.niorpc;
+
+import com.caucho.hessian.io.SerializerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pl.nn44.niorpc.client.NioRpcClient;
+import pl.nn44.niorpc.common.Frame;
+import pl.nn44.niorpc.server.NioRpcServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioRpcTest {
+
+    private static final long AWAIT_MS = 10_000;
+
+    private final SerializerFactory factory = new SerializerFactory();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    private NioRpcServer<Service> server;
+    private NioRpcClient client;
+    private Socket socket;
+
+    public interface Service {
+
+        String hello(String name);
+
+        byte[] echo(byte[] data);
+
+        byte[] bytes(int size);
+
+        void block() throws InterruptedException;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Before
+    public void setUp() throws IOException {
+        Service service = new Service() {
+            @Override
+            public String hello(String name) {
+                return "hello " + name;
+            }
+
+            @Override
+            public byte[] echo(byte[] data) {
+                return data;
+            }
+
+            @Override
+            public byte[] bytes(int size) {
+                return new byte[size];
+            }
+
+            @Override
+            public void block() throws InterruptedException {
+                blocked.await();
+            }
+        };
+
+        server = new NioRpcServer<>(service, Service.class, 1);
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        blocked.countDown();
+
+        if (client != null) {
+            client.close();
+        }
+        if (socket != null) {
+            socket.close();
+        }
+        server.close();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void partialFramesAreAssembled() throws Exception {
+        socket = connect();
+        byte[] first = call(1, "hello", "a");
+        byte[] second = call(2, "hello", "b");
+
+        // first frame byte by byte, then end of first frame with whole second frame in one write
+        OutputStream out = socket.getOutputStream();
+        for (int i = 0; i < first.length - 1; i++) {
+            out.write(first[i]);
+            out.flush();
+            Thread.sleep(1);
+        }
+        out.write(concat(Arrays.copyOfRange(first, first.length - 1, first.length), second));
+        out.flush();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResult(1, "hello a", in);
+        assertResult(2, "hello b", in);
+    }
+
+    @Test
+    public void framesLargerThanReadBuffer() throws Throwable {
+        byte[] data = new byte[16 * NioRpcServer.READ_BUFFER_SIZE + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        client = new NioRpcClient(server.getAddress());
+        Service proxy = client.proxy(Service.class);
+
+        assertArrayEquals(data, proxy.echo(data));
+        assertEquals("hello c", proxy.hello("c")); // read buffer is usable after large frame
+    }
+
+    @Test
+    public void slowConsumerIsClosed() throws Exception {
+        socket = connect();
+        int size = 1024 * 1024;
+        long calls = 4 * NioRpcServer.MAX_PENDING_BYTES / size;
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int id = 0; id < calls; id++) {
+            frames.write(call(id, "bytes", size));
+        }
+        frames.writeTo(socket.getOutputStream()); // results are never read
+
+        awaitNoConnections();
+    }
+
+    @Test
+    public void overloadedWorkersCloseConnection() throws Exception {
+        socket = connect();
+
+        // one call blocks the only worker, the rest fills its queue and overflows it
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int id = 0; id < NioRpcServer.MAX_QUEUED_TASKS + 2; id++) {
+            frames.write(call(id, "block"));
+        }
+        frames.writeTo(socket.getOutputStream());
+
+        awaitNoConnections();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8 * 1024);
+        socket.setSoTimeout((int) AWAIT_MS);
+        socket.connect(server.getAddress());
+        return socket;
+    }
+
+    private byte[] call(int id, String methodName, Object... args) throws IOException {
+        ByteBuffer frame = Frame.encode(Frame.CALL, id, factory, methodName, args);
+        return Arrays.copyOfRange(frame.array(), frame.position(), frame.limit());
+    }
+
+    private void assertResult(int id, Object result, DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte type = in.readByte();
+        int frameId = in.readInt();
+        byte[] payload = new byte[length - Frame.HEADER_BYTES];
+        in.readFully(payload);
+
+        assertEquals(Frame.RESULT, type);
+        assertEquals(id, frameId);
+        assertEquals(result, new Frame(type, frameId, payload).payload(factory).readObject());
+    }
+
+    private void awaitNoConnections() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_MS);
+        while (server.getConnections() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, server.getConnections());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
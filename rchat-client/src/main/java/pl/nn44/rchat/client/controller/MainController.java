@@ -22,17 +22,18 @@ import javafx.stage.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.nn44.rchat.client.fx.RefreshableListViewSkin;
+import pl.nn44.rchat.client.impl.CommandPipe;
 import pl.nn44.rchat.client.impl.CsHandler;
+import pl.nn44.rchat.client.impl.MembersLoader;
 import pl.nn44.rchat.client.model.ClientChannel;
 import pl.nn44.rchat.client.model.ClientUser;
 import pl.nn44.rchat.client.print.PrintInfo;
 import pl.nn44.rchat.client.print.PrintMsg;
 import pl.nn44.rchat.client.util.LocaleHelper;
-import pl.nn44.rchat.protocol.ChatService;
-import pl.nn44.rchat.protocol.command.SimpleCommand;
-import pl.nn44.rchat.protocol.command.StatefulCommand;
-import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.Command.Action;
 import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.HistoryPage;
 import pl.nn44.rchat.protocol.model.User;
 import pl.nn44.rchat.protocol.model.WhatsUp;
 import pl.nn44.rchat.protocol.model.WhatsUp.What;
@@ -56,9 +57,12 @@ public class MainController implements Initializable {
     private static final Pattern SPACE_PATTERN = Pattern.compile(" ");
 
     public static final int WHATS_UP_LONG_POOLING = (int) TimeUnit.MINUTES.toMillis(1);
+    public static final int HISTORY_ON_JOIN = 50;
 
     private final ScheduledExecutorService exs;
     private final CsHandler csh;
+    private final CommandPipe commands;
+    private final MembersLoader members;
     private final LocaleHelper i18n;
     private final Stage stage;
 
@@ -83,6 +87,8 @@ public class MainController implements Initializable {
 
         this.csh = csHandler;
         this.exs = executor;
+        this.commands = new CommandPipe(csHandler, executor);
+        this.members = new MembersLoader(csHandler);
         this.i18n = localeHelper;
         this.stage = primaryStage;
 
@@ -106,6 +112,7 @@ public class MainController implements Initializable {
                     .put(What.IGNORE, this::onSomeIgnore)
                     .put(What.MESSAGE, this::onSomeMessage)
                     .put(What.PRIVY, this::onSomePrivy)
+                    .put(What.RESYNC, this::onSomeResync)
                     .build();
 
     private final Map<String, BiConsumer<String, String[]>> commandsMap =
@@ -222,9 +229,7 @@ public class MainController implements Initializable {
             });
 
             try {
-                Channel[] pChannels = csh.cs()
-                        .channels(csh.token())
-                        .getPayload();
+                Channel[] pChannels = csh.channels();
 
                 for (Channel channel : pChannels) {
                     ClientChannel ctChannel = new ClientChannel(channel);
@@ -278,9 +283,7 @@ public class MainController implements Initializable {
 
     public void listenWhatHappens() {
         try {
-            WhatsUp[] whatsUps = csh.cs()
-                    .whatsUp(csh.token(), WHATS_UP_LONG_POOLING)
-                    .getPayload();
+            WhatsUp[] whatsUps = csh.whatsUp(WHATS_UP_LONG_POOLING);
 
             if (Thread.currentThread().isInterrupted()) {
                 throw new InterruptedException();
@@ -366,7 +369,7 @@ public class MainController implements Initializable {
         String pWhoPart = params[1];
 
         ClientChannel ctChannel = channelsMap.get(pChannel);
-        ctChannel.getUsers().removeIf(u -> u.getUsername().equals(pWhoPart));
+        ctChannel.removeUser(pWhoPart);
     }
 
     public void onSomeTopic(WhatsUp whatsUp) {
@@ -395,7 +398,7 @@ public class MainController implements Initializable {
         // String pWhoKickedBy = params[2];
 
         ClientChannel ctChannel = channelsMap.get(pChannel);
-        ctChannel.getUsers().removeIf(u -> u.getUsername().equals(pWhoKicked));
+        ctChannel.removeUser(pWhoKicked);
 
         // special case: i was kicked
         // kicked by admin - server removed me from pChannel
@@ -514,6 +517,23 @@ public class MainController implements Initializable {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    public void onSomeResync(WhatsUp whatsUp) {
+        LOG.info("{} {}", "onSomeResync", whatsUp);
+
+        // LocalDateTime time = whatsUp.getTime();
+        String[] params = whatsUp.getParams();
+        String pChannel = params[0];
+
+        // news of channel were lost (too slow reading), members may be out of date
+        ClientChannel ctChannel = channelsMap.get(pChannel);
+        if (ctChannel.isJoin()) {
+            infoAboutMessage(whatsUp, false);
+            exs.submit(() -> reloadMembers(ctChannel));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     public void initChannelChangeListener() {
         channels.getSelectionModel().selectedItemProperty().addListener(
                 (observable, oldValue, newValue)
@@ -634,8 +654,13 @@ public class MainController implements Initializable {
                     channel.setJoin(true);
                     channel.clear();
                     channel.update(pChannel);
+                    showHistory(channel, pChannel);
                     onSingleClickedChannels(channel);
 
+                    if (pChannel.getMembersNext() != null) {
+                        exs.submit(() -> loadMembers(channel, pChannel));
+                    }
+
                     infoAboutMessage(
                             WhatsUp.create(What.JOIN, channel.getName(), csh.getUsername()),
                             false
@@ -675,6 +700,45 @@ public class MainController implements Initializable {
         }
     }
 
+    // messages sent before the join, put before news which came meanwhile
+    private void showHistory(ClientChannel channel, Channel pChannel) {
+        try {
+            HistoryPage page = csh.cs()
+                    .history(csh.token(), channel.getName(), pChannel.getHistoryId(), HISTORY_ON_JOIN)
+                    .getPayload();
+
+            List<Text> nodes = new ArrayList<>();
+            for (WhatsUp message : page.getMessages()) {
+                String[] params = message.getParams();
+                nodes.addAll(new PrintMsg(message.getTime(), params[1], params[2]).toNodes());
+            }
+
+            channel.getMessages().addAll(0, nodes);
+
+        } catch (Exception e) {
+            LOG.warn("showHistory {} failed", channel.getName(), e);
+        }
+    }
+
+    // rest of members (join gives the first page only)
+    private void loadMembers(ClientChannel channel, Channel pChannel) {
+        try {
+            members.load(channel, pChannel);
+
+        } catch (Exception e) {
+            LOG.warn("loadMembers {} failed", channel.getName(), e);
+        }
+    }
+
+    private void reloadMembers(ClientChannel channel) {
+        try {
+            members.reload(channel);
+
+        } catch (Exception e) {
+            LOG.warn("reloadMembers {} failed", channel.getName(), e);
+        }
+    }
+
 // ---------------------------------------------------------------------------------------------------------------
 
     private void initMessagesScrollListener() {
@@ -721,15 +785,11 @@ public class MainController implements Initializable {
             exs.submit(() -> onAnyCmd(channel.getName(), snapshot));
 
         } else {
-            exs.submit(() -> {
-                try {
-                    csh.cs().message(csh.token(), channel.getName(), snapshot);
-
-                } catch (ChatException e) {
-                    String failStatus = r(i18n.mapError("message", e));
-                    fleetingStatusAsync(failStatus);
-                }
-            });
+            // messages typed while previous one is being sent go together (ChatService.batch)
+            commands.submit(
+                    Command.simple(Action.MESSAGE, channel.getName(), snapshot),
+                    e -> fleetingStatusAsync(r(i18n.mapError("message", e)))
+            );
         }
     }
 
@@ -750,24 +810,22 @@ public class MainController implements Initializable {
         }
     }
 
-    public void onSimpleCommand(String channel, String[] tokens, String resMap, SimpleCommand sc) {
+    public void onSimpleCommand(String channel, String[] tokens, String resMap, Action action) {
         if (tokens.length < 2) {
             String failStatus = r(i18n.get("cmd." + resMap + ".syntax"));
             fleetingStatusAsync(failStatus);
             return;
         }
 
-        try {
-            String param = Stream.of(tokens).skip(1).collect(Collectors.joining(" "));
-            sc.accept(csh.token(), channel, param);
+        String param = Stream.of(tokens).skip(1).collect(Collectors.joining(" "));
 
-        } catch (Exception e) {
-            String failStatus = r(i18n.mapError(resMap, e));
-            fleetingStatusAsync(failStatus);
-        }
+        commands.submit(
+                Command.simple(action, channel, param),
+                e -> fleetingStatusAsync(r(i18n.mapError(resMap, e)))
+        );
     }
 
-    public void onStateCommand(String channel, String[] tokens, String resMap, StatefulCommand sc) {
+    public void onStateCommand(String channel, String[] tokens, String resMap, Action action) {
         if (tokens.length < 3
                 || !(tokens[2].equals("on") || tokens[2].equals("off"))) {
 
@@ -776,50 +834,37 @@ public class MainController implements Initializable {
             return;
         }
 
-        try {
-            sc.accept(csh.token(), channel, tokens[1], tokens[2].equals("on"));
-
-        } catch (Exception e) {
-            String failStatus = r(i18n.mapError(resMap, e));
-            fleetingStatusAsync(failStatus);
-        }
+        commands.submit(
+                Command.stateful(action, channel, tokens[1], tokens[2].equals("on")),
+                e -> fleetingStatusAsync(r(i18n.mapError(resMap, e)))
+        );
     }
 
 // ---------------------------------------------------------------------------------------------------------------
 
     public void onCmdTopic(String channel, String[] tokens) {
         LOG.info("{} {} {}", "onCmdTopic", channel, tokens);
-
-        ChatService cs = csh.cs();
-        onSimpleCommand(channel, tokens, "topic", cs::topic);
+        onSimpleCommand(channel, tokens, "topic", Action.TOPIC);
     }
 
     public void onCmdKick(String channel, String[] tokens) {
         LOG.info("{} {} {}", "onCmdKick", channel, tokens);
-
-        ChatService cs = csh.cs();
-        onSimpleCommand(channel, tokens, "kick", cs::kick);
+        onSimpleCommand(channel, tokens, "kick", Action.KICK);
     }
 
     public void onCmdBan(String channel, String[] tokens) {
         LOG.info("{} {} {}", "onCmdBan", channel, tokens);
-
-        ChatService cs = csh.cs();
-        onStateCommand(channel, tokens, "ban", cs::ban);
+        onStateCommand(channel, tokens, "ban", Action.BAN);
     }
 
     public void onCmdAdmin(String channel, String[] tokens) {
         LOG.info("{} {} {}", "onCmdAdmin", channel, tokens);
-
-        ChatService cs = csh.cs();
-        onStateCommand(channel, tokens, "admin", cs::admin);
+        onStateCommand(channel, tokens, "admin", Action.ADMIN);
     }
 
     public void onCmdIgnore(String channel, String[] tokens) {
         LOG.info("{} {} {}", "onCmdIgnore", channel, tokens);
-
-        ChatService cs = csh.cs();
-        onStateCommand(channel, tokens, "ignore", cs::ignore);
+        onStateCommand(channel, tokens, "ignore", Action.IGNORE);
     }
 
 // ---------------------------------------------------------------------------------------------------------------
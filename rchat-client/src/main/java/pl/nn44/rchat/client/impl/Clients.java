@@ -6,25 +6,34 @@ import com.caucho.hessian.client.HessianConnectionFactory;
 import com.caucho.hessian.client.HessianProxyFactory;
 import com.caucho.hessian.client.HessianURLConnectionFactory;
 import com.google.common.base.CharMatcher;
+import org.apache.xmlrpc.XmlRpcRequest;
 import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
 import org.apache.xmlrpc.common.TypeConverterFactoryImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.remoting.caucho.BurlapProxyFactoryBean;
 import org.springframework.remoting.caucho.HessianProxyFactoryBean;
+import pl.nn44.niorpc.client.NioRpcClient;
+import pl.nn44.rchat.protocol.RequestId;
 import pl.nn44.xmlrpc.client.AnyXmlRpcTransport;
 import pl.nn44.xmlrpc.client.ClientFactoryFix;
 import pl.nn44.xmlrpc.client.FaultRevMapper;
 import pl.nn44.xmlrpc.common.AnyTypeFactory;
+import pl.nn44.xmlrpc.common.BufferedXmlWriterFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.Properties;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class Clients<T> {
 
@@ -32,6 +41,8 @@ public class Clients<T> {
 
     private final Class<T> serviceInterface;
     private final Function<String, String> url;
+    private final InetSocketAddress tcpAddress;
+    private final Supplier<String> requestIds = RequestId.generator(new SecureRandom()); // see RequestId.HEADER
 
     // ---------------------------------------------------------------------------------------------------------------
 
@@ -46,6 +57,11 @@ public class Clients<T> {
                 CharMatcher.is('/').trimLeadingFrom(prop.getProperty(resource))
         );
 
+        this.tcpAddress = new InetSocketAddress(
+                prop.getProperty("server.ip"),
+                Integer.parseInt(prop.getProperty("rpc.tcp.port"))
+        );
+
         LOG.debug("{} instance created.", getClass().getSimpleName());
     }
 
@@ -61,6 +77,7 @@ public class Clients<T> {
             public HessianConnection open(URL url) throws IOException {
                 HessianConnection hc = super.open(url);
                 hc.addHeader("User-Agent", "CT-Hessian");
+                hc.addHeader(RequestId.HEADER, requestIds.get());
                 return hc;
             }
         };
@@ -92,6 +109,7 @@ public class Clients<T> {
             protected URLConnection openConnection(URL url) throws IOException {
                 URLConnection uc = super.openConnection(url);
                 uc.setRequestProperty("User-Agent", "CT-Burlap");
+                uc.setRequestProperty(RequestId.HEADER, requestIds.get());
                 return uc;
             }
         };
@@ -130,8 +148,15 @@ public class Clients<T> {
             XmlRpcClient rpcClient = new XmlRpcClient();
             rpcClient.setConfig(config);
             rpcClient.setTypeFactory(new AnyTypeFactory(rpcClient)); // !! [axe-180254 or [remove statement]]
+            rpcClient.setXmlWriterFactory(new BufferedXmlWriterFactory()); // [axe-180254 or [remove statement]]
             rpcClient.setTransportFactory(
-                    () -> new AnyXmlRpcTransport(rpcClient, errorMapper)
+                    () -> new AnyXmlRpcTransport(rpcClient, errorMapper) {
+                        @Override
+                        protected void initHttpHeaders(XmlRpcRequest request) throws XmlRpcClientException {
+                            super.initHttpHeaders(request);
+                            setRequestHeader(RequestId.HEADER, requestIds.get());
+                        }
+                    }
             ); // !! [axe-180254 or [remove statement]]
 
             Object proxy = ClientFactoryFix.newInstance( // axe-180254
@@ -154,11 +179,34 @@ public class Clients<T> {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    // connected on first call; proxy of serviceInterface by NioRpcClient.proxy(clazz)
+    public NioRpcClient tcp() {
+        NioRpcClient client = new NioRpcClient(tcpAddress);
+        client.setRequestIds(requestIds);
+
+        LOG.debug("NioRpcClient instance created.");
+        return client;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // not connected yet, see PushClient.connect()
+    public PushClient push(String token) {
+        String pushUrl = url.apply("rpc.push").replaceFirst("^http", "ws");
+        PushClient client = new PushClient(URI.create(pushUrl), token);
+
+        LOG.debug("PushClient instance created.");
+        return client;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     public enum Cs {
 
         Hessian,
         Burlap,
-        XmlRpc;
+        XmlRpc,
+        Tcp;
 
         public int i() {
             return ordinal();
@@ -0,0 +1,108 @@
+package pl.nn44.rchat.client.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.CommandResult;
+import pl.nn44.rchat.protocol.exception.ChatException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Sends commands in submit order, one call at a time.<br/>
+ * Commands submitted while a call is in progress are sent together by one ChatService.batch call.
+ */
+public class CommandPipe {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommandPipe.class);
+
+    private final CsHandler csh;
+    private final Executor executor;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public CommandPipe(CsHandler csh, Executor executor) {
+        this.csh = csh;
+        this.executor = executor;
+
+        LOG.debug("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // onFailure: ChatException of the command, or exception of the whole call
+    public void submit(Command command, Consumer<Exception> onFailure) {
+        pending.add(new Pending(command, onFailure));
+        executor.execute(this::flush);
+    }
+
+    private void flush() {
+        while (!pending.isEmpty() && sending.compareAndSet(false, true)) {
+            try {
+                List<Pending> batch = new ArrayList<>();
+                for (Pending p; batch.size() < Command.MAX_BATCH && (p = pending.poll()) != null; ) {
+                    batch.add(p);
+                }
+
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+
+            } finally {
+                sending.set(false);
+            }
+        }
+    }
+
+    private void send(List<Pending> batch) {
+        if (batch.size() == 1) {
+            Pending single = batch.get(0);
+
+            try {
+                single.command.execute(csh.cs(), csh.token());
+            } catch (Exception e) {
+                single.onFailure.accept(e);
+            }
+
+            return;
+        }
+
+        Command[] commands = batch.stream()
+                .map(p -> p.command)
+                .toArray(Command[]::new);
+
+        try {
+            CommandResult[] results = csh.cs().batch(csh.token(), commands).getPayload();
+
+            for (int i = 0; i < results.length; i++) {
+                if (!results[i].isOk()) {
+                    batch.get(i).onFailure.accept(new ChatException(results[i].getReason()));
+                }
+            }
+
+        } catch (Exception e) {
+            batch.forEach(p -> p.onFailure.accept(e));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Pending {
+
+        private final Command command;
+        private final Consumer<Exception> onFailure;
+
+        Pending(Command command, Consumer<Exception> onFailure) {
+            this.command = command;
+            this.onFailure = onFailure;
+        }
+    }
+}
@@ -2,10 +2,15 @@ package pl.nn44.rchat.client.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pl.nn44.niorpc.client.NioRpcClient;
+import pl.nn44.niorpc.common.Subscription;
 import pl.nn44.rchat.client.util.PropLoader;
 import pl.nn44.rchat.protocol.ChatService;
 import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.ChannelList;
 import pl.nn44.rchat.protocol.model.Response;
+import pl.nn44.rchat.protocol.model.WhatsUp;
 import pl.nn44.rchat.protocol.xmlrpc.FaultRevMapperImpl;
 
 import java.util.Properties;
@@ -14,8 +19,14 @@ public class CsHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(CsHandler.class);
 
-    private final ChatService[] chatServices = new ChatService[3];
+    private final ChatService[] chatServices = new ChatService[Clients.Cs.values().length];
+    private Clients<ChatService> clients = null;
+    private NioRpcClient tcpClient = null;
     private boolean init = false;
+    private boolean pushEnabled = false;
+    private volatile PushClient push = null;
+    private volatile TcpNews tcpNews = null;
+    private volatile ChannelList channelList = null; // last known, kept between logins
     private String username = null;
     private String token = null;
     private int current = 0;
@@ -33,12 +44,16 @@ public class CsHandler {
             init = true;
 
             Properties prop = PropLoader.get();
-            Clients<ChatService> clients = new Clients<>(prop, ChatService.class);
+            clients = new Clients<>(prop, ChatService.class);
+            pushEnabled = Boolean.parseBoolean(prop.getProperty("news.push"));
             FaultRevMapperImpl faultRevMapper = new FaultRevMapperImpl();
 
             chatServices[Clients.Cs.Hessian.i()] = clients.hessian();
             chatServices[Clients.Cs.Burlap.i()] = clients.burlap();
             chatServices[Clients.Cs.XmlRpc.i()] = clients.xmlRpc(faultRevMapper);
+
+            tcpClient = clients.tcp();
+            chatServices[Clients.Cs.Tcp.i()] = tcpClient.proxy(ChatService.class);
         }
     }
 
@@ -82,6 +97,90 @@ public class CsHandler {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    // channels are sent by server only if the list changed since last call
+    public Channel[] channels() throws ChatException {
+        ChannelList known = this.channelList;
+        int knownVersion = known != null ? known.getVersion() : 0;
+
+        ChannelList list = cs().channelList(token, knownVersion).getPayload();
+
+        if (list.isModified()) {
+            this.channelList = list;
+            known = list;
+        }
+
+        return known.getChannels();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // news pushed by server (news.push=true), by tcp subscription (Tcp mode) or whatsUp long-poll of current ChatService
+    public WhatsUp[] whatsUp(int longPoolingTimeoutMs) throws Exception {
+        PushClient push = this.push;
+
+        if (pushEnabled && push == null) {
+            push = connectPush();
+            this.push = push;
+        }
+
+        if (push != null) {
+            return push.whatsUp(longPoolingTimeoutMs);
+        }
+
+        if (current == Clients.Cs.Tcp.i()) {
+            return tcpWhatsUp(longPoolingTimeoutMs);
+        }
+
+        closeTcpNews();
+        return cs().whatsUp(token, longPoolingTimeoutMs).getPayload();
+    }
+
+    // subscription is made again after failure (thrown once)
+    private WhatsUp[] tcpWhatsUp(int timeoutMs) throws Exception {
+        TcpNews tcpNews = this.tcpNews;
+
+        if (tcpNews == null) {
+            NewsQueue queue = new NewsQueue();
+            Subscription subscription = tcpClient.subscribe(new Object[]{token}, queue);
+            tcpNews = new TcpNews(queue, subscription);
+            this.tcpNews = tcpNews;
+        }
+
+        try {
+            return tcpNews.queue.whatsUp(timeoutMs);
+        } catch (Exception e) {
+            closeTcpNews();
+            throw e;
+        }
+    }
+
+    private void closeTcpNews() {
+        TcpNews tcpNews = this.tcpNews;
+
+        if (tcpNews != null) {
+            this.tcpNews = null;
+            tcpNews.subscription.close();
+        }
+    }
+
+    private PushClient connectPush() {
+        PushClient push = clients.push(token);
+
+        try {
+            push.connect();
+            LOG.info("push connected.");
+            return push;
+
+        } catch (Exception e) {
+            LOG.warn("push not connected, long-polls are used: {}", e.toString());
+            pushEnabled = false;
+            push.close();
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     public String getUsername() {
         return username;
     }
@@ -104,6 +203,14 @@ public class CsHandler {
 
     public void logout() {
         try {
+            PushClient push = this.push;
+            if (push != null) {
+                this.push = null;
+                push.close();
+            }
+
+            closeTcpNews();
+
             String token = this.token;
             if (token != null) {
                 this.token = null;
@@ -113,4 +220,17 @@ public class CsHandler {
             LOG.warn("logout()", e);
         }
     }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class TcpNews {
+
+        private final NewsQueue queue;
+        private final Subscription subscription;
+
+        TcpNews(NewsQueue queue, Subscription subscription) {
+            this.queue = queue;
+            this.subscription = subscription;
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package pl.nn44.rchat.client.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.client.model.ClientChannel;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.MemberDelta;
+import pl.nn44.rchat.protocol.model.MemberPage;
+
+/**
+ * Loads members of a joined channel which were not given by ChatService.join (next pages).<br/>
+ * Changes made while loading are applied at the end by ChatService.memberDeltas (since version of the join).
+ */
+public class MembersLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MembersLoader.class);
+
+    public static final int PAGE_LIMIT = 512;
+    public static final int MAX_RELOADS = 2;
+
+    private final CsHandler csh;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public MembersLoader(CsHandler csh) {
+        this.csh = csh;
+
+        LOG.debug("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // blocking, stops if the channel is left (or the caller is not on channel anymore)
+    public void load(ClientChannel channel, Channel joined) throws Exception {
+        load(channel, joined.getMembersNext(), joined.getMembersVersion());
+    }
+
+    // blocking, all members are loaded again from the first page (e.g. news of channel were lost)
+    public void reload(ClientChannel channel) throws Exception {
+        try {
+            MemberPage first = csh.cs()
+                    .members(csh.token(), channel.getName(), null, PAGE_LIMIT)
+                    .getPayload();
+
+            channel.resetUsers(first.getUsers());
+            load(channel, first.getNext(), first.getVersion());
+
+        } catch (ChatException e) {
+            if (e.getReason() == ChatException.Reason.NO_PERMISSION) {
+                return; // channel left/kicked meanwhile
+            }
+            throw e;
+        }
+    }
+
+    private void load(ClientChannel channel, String next, int version) throws Exception {
+        for (int reloads = 0; reloads <= MAX_RELOADS; reloads++) {
+            try {
+                while (next != null && channel.isJoin()) {
+                    MemberPage page = csh.cs()
+                            .members(csh.token(), channel.getName(), next, PAGE_LIMIT)
+                            .getPayload();
+
+                    channel.addUsers(page.getUsers());
+                    next = page.getNext();
+                }
+
+                if (!channel.isJoin()) {
+                    return;
+                }
+
+                MemberDelta delta = csh.cs()
+                        .memberDeltas(csh.token(), channel.getName(), version)
+                        .getPayload();
+
+                if (!delta.isReset()) {
+                    channel.addUsers(delta.getJoined());
+                    channel.removeUsers(delta.getLeft());
+                    return;
+                }
+
+                // too many changes while loading: members are loaded again from the first page
+                LOG.debug("{} members changed too much, reloading: {}", channel.getName(), delta);
+                MemberPage first = csh.cs()
+                        .members(csh.token(), channel.getName(), null, PAGE_LIMIT)
+                        .getPayload();
+
+                channel.resetUsers(first.getUsers());
+                next = first.getNext();
+                version = first.getVersion();
+
+            } catch (ChatException e) {
+                if (e.getReason() == ChatException.Reason.NO_PERMISSION) {
+                    return; // channel left/kicked meanwhile
+                }
+                throw e;
+            }
+        }
+
+        LOG.warn("{} members not loaded completely, too many changes.", channel.getName());
+    }
+}
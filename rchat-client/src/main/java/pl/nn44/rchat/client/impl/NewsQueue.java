@@ -0,0 +1,83 @@
+package pl.nn44.rchat.client.impl;
+
+import pl.nn44.niorpc.client.PushListener;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushed news (one WhatsUp[] per push), taken by whatsUp(timeout) as if they were long-polled.<br/>
+ * Filled by websocket push (PushClient) or by tcp subscription (as nio-rpc PushListener).
+ */
+public class NewsQueue implements PushListener {
+
+    private static final WhatsUp[] CLOSED = new WhatsUp[0];
+
+    private final BlockingQueue<WhatsUp[]> frames = new LinkedBlockingQueue<>();
+    private volatile Exception failure = null;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void offer(WhatsUp[] news) {
+        frames.offer(news);
+    }
+
+    // failure: ChatException if session is no longer valid, IOException otherwise
+    public void fail(Exception failure) {
+        if (this.failure == null) {
+            this.failure = failure;
+        }
+
+        frames.offer(CLOSED);
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    // news of one push, empty array on timeout
+    public WhatsUp[] whatsUp(int timeoutMs) throws ChatException, IOException, InterruptedException {
+        checkFailure();
+
+        WhatsUp[] news = frames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+
+        if (news == CLOSED) {
+            checkFailure();
+        }
+
+        return news != null ? news : new WhatsUp[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void onPush(Object payload) {
+        offer((WhatsUp[]) payload);
+    }
+
+    @Override
+    public void onEnd(Throwable reason) {
+        if (reason instanceof ChatException || reason instanceof IOException) {
+            fail((Exception) reason);
+        } else {
+            fail(new IOException("push ended: " + reason, reason));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void checkFailure() throws ChatException, IOException {
+        Exception failure = this.failure;
+
+        if (failure instanceof ChatException) {
+            throw (ChatException) failure;
+        }
+        if (failure != null) {
+            throw (IOException) failure;
+        }
+    }
+}
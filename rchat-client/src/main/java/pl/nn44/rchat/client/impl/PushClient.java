@@ -0,0 +1,146 @@
+package pl.nn44.rchat.client.impl;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.SerializerFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver of news pushed by server (/push websocket), used instead of whatsUp long-polls.<br/>
+ * Sends session token once, then heartbeats which keep the session alive.<br/>
+ * Frames (Hessian2 encoded WhatsUp[]) are queued in NewsQueue and taken by whatsUp(timeout).
+ */
+public class PushClient extends Endpoint implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PushClient.class);
+
+    public static final long HEARTBEAT_SECONDS = 60;
+
+    private final URI uri;
+    private final String token;
+    private final SerializerFactory serializerFactory = new SerializerFactory();
+    private final NewsQueue news = new NewsQueue();
+    private final ScheduledExecutorService heartbeats;
+
+    private volatile Session session = null;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public PushClient(URI uri, String token) {
+        this.uri = uri;
+        this.token = token;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("push-heartbeat")
+                        .setDaemon(true)
+                        .build()
+        );
+
+        LOG.debug("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void connect() throws IOException, DeploymentException {
+        ContainerProvider.getWebSocketContainer().connectToServer(
+                this,
+                ClientEndpointConfig.Builder.create().build(),
+                uri
+        );
+    }
+
+    // news of one frame, empty array on timeout
+    public WhatsUp[] whatsUp(int timeoutMs) throws ChatException, IOException, InterruptedException {
+        return news.whatsUp(timeoutMs);
+    }
+
+    @Override
+    public void close() {
+        heartbeats.shutdownNow();
+
+        Session session = this.session;
+        if (session != null) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                LOG.debug("push close: {}", e.toString());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        this.session = session;
+
+        session.addMessageHandler(ByteBuffer.class, this::onFrame);
+        session.getAsyncRemote().sendText(token);
+
+        heartbeats.scheduleAtFixedRate(
+                () -> session.getAsyncRemote().sendText("sync"),
+                HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS
+        );
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        heartbeats.shutdownNow();
+
+        news.fail(toFailure(closeReason));
+        LOG.debug("push closed: {}", closeReason);
+    }
+
+    @Override
+    public void onError(Session session, Throwable thr) {
+        LOG.warn("push error: {}", thr.toString());
+    }
+
+    private void onFrame(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        try {
+            Hessian2Input input = new Hessian2Input(new ByteArrayInputStream(bytes));
+            input.setSerializerFactory(serializerFactory);
+            news.offer((WhatsUp[]) input.readObject(WhatsUp[].class));
+            input.close();
+
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("push frame not decoded: {}", e.toString());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // close reason phrase is ChatException.Reason name if session is no longer valid
+    private static Exception toFailure(CloseReason closeReason) {
+        String phrase = closeReason.getReasonPhrase();
+
+        for (ChatException.Reason reason : ChatException.Reason.values()) {
+            if (reason.name().equals(phrase)) {
+                return new ChatException(reason);
+            }
+        }
+
+        return new IOException("push closed: " + closeReason);
+    }
+}
@@ -4,11 +4,17 @@ import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.text.Text;
-import pl.nn44.rchat.client.util.ListUtil;
 import pl.nn44.rchat.protocol.model.Channel;
 import pl.nn44.rchat.protocol.model.User;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public class ClientChannel {
 
@@ -46,11 +52,7 @@ public class ClientChannel {
 
     public void update(Channel channel) {
         topic.setValue(channel.getTopic());
-
-        users.clear();
-        for (User user : channel.getUsers()) {
-            addUser(new ClientUser(user));
-        }
+        resetUsers(channel.getUsers());
     }
 
     public void clear() {
@@ -89,9 +91,68 @@ public class ClientChannel {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    // users are sorted by username, user already on list is not added again
     public void addUser(ClientUser cu) {
         synchronized (sync) {
-            ListUtil.sortedAdd(users, cu, ClientUser.COMPARATOR);
+            int index = Collections.binarySearch(users, cu, ClientUser.COMPARATOR);
+
+            if (index < 0) {
+                users.add(-index - 1, cu);
+            }
+        }
+    }
+
+    // merged at once (one list change instead of change per user), used by members pages
+    public void addUsers(User[] added) {
+        if (added.length == 0) {
+            return;
+        }
+
+        ClientUser[] sorted = Stream.of(added)
+                .map(ClientUser::new)
+                .sorted(ClientUser.COMPARATOR)
+                .toArray(ClientUser[]::new);
+
+        synchronized (sync) {
+            List<ClientUser> merged = new ArrayList<>(users.size() + sorted.length);
+            int i = 0;
+            int j = 0;
+
+            while (i < users.size() || j < sorted.length) {
+                int cmp = i == users.size() ? 1
+                        : j == sorted.length ? -1
+                        : ClientUser.COMPARATOR.compare(users.get(i), sorted[j]);
+
+                if (cmp <= 0) {
+                    merged.add(users.get(i++));
+                    j += cmp == 0 ? 1 : 0; // already on list
+                } else {
+                    merged.add(sorted[j++]);
+                }
+            }
+
+            users.setAll(merged);
+        }
+    }
+
+    public void resetUsers(User[] users) {
+        synchronized (sync) {
+            this.users.clear();
+            addUsers(users);
+        }
+    }
+
+    public void removeUser(String username) {
+        synchronized (sync) {
+            users.removeIf(u -> u.getUsername().equals(username));
+        }
+    }
+
+    public void removeUsers(String[] usernames) {
+        Set<String> removed = new HashSet<>(Arrays.asList(usernames));
+
+        synchronized (sync) {
+            users.removeIf(u -> removed.contains(u.getUsername()));
         }
     }
 
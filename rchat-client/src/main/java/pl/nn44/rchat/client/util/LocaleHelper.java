@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.remoting.RemoteAccessException;
 import pl.nn44.rchat.protocol.exception.ChatException;
 
+import java.io.UncheckedIOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.text.MessageFormat;
 import java.util.ResourceBundle;
@@ -54,7 +55,7 @@ public class LocaleHelper {
         } else {
             LOG.error("Exception [{}] {}", map.toUpperCase(), t);
 
-            if (t instanceof RemoteAccessException || t instanceof XmlRpcException) {
+            if (t instanceof RemoteAccessException || t instanceof XmlRpcException || t instanceof UncheckedIOException) {
                 return res.getString("any.remote-conn-error");
             } else {
                 return res.getString("any.server-impl-failure");
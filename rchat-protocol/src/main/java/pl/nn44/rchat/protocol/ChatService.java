@@ -1,8 +1,14 @@
 package pl.nn44.rchat.protocol;
 
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.CommandResult;
 import pl.nn44.rchat.protocol.exception.CeReasons;
 import pl.nn44.rchat.protocol.exception.ChatException;
 import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.ChannelList;
+import pl.nn44.rchat.protocol.model.HistoryPage;
+import pl.nn44.rchat.protocol.model.MemberDelta;
+import pl.nn44.rchat.protocol.model.MemberPage;
 import pl.nn44.rchat.protocol.model.Response;
 import pl.nn44.rchat.protocol.model.WhatsUp;
 import pl.nn44.rchat.protocol.model.WuFeedback;
@@ -13,65 +19,102 @@ import static pl.nn44.rchat.protocol.exception.ChatException.Reason.*;
 
 public interface ChatService {
 
-    @CeReasons({ALREADY_LOGGED_IN, GIVEN_BAD_USERNAME, GIVEN_BAD_PASSWORD})
+    @CeReasons({ALREADY_LOGGED_IN, GIVEN_BAD_USERNAME, GIVEN_BAD_PASSWORD, SERVER_BUSY})
     @WuFeedback(true /*NOTHING*/)
     Response<String> login(String username, @Nullable String password) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION})
+    @CeReasons({GIVEN_BAD_SESSION, SERVER_BUSY})
     @WuFeedback(true /*NOTHING*/)
     Response<?> logout(String session) throws ChatException;
 
     // ---------------------------------------------------------------------------------------------------------------
 
-    @CeReasons({GIVEN_BAD_SESSION})
+    @CeReasons({GIVEN_BAD_SESSION, SERVER_BUSY})
     @WuFeedback(false)
     Response<Channel[]> channels(String session) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_PASSWORD, UNWELCOME_BANNED})
+    // channels if list was changed since knownVersion (0 = not known), not modified list otherwise
+    @CeReasons({GIVEN_BAD_SESSION, SERVER_BUSY})
+    @WuFeedback(false)
+    Response<ChannelList> channelList(String session, int knownVersion) throws ChatException;
+
+    // users of the channel are the first members page only (see Channel.getMembersNext)
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_PASSWORD, UNWELCOME_BANNED, SERVER_BUSY})
     @WuFeedback(false)
     Response<Channel> join(String session, String channel, @Nullable String password) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, SERVER_BUSY})
     @WuFeedback(false)
     Response<?> part(String session, String channel, String unused) throws ChatException;
 
+    // members ordered by username, after cursor (null = from first), at most limit (capped by server)
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
+    @WuFeedback(false)
+    Response<MemberPage> members(String session, String channel, @Nullable String after, int limit)
+            throws ChatException;
+
+    // members joined/left since sinceVersion (version of a page/delta), reset delta if it is too old
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
+    @WuFeedback(false)
+    Response<MemberDelta> memberDeltas(String session, String channel, int sinceVersion) throws ChatException;
+
     // ---------------------------------------------------------------------------------------------------------------
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> topic(String session, String channel, String text) throws ChatException;
 
     // ---------------------------------------------------------------------------------------------------------------
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> kick(String session, String channel, String username) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> ban(String session, String channel, String username, boolean state) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> admin(String session, String channel, String username, boolean state) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_USERNAME, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_USERNAME, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> ignore(String session, String unused, String username, boolean state) throws ChatException;
 
     // ---------------------------------------------------------------------------------------------------------------
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> message(String session, String channel, String text) throws ChatException;
 
-    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION})
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, GIVEN_BAD_USERNAME, NO_PERMISSION, SERVER_BUSY})
     @WuFeedback(true)
     Response<?> privy(String session, String username, String text) throws ChatException;
 
+    // messages of channel older than beforeId (0 = newest), at most limit (capped by server);
+    // messages of users ignored by the caller are skipped
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
+    @WuFeedback(false)
+    Response<HistoryPage> history(String session, String channel, int beforeId, int limit) throws ChatException;
+
+    // newest messages of channel containing all words of query, at most limit (capped by server);
+    // more in page: older messages may match; messages of users ignored by the caller are skipped
+    @CeReasons({GIVEN_BAD_SESSION, GIVEN_BAD_CHANNEL, NO_PERMISSION, SERVER_BUSY})
+    @WuFeedback(false)
+    Response<HistoryPage> search(String session, String channel, String query, int limit) throws ChatException;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // commands are executed in order, result of each is returned (a failed command does not stop next ones);
+    // commands above Command.MAX_BATCH are not executed (SERVER_BUSY result)
+    @CeReasons({GIVEN_BAD_SESSION, SERVER_BUSY})
+    @WuFeedback(true)
+    Response<CommandResult[]> batch(String session, Command[] commands) throws ChatException;
+
     // ---------------------------------------------------------------------------------------------------------------
 
-    @CeReasons({GIVEN_BAD_SESSION})
+    @CeReasons({GIVEN_BAD_SESSION, SERVER_BUSY})
     @WuFeedback(false)
     Response<WhatsUp[]> whatsUp(String session, int longPoolingTimeoutMs) throws ChatException;
 
@@ -0,0 +1,26 @@
+package pl.nn44.rchat.protocol;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Correlation id of request, sent by client in HEADER (http transports) or CALL frame (tcp).<br/>
+ * Server logs it with timing of slow requests (and in MDC while the request is executed).
+ */
+public final class RequestId {
+
+    public static final String HEADER = "X-Request-Id";
+    public static final int MAX_LENGTH = 64;
+
+    private RequestId() {
+    }
+
+    // ids as "<random client prefix>-<sequence>", thread-safe
+    public static Supplier<String> generator(Random random) {
+        String prefix = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+        AtomicLong sequence = new AtomicLong();
+
+        return () -> prefix + '-' + sequence.incrementAndGet();
+    }
+}
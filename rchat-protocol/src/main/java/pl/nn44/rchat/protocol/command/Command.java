@@ -0,0 +1,120 @@
+package pl.nn44.rchat.protocol.command;
+
+import com.google.common.base.MoreObjects;
+import pl.nn44.rchat.protocol.ChatService;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.Response;
+
+import java.io.Serializable;
+
+/**
+ * One "simple" or "stateful" call of ChatService as data, used by ChatService.batch.<br/>
+ * Params are passed as to the called method: (session, param1, param2[, state]).
+ */
+public class Command implements Serializable {
+
+    private static final long serialVersionUID = 3150726471380262361L;
+
+    public static final int MAX_BATCH = 64;
+
+    private final Action action;
+    private final String param1;
+    private final String param2;
+    private final boolean state;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Command(Action action, String param1, String param2, boolean state) {
+        this.action = action;
+        this.param1 = param1;
+        this.param2 = param2;
+        this.state = state;
+    }
+
+    public static Command simple(Action action, String param1, String param2) {
+        return new Command(action, param1, param2, false);
+    }
+
+    public static Command stateful(Action action, String param1, String param2, boolean state) {
+        return new Command(action, param1, param2, state);
+    }
+
+    protected Command() {
+        this.action = null;
+        this.param1 = null;
+        this.param2 = null;
+        this.state = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getParam1() {
+        return param1;
+    }
+
+    public String getParam2() {
+        return param2;
+    }
+
+    public boolean isState() {
+        return state;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Response<?> execute(ChatService cs, String session) throws ChatException {
+        switch (action) {
+            case JOIN:
+                return cs.join(session, param1, param2);
+            case PART:
+                return cs.part(session, param1, param2);
+            case TOPIC:
+                return cs.topic(session, param1, param2);
+            case KICK:
+                return cs.kick(session, param1, param2);
+            case BAN:
+                return cs.ban(session, param1, param2, state);
+            case ADMIN:
+                return cs.admin(session, param1, param2, state);
+            case IGNORE:
+                return cs.ignore(session, param1, param2, state);
+            case MESSAGE:
+                return cs.message(session, param1, param2);
+            case PRIVY:
+                return cs.privy(session, param1, param2);
+            default:
+                throw new IllegalArgumentException("unknown action: " + action);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("action", action)
+                .add("param1", param1)
+                .add("param2", param2)
+                .add("state", state)
+                .toString();
+    }
+
+    public enum Action {
+        JOIN, // JOIN channel password
+        PART, // PART channel unused
+
+        TOPIC, // TOPIC channel text
+
+        KICK, // KICK channel username
+        BAN, // BAN channel username state
+        ADMIN, // ADMIN channel username state
+        IGNORE, // IGNORE unused username state
+
+        MESSAGE, // MESSAGE channel text
+        PRIVY, // PRIVY username text
+    }
+}
@@ -0,0 +1,64 @@
+package pl.nn44.rchat.protocol.command;
+
+import com.google.common.base.MoreObjects;
+import pl.nn44.rchat.protocol.exception.ChatException.Reason;
+import pl.nn44.rchat.protocol.model.Response;
+
+import java.io.Serializable;
+
+/**
+ * Result of one Command of ChatService.batch: response of the call or reason of its ChatException.
+ */
+public class CommandResult implements Serializable {
+
+    private static final long serialVersionUID = -5217183469740362317L;
+
+    private final Response<?> response;
+    private final Reason reason;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public CommandResult(Response<?> response, Reason reason) {
+        this.response = response;
+        this.reason = reason;
+    }
+
+    public static CommandResult ok(Response<?> response) {
+        return new CommandResult(response, null);
+    }
+
+    public static CommandResult failed(Reason reason) {
+        return new CommandResult(null, reason);
+    }
+
+    protected CommandResult() {
+        this.response = null;
+        this.reason = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public boolean isOk() {
+        return reason == null;
+    }
+
+    // null if failed
+    public Response<?> getResponse() {
+        return response;
+    }
+
+    // null if ok
+    public Reason getReason() {
+        return reason;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("response", response)
+                .add("reason", reason)
+                .toString();
+    }
+}
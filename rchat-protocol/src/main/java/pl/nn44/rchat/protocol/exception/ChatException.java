@@ -24,6 +24,8 @@ public class ChatException extends Exception {
         GIVEN_BAD_USERNAME,
 
         NO_PERMISSION,
-        UNWELCOME_BANNED
+        UNWELCOME_BANNED,
+
+        SERVER_BUSY // lock not acquired in time, call may be repeated
     }
 }
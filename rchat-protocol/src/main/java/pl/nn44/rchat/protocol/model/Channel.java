@@ -3,6 +3,7 @@ package pl.nn44.rchat.protocol.model;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 
+import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.stream.Stream;
 
@@ -14,6 +15,10 @@ public class Channel implements Serializable {
     private final boolean password;
     private final String topic;
     private final User[] users;
+    private final int membersVersion;
+    private final int membersTotal;
+    private final String membersNext;
+    private final int historyId;
 
     // ---------------------------------------------------------------------------------------------------------------
 
@@ -22,10 +27,28 @@ public class Channel implements Serializable {
                    String topic,
                    User[] users) {
 
+        this(name, password, topic, users, 0, users.length, null, 0);
+    }
+
+    // users: first page of members (ChatService.join), next pages are given by ChatService.members
+    // historyId: messages before the join are older than it (ChatService.history), later ones come as news
+    public Channel(String name,
+                   boolean password,
+                   String topic,
+                   User[] users,
+                   int membersVersion,
+                   int membersTotal,
+                   @Nullable String membersNext,
+                   int historyId) {
+
         this.name = name;
         this.password = password;
         this.topic = topic;
-        this.users = users.clone();
+        this.users = users; // built for this channel only, not shared (getUsers() copies)
+        this.membersVersion = membersVersion;
+        this.membersTotal = membersTotal;
+        this.membersNext = membersNext;
+        this.historyId = historyId;
     }
 
     public Channel(String name,
@@ -35,6 +58,10 @@ public class Channel implements Serializable {
         this.password = password;
         this.topic = "";
         this.users = new User[0];
+        this.membersVersion = 0;
+        this.membersTotal = 0;
+        this.membersNext = null;
+        this.historyId = 0;
     }
 
     protected Channel() {
@@ -42,6 +69,10 @@ public class Channel implements Serializable {
         this.password = false;
         this.topic = null;
         this.users = null;
+        this.membersVersion = 0;
+        this.membersTotal = 0;
+        this.membersNext = null;
+        this.historyId = 0;
     }
 
     // ---------------------------------------------------------------------------------------------------------------
@@ -62,6 +93,25 @@ public class Channel implements Serializable {
         return users.clone();
     }
 
+    public int getMembersVersion() {
+        return membersVersion;
+    }
+
+    public int getMembersTotal() {
+        return membersTotal;
+    }
+
+    // cursor of next members page, null if getUsers() are all members
+    @Nullable
+    public String getMembersNext() {
+        return membersNext;
+    }
+
+    // beforeId of ChatService.history for messages sent before the join
+    public int getHistoryId() {
+        return historyId;
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
     @Override
@@ -84,6 +134,10 @@ public class Channel implements Serializable {
                 .add("password", password)
                 .add("topic", topic)
                 .add("users", Stream.of(users).map(User::getUsername).toArray())
+                .add("membersVersion", membersVersion)
+                .add("membersTotal", membersTotal)
+                .add("membersNext", membersNext)
+                .add("historyId", historyId)
                 .toString();
     }
 }
@@ -0,0 +1,90 @@
+package pl.nn44.rchat.protocol.model;
+
+import com.google.common.base.MoreObjects;
+import pl.nn44.xmlrpc.common.Encodable;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Versioned list of channels (names, password flags), returned by ChatService.channelList.<br/>
+ * Not modified list (channels == null) is returned if caller already knows the version.
+ */
+public class ChannelList implements Serializable, Encodable {
+
+    private static final long serialVersionUID = 6408190534853347162L;
+
+    private final int version;
+    private final Channel[] channels;
+
+    // encoded forms, by encoder: same instance is send to every caller
+    private transient volatile Map<Object, Object> encoded = null;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public ChannelList(int version, Channel[] channels) {
+        this.version = version;
+        this.channels = channels != null ? channels.clone() : null;
+    }
+
+    public static ChannelList of(int version, Channel[] channels) {
+        return new ChannelList(version, channels);
+    }
+
+    public static ChannelList notModified(int version) {
+        return new ChannelList(version, null);
+    }
+
+    protected ChannelList() {
+        this.version = 0;
+        this.channels = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isModified() {
+        return channels != null;
+    }
+
+    // null if not modified
+    public Channel[] getChannels() {
+        return channels != null ? channels.clone() : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public Object getEncoded(Object encoder) {
+        Map<Object, Object> encoded = this.encoded;
+
+        return encoded != null
+                ? encoded.get(encoder)
+                : null;
+    }
+
+    @Override
+    public synchronized void setEncoded(Object encoder, Object value) {
+        Map<Object, Object> encoded = this.encoded != null
+                ? new HashMap<>(this.encoded)
+                : new HashMap<>(2);
+
+        encoded.put(encoder, value);
+        this.encoded = Collections.unmodifiableMap(encoded);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("version", version)
+                .add("channels", channels != null ? channels.length : null)
+                .toString();
+    }
+}
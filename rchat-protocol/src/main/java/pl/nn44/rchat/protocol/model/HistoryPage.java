@@ -0,0 +1,71 @@
+package pl.nn44.rchat.protocol.model;
+
+import com.google.common.base.MoreObjects;
+
+import java.io.Serializable;
+
+/**
+ * Page of channel messages (MESSAGE WhatsUps, oldest first), returned by ChatService.history.<br/>
+ * Older page is requested with beforeId = getFirst(), if isMore().
+ */
+public class HistoryPage implements Serializable {
+
+    private static final long serialVersionUID = 4380120979360817650L;
+
+    private final String channel;
+    private final int first;
+    private final boolean more;
+    private final WhatsUp[] messages;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public HistoryPage(String channel, int first, boolean more, WhatsUp[] messages) {
+        this.channel = channel;
+        this.first = first;
+        this.more = more;
+        this.messages = messages; // built for this page only, not shared
+    }
+
+    public static HistoryPage empty(String channel) {
+        return new HistoryPage(channel, 0, false, new WhatsUp[0]);
+    }
+
+    protected HistoryPage() {
+        this.channel = null;
+        this.first = 0;
+        this.more = false;
+        this.messages = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public String getChannel() {
+        return channel;
+    }
+
+    // id of the oldest message of the page (0 if empty)
+    public int getFirst() {
+        return first;
+    }
+
+    // older messages are available
+    public boolean isMore() {
+        return more;
+    }
+
+    public WhatsUp[] getMessages() {
+        return messages.clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("channel", channel)
+                .add("first", first)
+                .add("more", more)
+                .add("messages", messages.length)
+                .toString();
+    }
+}
@@ -0,0 +1,86 @@
+package pl.nn44.rchat.protocol.model;
+
+import com.google.common.base.MoreObjects;
+
+import java.io.Serializable;
+import java.util.stream.Stream;
+
+/**
+ * Membership changes of a channel since a known version, returned by ChatService.memberDeltas.<br/>
+ * Reset delta (isReset) is returned if the version is too old or unknown: members must be fetched again by pages.
+ */
+public class MemberDelta implements Serializable {
+
+    private static final long serialVersionUID = 7719053486120398123L;
+
+    private final String channel;
+    private final int version;
+    private final boolean reset;
+    private final User[] joined;
+    private final String[] left;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public MemberDelta(String channel,
+                       int version,
+                       boolean reset,
+                       User[] joined,
+                       String[] left) {
+
+        this.channel = channel;
+        this.version = version;
+        this.reset = reset;
+        this.joined = joined;
+        this.left = left;
+    }
+
+    public static MemberDelta reset(String channel, int version) {
+        return new MemberDelta(channel, version, true, new User[0], new String[0]);
+    }
+
+    protected MemberDelta() {
+        this.channel = null;
+        this.version = 0;
+        this.reset = false;
+        this.joined = null;
+        this.left = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public String getChannel() {
+        return channel;
+    }
+
+    // membership version after the changes
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    // members which joined (and are still on channel)
+    public User[] getJoined() {
+        return joined.clone();
+    }
+
+    // usernames which left (and are not on channel)
+    public String[] getLeft() {
+        return left.clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("channel", channel)
+                .add("version", version)
+                .add("reset", reset)
+                .add("joined", Stream.of(joined).map(User::getUsername).toArray())
+                .add("left", left)
+                .toString();
+    }
+}
@@ -0,0 +1,88 @@
+package pl.nn44.rchat.protocol.model;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.stream.Stream;
+
+/**
+ * One page of channel members (ordered by username), returned by ChatService.members.<br/>
+ * Next page is requested with cursor from getNext(), changes after getVersion() are given by ChatService.memberDeltas.
+ */
+public class MemberPage implements Serializable {
+
+    private static final long serialVersionUID = -2431985540712246871L;
+
+    private final String channel;
+    private final int version;
+    private final int total;
+    private final User[] users;
+    private final String next;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public MemberPage(String channel,
+                      int version,
+                      int total,
+                      User[] users,
+                      @Nullable String next) {
+
+        this.channel = channel;
+        this.version = version;
+        this.total = total;
+        this.users = users; // built for this page only, not shared
+        this.next = next;
+    }
+
+    protected MemberPage() {
+        this.channel = null;
+        this.version = 0;
+        this.total = 0;
+        this.users = null;
+        this.next = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public String getChannel() {
+        return channel;
+    }
+
+    // membership version of the channel as of this page
+    public int getVersion() {
+        return version;
+    }
+
+    // members count of the channel as of this page
+    public int getTotal() {
+        return total;
+    }
+
+    public User[] getUsers() {
+        return users.clone();
+    }
+
+    // cursor of next page, null if this is the last page
+    @Nullable
+    public String getNext() {
+        return next;
+    }
+
+    public boolean isLast() {
+        return next == null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("channel", channel)
+                .add("version", version)
+                .add("total", total)
+                .add("users", Stream.of(users).map(User::getUsername).toArray())
+                .add("next", next)
+                .toString();
+    }
+}
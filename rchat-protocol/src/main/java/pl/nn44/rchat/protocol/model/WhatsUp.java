@@ -1,12 +1,16 @@
 package pl.nn44.rchat.protocol.model;
 
 import com.google.common.base.MoreObjects;
+import pl.nn44.xmlrpc.common.Encodable;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
-public class WhatsUp implements Serializable {
+public class WhatsUp implements Serializable, Encodable {
 
     private static final long serialVersionUID = -2493165937560638279L;
     private static final transient DateTimeFormatter DTF = DateTimeFormatter.ISO_DATE_TIME;
@@ -15,12 +19,20 @@ public class WhatsUp implements Serializable {
     private final What what;
     private final String[] params;
 
+    // encoded forms, by encoder: same instance is send to every member of channel
+    private transient volatile Map<Object, Object> encoded = null;
+
     // ---------------------------------------------------------------------------------------------------------------
 
     public WhatsUp(What what, String[] params) {
+        this(LocalDateTime.now(), what, params);
+    }
+
+    // past event (history)
+    public WhatsUp(LocalDateTime time, What what, String[] params) {
 
         // LocalDateTime and long are not supported by xml-rpc
-        this.isoTime = LocalDateTime.now().format(DTF);
+        this.isoTime = time.format(DTF);
         this.what = what;
         this.params = params.clone();
     }
@@ -51,6 +63,27 @@ public class WhatsUp implements Serializable {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    @Override
+    public Object getEncoded(Object encoder) {
+        Map<Object, Object> encoded = this.encoded;
+
+        return encoded != null
+                ? encoded.get(encoder)
+                : null;
+    }
+
+    @Override
+    public synchronized void setEncoded(Object encoder, Object value) {
+        Map<Object, Object> encoded = this.encoded != null
+                ? new HashMap<>(this.encoded)
+                : new HashMap<>(2);
+
+        encoded.put(encoder, value);
+        this.encoded = Collections.unmodifiableMap(encoded);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -77,5 +110,7 @@ public class WhatsUp implements Serializable {
 
         MESSAGE, // MESSAGE channel who-msg some-text
         PRIVY, // PRIVY unused who-msg-to who-msg-by some-text
+
+        RESYNC, // RESYNC channel lost-count (news of channel were lost, members should be loaded again)
     }
 }
@@ -0,0 +1,156 @@
+package pl.nn44.rchat.protocol.xmlrpc;
+
+import org.apache.xmlrpc.XmlRpcConfig;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.XmlRpcController;
+import org.apache.xmlrpc.common.XmlRpcHttpRequestConfigImpl;
+import org.apache.xmlrpc.common.XmlRpcWorkerFactory;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.Command.Action;
+import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.User;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.protocol.model.WhatsUp.What;
+import pl.nn44.xmlrpc.common.AnyTypeFactory;
+import pl.nn44.xmlrpc.common.BufferedXmlWriterFactory;
+import pl.nn44.xmlrpc.common.XmlReaderPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StructRoundTripTest {
+
+    private final XmlRpcHttpRequestConfigImpl config = new XmlRpcHttpRequestConfigImpl();
+    private final TypeFactory typeFactory = new AnyTypeFactory(new XmlRpcController() {
+        @Override
+        protected XmlRpcWorkerFactory getDefaultXmlRpcWorkerFactory() {
+            return null;
+        }
+
+        @Override
+        public XmlRpcConfig getConfig() {
+            return config;
+        }
+    });
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void channel() throws Exception {
+        User user = new User("c", "u", true, false, true, false);
+        Channel channel = new Channel("c", true, "topic", new User[]{user}, 3, 10, "u", 7);
+
+        Channel parsed = (Channel) roundTrip(channel);
+
+        assertEquals("c", parsed.getName());
+        assertTrue(parsed.isPassword());
+        assertEquals("topic", parsed.getTopic());
+        assertEquals(3, parsed.getMembersVersion());
+        assertEquals(10, parsed.getMembersTotal());
+        assertEquals("u", parsed.getMembersNext());
+        assertEquals(7, parsed.getHistoryId());
+
+        assertEquals(1, parsed.getUsers().length);
+        User parsedUser = parsed.getUsers()[0];
+        assertEquals("u", parsedUser.getUsername());
+        assertTrue(parsedUser.isAuthorized());
+        assertFalse(parsedUser.isIgnored());
+        assertTrue(parsedUser.isAdmin());
+    }
+
+    @Test
+    public void whatsUp() throws Exception {
+        WhatsUp whatsUp = WhatsUp.create(What.MESSAGE, "c", "u", "hi <&>");
+
+        WhatsUp parsed = (WhatsUp) roundTrip(whatsUp);
+
+        assertEquals(What.MESSAGE, parsed.getWhat());
+        assertArrayEquals(new String[]{"c", "u", "hi <&>"}, parsed.getParams());
+        assertEquals(whatsUp.getTime(), parsed.getTime());
+    }
+
+    @Test
+    public void commandArray() throws Exception {
+        Command[] commands = {
+                Command.simple(Action.MESSAGE, "c", "text"),
+                Command.stateful(Action.BAN, "c", "u", true),
+        };
+
+        Object parsed = roundTrip(commands);
+
+        assertEquals(Command[].class, parsed.getClass());
+        Command[] parsedCommands = (Command[]) parsed;
+        assertEquals(2, parsedCommands.length);
+        assertEquals(Action.MESSAGE, parsedCommands[0].getAction());
+        assertEquals("text", parsedCommands[0].getParam2());
+        assertFalse(parsedCommands[0].isState());
+        assertEquals(Action.BAN, parsedCommands[1].getAction());
+        assertTrue(parsedCommands[1].isState());
+    }
+
+    @Test
+    public void enumConstant() throws Exception {
+        assertSame(What.KICK, roundTrip(What.KICK));
+    }
+
+    @Test
+    public void nullValue() throws Exception {
+        assertNull(roundTrip(null));
+    }
+
+    @Test
+    public void classMemberAfterOtherMembers() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><methodResponse><params><param><value><struct>"
+                + member("param1", "<value>c</value>")
+                + member("state", "<value><boolean>1</boolean></value>")
+                + member("action", "<value><struct>"
+                + member("__class__", "<value>enum</value>")
+                + member("type", "<value>" + Action.class.getName() + "</value>")
+                + member("name", "<value>ADMIN</value>")
+                + "</struct></value>")
+                + member("__class__", "<value>" + Command.class.getName() + "</value>")
+                + member("param2", "<value>u</value>")
+                + "</struct></value></param></params></methodResponse>";
+
+        Command parsed = (Command) parse(xml.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Action.ADMIN, parsed.getAction());
+        assertEquals("c", parsed.getParam1());
+        assertEquals("u", parsed.getParam2());
+        assertTrue(parsed.isState());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private Object roundTrip(Object value) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new XmlRpcWriter(config, new BufferedXmlWriterFactory().getXmlWriter(config, out), typeFactory)
+                .write(config, value);
+
+        return parse(out.toByteArray());
+    }
+
+    private Object parse(byte[] xml) throws Exception {
+        XmlRpcResponseParser parser = new XmlRpcResponseParser(config, typeFactory);
+        XMLReader reader = XmlReaderPool.acquire();
+
+        reader.setContentHandler(parser);
+        reader.parse(new InputSource(new ByteArrayInputStream(xml)));
+        XmlReaderPool.release(reader);
+
+        assertTrue(parser.isSuccess());
+        return parser.getResult();
+    }
+
+    private static String member(String name, String value) {
+        return "<member><name>" + name + "</name>" + value + "</member>";
+    }
+}
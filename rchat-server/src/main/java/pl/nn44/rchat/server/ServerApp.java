@@ -2,6 +2,7 @@ package pl.nn44.rchat.server;
 
 import ch.qos.logback.classic.helpers.MDCInsertingServletFilter;
 import org.apache.xmlrpc.XmlRpcException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.web.ErrorController;
@@ -9,19 +10,41 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.HttpRequestHandler;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import pl.nn44.niorpc.server.NioRpcServer;
 import pl.nn44.rchat.protocol.ChatService;
 import pl.nn44.rchat.protocol.xmlrpc.FaultMapperImpl;
 import pl.nn44.rchat.server.aspect.AsLogger;
+import pl.nn44.rchat.server.aspect.AsMetrics;
+import pl.nn44.rchat.server.history.HistoryStore;
+import pl.nn44.rchat.server.impl.AsyncPolls;
 import pl.nn44.rchat.server.impl.BestChatService;
 import pl.nn44.rchat.server.impl.Endpoints;
+import pl.nn44.rchat.server.impl.FeedSource;
+import pl.nn44.rchat.server.impl.LoopChatService;
+import pl.nn44.rchat.server.impl.NewsPumps;
+import pl.nn44.rchat.server.impl.PushSockets;
+import pl.nn44.rchat.server.journal.Journal;
+import pl.nn44.rchat.server.metrics.Metrics;
+import pl.nn44.rchat.server.model.NewsLimits;
+import pl.nn44.rchat.server.model.NewsLimits.Overflow;
+import pl.nn44.rchat.server.page.MetricsController;
 import pl.nn44.rchat.server.page.PlainErrorController;
 import pl.nn44.rchat.server.page.PlainPageController;
+import pl.nn44.rchat.server.page.StatsController;
 import pl.nn44.xmlrpc.server.FaultMapper;
 
 import javax.servlet.Filter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
 @EnableScheduling
+@EnableWebSocket
 @EnableAspectJAutoProxy(proxyTargetClass = true)
 public class ServerApp {
 
@@ -32,15 +55,59 @@ public class ServerApp {
     // ---------------------------------------------------------------------------------------------------------------
 
     @Bean
-    public ChatService chatService() {
-        return new BestChatService();
+    public ChatService chatService(@Value("${rchat.news.capacity}") int newsCapacity,
+                                   @Value("${rchat.news.overflow}") Overflow newsOverflow,
+                                   @Value("${rchat.news.ttl-seconds}") long newsTtlSeconds,
+                                   @Value("${rchat.engine}") String engine,
+                                   @Value("${rchat.engine.loops}") int engineLoops,
+                                   Journal journal,
+                                   HistoryStore history) {
+
+        NewsLimits newsLimits = NewsLimits.of(newsCapacity, newsOverflow, newsTtlSeconds, TimeUnit.SECONDS);
+
+        switch (engine) {
+            case "striped":
+                return new BestChatService(newsLimits, journal, history);
+
+            case "loops":
+                int loops = engineLoops > 0 ? engineLoops : Runtime.getRuntime().availableProcessors();
+                return new LoopChatService(newsLimits, loops, journal, history);
+
+            default:
+                throw new IllegalArgumentException("unknown rchat.engine: " + engine);
+        }
+    }
+
+    @Bean
+    public Journal journal(@Value("${rchat.journal.dir}") String dir,
+                           @Value("${rchat.journal.snapshot-records}") int snapshotRecords) throws IOException {
+
+        return !dir.isEmpty()
+                ? Journal.open(Paths.get(dir), snapshotRecords)
+                : Journal.disabled();
+    }
+
+    @Bean
+    public HistoryStore history(@Value("${rchat.history.dir}") String dir,
+                                @Value("${rchat.history.segment-bytes}") int segmentBytes,
+                                @Value("${rchat.history.max-bytes}") long maxBytes,
+                                @Value("${rchat.history.max-age-hours}") long maxAgeHours) throws IOException {
+
+        return !dir.isEmpty()
+                ? HistoryStore.open(Paths.get(dir), segmentBytes, maxBytes, maxAgeHours, TimeUnit.HOURS)
+                : HistoryStore.disabled();
     }
 
     // ---------------------------------------------------------------------------------------------------------------
 
     @Bean
-    public Endpoints<ChatService> endpoints(ChatService cs) {
-        return new Endpoints<>(cs, ChatService.class);
+    public AsyncPolls asyncPolls() {
+        return new AsyncPolls("whatsUp");
+    }
+
+    @Bean
+    public Endpoints<ChatService> endpoints(ChatService cs, AsyncPolls asyncPolls, Metrics metrics) {
+        return new Endpoints<>(cs, ChatService.class, asyncPolls, metrics);
     }
 
     @Bean
@@ -67,6 +134,43 @@ public class ServerApp {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    @Bean
+    public NioRpcServer<ChatService> tcpRpc(Endpoints<ChatService> ep,
+                                            NewsPumps pumps,
+                                            @Value("${rchat.tcp.port}") int tcpPort,
+                                            @Value("${rchat.tcp.threads}") int tcpThreads) throws IOException {
+
+        return ep.tcp(new InetSocketAddress(tcpPort), tcpThreads, pumps);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Bean
+    public NewsPumps newsPumps(ChatService cs, @Value("${rchat.push.threads}") int pushThreads) {
+        int threads = pushThreads > 0 ? pushThreads : Runtime.getRuntime().availableProcessors();
+        return new NewsPumps(cs, (FeedSource) cs, threads);
+    }
+
+    @Bean
+    public PushSockets pushSockets(NewsPumps pumps) {
+        return new PushSockets(pumps);
+    }
+
+    @Bean
+    public WebSocketConfigurer pushConfigurer(PushSockets pushSockets) {
+        return registry -> registry.addHandler(pushSockets, "/push");
+    }
+
+    @Bean
+    public ServletServerContainerFactoryBean webSocketContainer() {
+        // push client without heartbeats is closed after session timeout
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxSessionIdleTimeout(TimeUnit.SECONDS.toMillis(BestChatService.SESSION_TIMEOUT_SECONDS));
+        return container;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     @Bean
     public PlainPageController pageController() {
         return new PlainPageController();
@@ -77,11 +181,31 @@ public class ServerApp {
         return new PlainErrorController();
     }
 
+    @Bean
+    public StatsController statsController(ChatService cs) {
+        return new StatsController((FeedSource) cs);
+    }
+
+    @Bean
+    public MetricsController metricsController(Metrics metrics) {
+        return new MetricsController(metrics);
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
     @Bean
-    public AsLogger asLogger() {
-        return new AsLogger();
+    public Metrics metrics(@Value("${rchat.trace.slow-ms}") long slowRequestMs) {
+        return new Metrics(slowRequestMs);
+    }
+
+    @Bean
+    public AsMetrics asMetrics(Metrics metrics) {
+        return new AsMetrics(metrics);
+    }
+
+    @Bean
+    public AsLogger asLogger(@Value("${rchat.log.calls-every}") int every) {
+        return new AsLogger(every);
     }
 
     @Bean
@@ -13,16 +13,25 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
- * Aspect to log about each method execution.
+ * Aspect to log about method executions: every one, every n-th on average (sampled) or none.<br/>
+ * Latency is measured by AsMetrics, logged time is informative only.
  */
 @Aspect
 public class AsLogger {
 
     private static final Logger LOG = LoggerFactory.getLogger(AsLogger.class);
 
+    private final int every; // <= 0: nothing is logged
+    private final Map<Method, Loggable> annotations = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Logger> classLoggers = new ConcurrentHashMap<>();
+
     private final Map<Level, Function<Logger, Printer>> loggers =
             new ImmutableMap.Builder<Level, Function<Logger, Printer>>()
                     .put(Level.TRACE, (log) -> log::trace)
@@ -32,6 +41,28 @@ public class AsLogger {
                     .put(Level.ERROR, (log) -> log::error)
                     .build();
 
+    private final Map<Level, Predicate<Logger>> enabled =
+            new ImmutableMap.Builder<Level, Predicate<Logger>>()
+                    .put(Level.TRACE, Logger::isTraceEnabled)
+                    .put(Level.DEBUG, Logger::isDebugEnabled)
+                    .put(Level.INFO, Logger::isInfoEnabled)
+                    .put(Level.WARN, Logger::isWarnEnabled)
+                    .put(Level.ERROR, Logger::isErrorEnabled)
+                    .build();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public AsLogger() {
+        this(1);
+    }
+
+    public AsLogger(int every) {
+        this.every = every;
+        LOG.info("{} instance created: every={}.", getClass().getSimpleName(), every);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
     // @formatter:off
     @Around(
             "" +
@@ -51,17 +82,22 @@ public class AsLogger {
     )
     // @formatter:on
     public Object around(ProceedingJoinPoint point) throws Throwable {
+        if (every <= 0 || every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+            return point.proceed();
+        }
+
         LOG.trace("AROUND: {}", point);
 
         Method method = MethodSignature.class.cast(point.getSignature()).getMethod();
         Class<?> clazz = method.getDeclaringClass();
+        Loggable annotation = annotations.computeIfAbsent(method, m -> annotation(m, clazz));
+        Logger logger = classLoggers.computeIfAbsent(clazz, LoggerFactory::getLogger);
 
-        Loggable annotation = method.getAnnotation(Loggable.class);
-        if (annotation == null) {
-            annotation = clazz.getAnnotation(Loggable.class);
+        if (!enabled.get(annotation.level()).test(logger)) {
+            return point.proceed();
         }
 
-        long startMs = System.currentTimeMillis();
+        long startNs = System.nanoTime();
         Object result = null;
         Throwable throwable = null;
         try {
@@ -69,13 +105,12 @@ public class AsLogger {
         } catch (Throwable ex) {
             throwable = ex;
         }
-        long timeMs = System.currentTimeMillis() - startMs;
+        long timeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
 
-        Logger logger = LoggerFactory.getLogger(clazz);
         Printer printer = loggers.get(annotation.level()).apply(logger);
         printer.log(
                 "#{}({}): {} ({}ms)",
-                MethodSignature.class.cast(point.getSignature()).getMethod().getName(),
+                method.getName(),
                 annotation.params() ? arrayToString(point.getArgs()) : "_",
                 annotation.result() ? firstNonNull(throwable, result) : "_",
                 timeMs
@@ -87,6 +122,11 @@ public class AsLogger {
         return result;
     }
 
+    private static Loggable annotation(Method method, Class<?> clazz) {
+        Loggable annotation = method.getAnnotation(Loggable.class);
+        return annotation != null ? annotation : clazz.getAnnotation(Loggable.class);
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
     public String arrayToString(Object[] array) {
@@ -0,0 +1,35 @@
+package pl.nn44.rchat.server.aspect;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import pl.nn44.rchat.server.metrics.Metrics;
+import pl.nn44.rchat.server.metrics.RequestTrace;
+
+/**
+ * Aspect to measure latency of each ChatService method execution (see Metrics),
+ * execution is the invoke phase of current RequestTrace.
+ */
+@Aspect
+public class AsMetrics {
+
+    private final Metrics metrics;
+
+    public AsMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Around("execution(* pl.nn44.rchat.protocol.ChatService.*(..))")
+    public Object around(ProceedingJoinPoint point) throws Throwable {
+        long startNs = System.nanoTime();
+        try {
+            return point.proceed();
+        } finally {
+            long endNs = System.nanoTime();
+            String method = point.getSignature().getName();
+
+            metrics.method(method).record(endNs - startNs);
+            RequestTrace.invoked(method, startNs, endNs);
+        }
+    }
+}
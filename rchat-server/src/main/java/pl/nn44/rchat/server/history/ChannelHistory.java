@@ -0,0 +1,536 @@
+package pl.nn44.rchat.server.history;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.protocol.model.HistoryPage;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.protocol.model.WhatsUp.What;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Message history of one channel, stored in memory-mapped segment files (new segment when the last is full).<br/>
+ * Messages have sequential ids, every segment has a sparse index (offset of every INDEX_INTERVAL-th message).<br/>
+ * Single writer (channel owner), readers read published messages of mapped segments without locks,<br/>
+ * so history is kept off heap: heap usage does not depend on history size.<br/>
+ * Every segment has its terms index (see Terms): on heap while written, then written (by indexer) to file and mapped.<br/>
+ * <br/>
+ * Record: length of the rest (int), id (int), time millis (long), author length (int), author, text length (int), text.
+ */
+public class ChannelHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelHistory.class);
+
+    public static final int INDEX_INTERVAL = 32;
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final String TERMS_SUFFIX = ".fts";
+
+    private static final int HEADER = 4 + 4 + 8;
+    private static final int MIN_RECORD = HEADER + 4 + 4;
+
+    private final String channel;
+    private final Path dir; // null = disabled
+    private final HistoryStore.Limits limits;
+    private final Executor indexer;
+
+    private volatile Segment[] segments = new Segment[0]; // oldest first, the last one is written
+    private MemoryTerms lastTerms; // terms of the last segment, writer only
+    private int nextId = 1;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    ChannelHistory(String channel, Path dir, HistoryStore.Limits limits, Executor indexer) throws IOException {
+        this.channel = channel;
+        this.dir = dir;
+        this.limits = limits;
+        this.indexer = indexer;
+
+        if (dir != null) {
+            load();
+        }
+    }
+
+    static ChannelHistory disabled(String channel) {
+        try {
+            return new ChannelHistory(channel, null, null, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not possible: nothing is loaded
+        }
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(dir);
+
+        List<Integer> firstIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                firstIds.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        firstIds.sort(Comparator.naturalOrder());
+
+        Segment[] loaded = new Segment[firstIds.size()];
+        for (int i = 0; i < loaded.length; i++) {
+            Segment segment = Segment.map(dir, firstIds.get(i), 0);
+
+            if (i < loaded.length - 1) {
+                segment.sealed(firstIds.get(i + 1));
+                loadTerms(segment);
+            } else {
+                segment.recover();
+                lastTerms = segment.readTerms();
+                segment.terms = lastTerms;
+            }
+
+            loaded[i] = segment;
+        }
+
+        if (loaded.length > 0) {
+            nextId = loaded[loaded.length - 1].nextId;
+        }
+        segments = loaded;
+
+        LOG.debug("{} history loaded: {}.", channel, this);
+    }
+
+    // terms file of full segment is mapped, missing (or invalid) one is rebuilt from segment
+    private void loadTerms(Segment segment) {
+        if (Files.exists(segment.termsFile)) {
+            try {
+                segment.terms = MappedTerms.map(segment.termsFile);
+                return;
+            } catch (IOException e) {
+                LOG.warn(channel + " history terms not loaded, rebuilding: " + segment.termsFile, e);
+            }
+        }
+
+        MemoryTerms terms = segment.readTerms();
+        segment.terms = terms;
+        seal(segment, terms);
+    }
+
+    // terms of full segment are written to file by indexer, in memory until then
+    private void seal(Segment segment, MemoryTerms terms) {
+        indexer.execute(() -> {
+            try {
+                terms.writeTo(segment.termsFile, segment.firstId);
+                segment.terms = MappedTerms.map(segment.termsFile);
+
+                if (segment.deleted) {
+                    segment.delete(); // removed by retention while written
+                }
+
+            } catch (IOException e) {
+                LOG.warn(channel + " history terms not written, kept in memory: " + segment.termsFile, e);
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // requires channel owner (single writer)
+    public void append(String author, String text, long timeMillis) {
+        if (dir == null) {
+            return;
+        }
+
+        byte[] authorBytes = author.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + 4 + authorBytes.length + 4 + textBytes.length;
+        Set<String> terms = Terms.tokenize(text);
+
+        try {
+            synchronized (this) {
+                Segment[] segments = this.segments;
+                Segment last = segments.length > 0 ? segments[segments.length - 1] : null;
+
+                if (last == null || !last.fits(length)) {
+                    last = roll(length);
+                }
+
+                int id = nextId++;
+                last.append(id, timeMillis, authorBytes, textBytes, length);
+                lastTerms.add(id, terms); // after publish: indexed message is readable
+            }
+
+        } catch (IOException e) {
+            LOG.error(channel + " history append failed, message is not stored.", e);
+        }
+    }
+
+    // id of next message, requires channel owner
+    public int nextId() {
+        return nextId;
+    }
+
+    private Segment roll(int length) throws IOException {
+        Segment segment = Segment.map(dir, nextId, Math.max(limits.segmentBytes, 4 + length));
+        segment.terms = new MemoryTerms();
+
+        if (segments.length > 0) {
+            seal(segments[segments.length - 1], lastTerms);
+        }
+        lastTerms = (MemoryTerms) segment.terms;
+
+        Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+        rolled[rolled.length - 1] = segment;
+        segments = rolled;
+
+        retain(false);
+        return segment;
+    }
+
+    // removes oldest segments above max bytes (and older than max age), the last segment is always kept
+    public synchronized void retain(boolean byAge) {
+        if (dir == null) {
+            return;
+        }
+
+        Segment[] segments = this.segments;
+        long bytes = Arrays.stream(segments).mapToLong(Segment::capacity).sum();
+        long minTime = System.currentTimeMillis() - limits.maxAgeMs;
+
+        int drop = 0;
+        while (drop < segments.length - 1) {
+            Segment oldest = segments[drop];
+
+            if (bytes > limits.maxBytes || byAge && oldest.lastTime < minTime) {
+                bytes -= oldest.capacity();
+                drop++;
+            } else {
+                break;
+            }
+        }
+
+        if (drop == 0) {
+            return;
+        }
+
+        // readers holding the old array still read the mapping, file is removed from directory only
+        this.segments = Arrays.copyOfRange(segments, drop, segments.length);
+
+        for (int i = 0; i < drop; i++) {
+            segments[i].delete();
+        }
+
+        LOG.debug("{} history retention: {} segments removed, {}.", channel, drop, this);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // messages with id < beforeId (beforeId <= 0: newest), oldest first, authors in skipped are left out
+    public HistoryPage page(int beforeId, int limit, Collection<String> skipped) {
+        Segment[] segments = this.segments;
+        if (segments.length == 0) {
+            return HistoryPage.empty(channel);
+        }
+
+        int firstId = segments[0].firstId;
+        int lastId = segments[segments.length - 1].nextId - 1; // published
+        int toId = beforeId <= 0 || beforeId > lastId ? lastId : beforeId - 1;
+        int fromId = Math.max(firstId, toId - limit + 1);
+
+        if (toId < fromId) {
+            return HistoryPage.empty(channel);
+        }
+
+        List<WhatsUp> messages = new ArrayList<>(toId - fromId + 1);
+        int s = segments.length - 1;
+        while (segments[s].firstId > fromId) {
+            s--;
+        }
+
+        for (int id = fromId; id <= toId; s++) {
+            Segment segment = segments[s];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = segment.offsetOf(id);
+
+            for (; id <= toId && id < segment.nextId; id++) {
+                WhatsUp message = read(buffer, offset, skipped);
+
+                if (message != null) {
+                    messages.add(message);
+                }
+
+                offset += 4 + buffer.getInt(offset);
+            }
+        }
+
+        return new HistoryPage(
+                channel,
+                fromId,
+                fromId > firstId,
+                messages.toArray(new WhatsUp[messages.size()])
+        );
+    }
+
+    // newest messages containing all terms of query (see Terms), oldest first, authors in skipped are left out
+    // more: older messages may match
+    public HistoryPage search(String query, int limit, Collection<String> skipped) {
+        Set<String> terms = Terms.tokenize(query);
+        Segment[] segments = this.segments;
+
+        List<WhatsUp> messages = new ArrayList<>();
+        int firstId = 0;
+        boolean more = false;
+
+        search:
+        for (int s = segments.length - 1; s >= 0 && !terms.isEmpty(); s--) {
+            Segment segment = segments[s];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int[] ids = Terms.match(segment.terms, terms);
+
+            for (int i = ids.length - 1; i >= 0; i--) {
+                if (messages.size() == limit) {
+                    more = true;
+                    break search;
+                }
+
+                WhatsUp message = read(buffer, segment.offsetOf(ids[i]), skipped);
+
+                if (message != null) {
+                    messages.add(message);
+                    firstId = ids[i];
+                }
+            }
+        }
+
+        Collections.reverse(messages);
+        return new HistoryPage(
+                channel,
+                firstId,
+                more,
+                messages.toArray(new WhatsUp[messages.size()])
+        );
+    }
+
+    // null if author is skipped
+    private WhatsUp read(ByteBuffer buffer, int offset, Collection<String> skipped) {
+        long timeMillis = buffer.getLong(offset + 8);
+
+        buffer.position(offset + HEADER + 4);
+        String author = string(buffer, buffer.getInt(offset + HEADER));
+
+        if (skipped.contains(author)) {
+            return null;
+        }
+
+        return new WhatsUp(
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault()),
+                What.MESSAGE,
+                new String[]{channel, author, string(buffer, buffer.getInt())}
+        );
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // written pages are forced to disk (otherwise they are written back by the os)
+    synchronized void force() {
+        for (Segment segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Segment[] segments = this.segments;
+
+        return MoreObjects.toStringHelper(this)
+                .add("channel", channel)
+                .add("segments", segments.length)
+                .add("firstId", segments.length > 0 ? segments[0].firstId : null)
+                .add("nextId", nextId)
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Segment {
+
+        private final int firstId;
+        private final Path dataFile;
+        private final Path indexFile;
+        private final Path termsFile;
+        private final MappedByteBuffer buffer;
+        private final MappedByteBuffer index;
+
+        private int end = 0; // writer only
+        private volatile int nextId; // publishes records below
+        private volatile long lastTime = 0;
+        private volatile Terms terms;
+        private volatile boolean deleted = false;
+
+        private Segment(int firstId, Path dataFile, Path indexFile, Path termsFile,
+                        MappedByteBuffer buffer, MappedByteBuffer index) {
+
+            this.firstId = firstId;
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            this.termsFile = termsFile;
+            this.buffer = buffer;
+            this.index = index;
+            this.nextId = firstId;
+        }
+
+        // capacity: 0 = size of existing file
+        static Segment map(Path dir, int firstId, int capacity) throws IOException {
+            String name = String.format("%010d", firstId);
+            Path dataFile = dir.resolve(name + SEGMENT_SUFFIX);
+            Path indexFile = dir.resolve(name + INDEX_SUFFIX);
+
+            // channels are closed after map, mappings stay valid
+            try (FileChannel data = FileChannel.open(dataFile, CREATE, READ, WRITE);
+                 FileChannel idx = FileChannel.open(indexFile, CREATE, READ, WRITE)) {
+
+                int size = capacity > 0 ? capacity : (int) data.size();
+                int indexSize = 4 * (size / MIN_RECORD / INDEX_INTERVAL + 1);
+
+                return new Segment(
+                        firstId, dataFile, indexFile, dir.resolve(name + TERMS_SUFFIX),
+                        data.map(FileChannel.MapMode.READ_WRITE, 0, size),
+                        idx.map(FileChannel.MapMode.READ_WRITE, 0, indexSize)
+                );
+            }
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        boolean fits(int length) {
+            return end + 4 + length <= buffer.capacity();
+        }
+
+        void append(int id, long timeMillis, byte[] author, byte[] text, int length) {
+            int offset = end;
+
+            if ((id - firstId) % INDEX_INTERVAL == 0) {
+                index.putInt((id - firstId) / INDEX_INTERVAL * 4, offset);
+            }
+
+            ByteBuffer out = buffer.duplicate();
+            out.position(offset + 4);
+            out.putInt(id).putLong(timeMillis);
+            out.putInt(author.length).put(author);
+            out.putInt(text.length).put(text);
+            buffer.putInt(offset, length); // zero length ends records (file is zero-filled)
+
+            end = offset + 4 + length;
+            lastTime = timeMillis;
+            nextId = id + 1; // publish
+        }
+
+        int offsetOf(int id) {
+            int offset = index.getInt((id - firstId) / INDEX_INTERVAL * 4);
+
+            for (int skip = (id - firstId) % INDEX_INTERVAL; skip > 0; skip--) {
+                offset += 4 + buffer.getInt(offset);
+            }
+
+            return offset;
+        }
+
+        // not the last segment: records are [firstId, nextFirstId)
+        void sealed(int nextFirstId) {
+            nextId = nextFirstId;
+
+            if (nextFirstId > firstId) {
+                lastTime = buffer.getLong(offsetOf(nextFirstId - 1) + 8);
+            }
+        }
+
+        // the last segment: records are scanned (index is rebuilt), torn record ends them
+        void recover() {
+            int offset = 0;
+            int id = firstId;
+
+            while (offset + 4 + MIN_RECORD <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+
+                if (length < MIN_RECORD
+                        || offset + 4 + length > buffer.capacity()
+                        || buffer.getInt(offset + 4) != id) {
+                    break;
+                }
+
+                if ((id - firstId) % INDEX_INTERVAL == 0) {
+                    index.putInt((id - firstId) / INDEX_INTERVAL * 4, offset);
+                }
+
+                lastTime = buffer.getLong(offset + 8);
+                offset += 4 + length;
+                id++;
+            }
+
+            // torn record: its length is zeroed, next append overwrites the rest
+            if (offset + 4 <= buffer.capacity()) {
+                buffer.putInt(offset, 0);
+            }
+
+            end = offset;
+            nextId = id;
+        }
+
+        // terms of all records (rebuilt from segment)
+        MemoryTerms readTerms() {
+            MemoryTerms terms = new MemoryTerms();
+            ByteBuffer buffer = this.buffer.duplicate();
+            int offset = 0;
+
+            for (int id = firstId; id < nextId; id++) {
+                buffer.position(offset + HEADER + 4 + buffer.getInt(offset + HEADER));
+                terms.add(id, Terms.tokenize(string(buffer, buffer.getInt())));
+                offset += 4 + buffer.getInt(offset);
+            }
+
+            return terms;
+        }
+
+        void force() {
+            buffer.force();
+            index.force();
+        }
+
+        void delete() {
+            deleted = true;
+
+            try {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(indexFile);
+                Files.deleteIfExists(termsFile);
+            } catch (IOException e) {
+                LOG.warn("History segment not deleted: " + dataFile, e);
+            }
+        }
+    }
+}
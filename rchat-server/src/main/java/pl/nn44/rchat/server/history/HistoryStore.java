@@ -0,0 +1,154 @@
+package pl.nn44.rchat.server.history;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Message histories of all channels, every channel in own directory (see ChannelHistory).<br/>
+ * Retention: oldest segments of a channel are removed above max bytes (when a segment is added)
+ * and after max age (RETENTION_CRON).<br/>
+ * Terms files of full segments are written by one indexer thread.
+ */
+public class HistoryStore implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryStore.class);
+
+    public static final int DEFAULT_SEGMENT_BYTES = 8 << 20;
+    public static final String RETENTION_CRON = "0 */10 * * * *";
+    public static final int CLOSE_TIMEOUT_SEC = 10;
+
+    private static final Pattern PLAIN_NAME = Pattern.compile("[a-zA-Z0-9_-]{1,64}");
+
+    private final Path dir; // null = disabled
+    private final Limits limits;
+    private final ExecutorService indexer; // null = disabled
+    private final Map<String, ChannelHistory> histories = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private HistoryStore(Path dir, Limits limits) {
+        this.dir = dir;
+        this.limits = limits;
+        this.indexer = dir != null
+                ? Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("history-indexer").setDaemon(true).build())
+                : null;
+    }
+
+    public static HistoryStore open(Path dir,
+                                    int segmentBytes,
+                                    long maxBytes,
+                                    long maxAge,
+                                    TimeUnit maxAgeUnit) throws IOException {
+
+        Files.createDirectories(dir);
+
+        HistoryStore store = new HistoryStore(dir, new Limits(segmentBytes, maxBytes, maxAgeUnit.toMillis(maxAge)));
+        LOG.info("{} instance created: {}, {}.", HistoryStore.class.getSimpleName(), dir.toAbsolutePath(), store);
+        return store;
+    }
+
+    // nothing is stored: history of every channel is empty
+    public static HistoryStore disabled() {
+        return new HistoryStore(null, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // history of channel, loaded from its directory on first use
+    public ChannelHistory of(String channel) throws IOException {
+        ChannelHistory history = histories.get(channel);
+
+        if (history == null) {
+            history = dir != null
+                    ? new ChannelHistory(channel, dir.resolve(dirName(channel)), limits, indexer)
+                    : ChannelHistory.disabled(channel);
+
+            ChannelHistory prev = histories.putIfAbsent(channel, history);
+            history = prev != null ? prev : history;
+        }
+
+        return history;
+    }
+
+    // channel name as directory name (other names are hex-encoded: no "..", separators etc.)
+    private static String dirName(String channel) {
+        if (PLAIN_NAME.matcher(channel).matches()) {
+            return channel;
+        }
+
+        StringBuilder hex = new StringBuilder("_");
+        for (char c : channel.toCharArray()) {
+            hex.append(String.format("%04x", (int) c));
+        }
+        return hex.toString();
+    }
+
+    @Scheduled(cron = RETENTION_CRON)
+    public void retain() {
+        histories.values().forEach(history -> history.retain(true));
+    }
+
+    @Override
+    public void close() {
+        histories.values().forEach(ChannelHistory::force);
+
+        // not written terms files are rebuilt on load
+        if (indexer != null) {
+            indexer.shutdown();
+            try {
+                indexer.awaitTermination(CLOSE_TIMEOUT_SEC, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        LOG.info("{} closed: {}.", getClass().getSimpleName(), this);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", dir != null)
+                .add("limits", limits)
+                .add("channels", histories.size())
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    static class Limits {
+
+        final int segmentBytes;
+        final long maxBytes; // per channel
+        final long maxAgeMs;
+
+        Limits(int segmentBytes, long maxBytes, long maxAgeMs) {
+            this.segmentBytes = segmentBytes;
+            this.maxBytes = maxBytes;
+            this.maxAgeMs = maxAgeMs;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("segmentBytes", segmentBytes)
+                    .add("maxBytes", maxBytes)
+                    .add("maxAgeMs", maxAgeMs)
+                    .toString();
+        }
+    }
+}
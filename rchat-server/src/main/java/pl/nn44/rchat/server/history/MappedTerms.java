@@ -0,0 +1,115 @@
+package pl.nn44.rchat.server.history;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Terms of a full history segment, read from memory-mapped file (off heap).<br/>
+ * <br/>
+ * File: magic, first id, terms count, term area length (ints), term offsets (int each), term area, posting area.<br/>
+ * Term (sorted by utf-8 bytes): length (short), utf-8 bytes, postings offset (int), postings count (int).<br/>
+ * Postings: ascending ids as var-int deltas (first from the first id of the segment).
+ */
+class MappedTerms implements Terms {
+
+    static final int MAGIC = 0x52434654; // RCFT
+    private static final int HEADER = 4 * 4;
+
+    private final MappedByteBuffer buffer;
+    private final int firstId;
+    private final int count;
+    private final int termArea;
+    private final int postingArea;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private MappedTerms(MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a terms file");
+        }
+
+        this.buffer = buffer;
+        this.firstId = buffer.getInt(4);
+        this.count = buffer.getInt(8);
+        this.termArea = HEADER + 4 * count;
+        this.postingArea = termArea + buffer.getInt(12);
+    }
+
+    static MappedTerms map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            return new MappedTerms(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public int[] postings(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = this.buffer.duplicate();
+
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = termArea + buffer.getInt(HEADER + 4 * mid);
+            int cmp = compare(buffer, entry, key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                int length = buffer.getShort(entry);
+                return decode(buffer, postingArea + buffer.getInt(entry + 2 + length), buffer.getInt(entry + 6 + length));
+            }
+        }
+
+        return new int[0];
+    }
+
+    private static int compare(ByteBuffer buffer, int entry, byte[] key) {
+        int length = buffer.getShort(entry);
+
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int cmp = UnsignedBytes.compare(buffer.get(entry + 2 + i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+
+        return length - key.length;
+    }
+
+    private int[] decode(ByteBuffer buffer, int offset, int size) {
+        int[] ids = new int[size];
+        int prev = firstId;
+
+        buffer.position(offset);
+        for (int i = 0; i < size; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            prev += value;
+            ids[i] = prev;
+        }
+
+        return ids;
+    }
+}
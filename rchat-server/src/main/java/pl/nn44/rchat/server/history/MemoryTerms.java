@@ -0,0 +1,126 @@
+package pl.nn44.rchat.server.history;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Terms of the written history segment, on heap (bounded by segment size).<br/>
+ * Single writer (channel owner), readers see postings added before the last published size.<br/>
+ * Written to file (MappedTerms format) when the segment is full.
+ */
+class MemoryTerms implements Terms {
+
+    private final Map<String, Postings> terms = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // ids are added in ascending order
+    void add(int id, Collection<String> messageTerms) {
+        for (String term : messageTerms) {
+            terms.computeIfAbsent(term, t -> new Postings()).add(id);
+        }
+    }
+
+    @Override
+    public int[] postings(String term) {
+        Postings postings = terms.get(term);
+
+        return postings != null
+                ? postings.snapshot()
+                : new int[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // temp file is moved over the target, so a file is either complete or missing
+    void writeTo(Path file, int firstId) throws IOException {
+        byte[][] keys = terms.keySet().stream()
+                .map(term -> term.getBytes(StandardCharsets.UTF_8))
+                .sorted(UnsignedBytes.lexicographicalComparator())
+                .toArray(byte[][]::new);
+
+        ByteArrayOutputStream termArea = new ByteArrayOutputStream();
+        ByteArrayOutputStream postingArea = new ByteArrayOutputStream();
+        DataOutputStream termOut = new DataOutputStream(termArea);
+        int[] termOffsets = new int[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            int[] ids = terms.get(new String(keys[i], StandardCharsets.UTF_8)).snapshot();
+
+            termOffsets[i] = termArea.size();
+            termOut.writeShort(keys[i].length);
+            termOut.write(keys[i]);
+            termOut.writeInt(postingArea.size());
+            termOut.writeInt(ids.length);
+
+            int prev = firstId;
+            for (int id : ids) {
+                writeVarInt(postingArea, id - prev);
+                prev = id;
+            }
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.writeInt(MappedTerms.MAGIC);
+            out.writeInt(firstId);
+            out.writeInt(keys.length);
+            out.writeInt(termArea.size());
+
+            for (int offset : termOffsets) {
+                out.writeInt(offset);
+            }
+
+            termArea.writeTo(out);
+            postingArea.writeTo(out);
+        }
+
+        Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Postings {
+
+        private volatile int[] ids = new int[4];
+        private volatile int size = 0; // publishes ids below
+
+        void add(int id) {
+            int[] ids = this.ids;
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                this.ids = ids;
+            }
+
+            ids[size] = id;
+            size = size + 1;
+        }
+
+        int[] snapshot() {
+            int size = this.size;
+            return Arrays.copyOf(ids, size);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pl.nn44.rchat.server.history;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Inverted index of one history segment: term -> ids of messages containing it.<br/>
+ * Terms are lower-cased runs of letters/digits (at most MAX_TERM chars).
+ */
+interface Terms {
+
+    int MAX_TERM = 64;
+
+    // ascending ids, empty if term is not known
+    int[] postings(String term);
+
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inTerm = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                terms.add(lower.substring(start, Math.min(i, start + MAX_TERM)));
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    // ids containing all terms (ascending)
+    static int[] match(Terms index, Set<String> terms) {
+        int[] result = null;
+
+        for (String term : terms) {
+            int[] postings = index.postings(term);
+
+            result = result == null
+                    ? postings
+                    : intersect(result, postings);
+
+            if (result.length == 0) {
+                break;
+            }
+        }
+
+        return result != null ? result : new int[0];
+    }
+
+    // each of the smaller list is searched in the bigger one
+    static int[] intersect(int[] a, int[] b) {
+        int[] small = a.length <= b.length ? a : b;
+        int[] big = a.length <= b.length ? b : a;
+
+        int[] result = new int[small.length];
+        int size = 0;
+        int from = 0;
+
+        for (int id : small) {
+            int index = Arrays.binarySearch(big, from, big.length, id);
+
+            if (index >= 0) {
+                result[size++] = id;
+                from = index + 1;
+            } else {
+                from = -index - 1;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+}
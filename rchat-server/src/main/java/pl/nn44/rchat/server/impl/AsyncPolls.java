@@ -0,0 +1,407 @@
+package pl.nn44.rchat.server.impl;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.HttpRequestHandler;
+import pl.nn44.rchat.server.model.NewsFeed;
+import pl.nn44.rchat.server.util.TimerWheel;
+
+import javax.annotation.Nullable;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of parked long-polls (whatsUp).<br/>
+ * <br/>
+ * Request handlers wrapped by wrap() stream request and response through.<br/>
+ * Only the head of request body is read ahead: if it names a parking method (whatsUp),<br/>
+ * the (small) body is buffered so the call may be executed again, other calls are not copied.<br/>
+ * If ChatService decides to park() the call (before anything is written), next writes are discarded,<br/>
+ * the response is reset, servlet AsyncContext is started and the request thread is released.<br/>
+ * On first news (NewsFeed.listen) or on timeout (TimerWheel) the call is executed again,<br/>
+ * this time without parking, and the AsyncContext is completed.
+ */
+public class AsyncPolls implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncPolls.class);
+    private static final ThreadLocal<Call> CALL = new ThreadLocal<>();
+
+    // extra time for AsyncContext, normally the poll is resumed by TimerWheel
+    public static final long ASYNC_TIMEOUT_MARGIN_MS = TimeUnit.SECONDS.toMillis(30);
+    // method name is in first bytes of hessian, burlap and xml-rpc calls
+    public static final int HEAD_SIZE = 256;
+
+    private final byte[] parkingMethod;
+    private final TimerWheel timerWheel;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public AsyncPolls(String parkingMethod) {
+        this.parkingMethod = parkingMethod.getBytes(StandardCharsets.US_ASCII);
+        this.timerWheel = new TimerWheel("async-polls", 100, TimeUnit.MILLISECONDS, 1024);
+        LOG.info("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // true if current call is parked, then call result is ignored
+    // false if current call is not executed by wrapped handler or it was already parked once
+    public static boolean park(NewsFeed feed, long timeoutMs) {
+        Call call = CALL.get();
+
+        if (call == null || call.resumed) {
+            return false;
+        }
+
+        call.feed = feed;
+        call.timeoutMs = timeoutMs;
+        return true;
+    }
+
+    // true if current call was parked and now it is executed again (it should not wait for news)
+    public static boolean isResumed() {
+        Call call = CALL.get();
+        return call != null && call.resumed;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public HttpRequestHandler wrap(HttpRequestHandler handler) {
+        return (request, response) -> {
+            if (!request.isAsyncSupported()) {
+                handler.handleRequest(request, response);
+                return;
+            }
+
+            ServletInputStream in = request.getInputStream();
+            byte[] head = new byte[HEAD_SIZE];
+            int headLength = ByteStreams.read(in, head, 0, head.length);
+
+            if (!contains(head, headLength, parkingMethod)) {
+                // cannot park: the rest of body is streamed, nothing is captured
+                ServletInputStream rest = headLength < head.length || in.isFinished() ? null : in;
+                handler.handleRequest(new ReplayedRequest(request, head, headLength, rest), response);
+                return;
+            }
+
+            ByteArrayOutputStream captured = new ByteArrayOutputStream(Math.max(request.getContentLength(), 512));
+            captured.write(head, 0, headLength);
+            ByteStreams.copy(in, captured);
+            byte[] body = captured.toByteArray();
+
+            Call call = new Call(false);
+            ParkableResponse parkableResponse = new ParkableResponse(response, call);
+
+            CALL.set(call);
+            try {
+                handler.handleRequest(new ReplayedRequest(request, body, body.length, null), parkableResponse);
+            } finally {
+                CALL.remove();
+            }
+
+            if (call.feed == null) {
+                parkableResponse.flushWriter();
+                return;
+            }
+
+            response.reset();
+            AsyncContext context = request.startAsync();
+            context.setTimeout(call.timeoutMs + ASYNC_TIMEOUT_MARGIN_MS);
+
+            Parked parked = new Parked(handler, context, body, call.feed);
+            context.addListener(parked);
+            parked.timeout = timerWheel.schedule(parked, call.timeoutMs, TimeUnit.MILLISECONDS);
+            call.feed.listen(parked);
+        };
+    }
+
+    @Override
+    public void close() {
+        timerWheel.close();
+    }
+
+    private static boolean contains(byte[] bytes, int length, byte[] part) {
+        outer:
+        for (int i = 0; i <= length - part.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Call {
+
+        private final boolean resumed;
+        private NewsFeed feed;
+        private long timeoutMs;
+
+        Call(boolean resumed) {
+            this.resumed = resumed;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Parked implements Runnable, AsyncListener {
+
+        private final HttpRequestHandler handler;
+        private final AsyncContext context;
+        private final byte[] body;
+        private final NewsFeed feed;
+
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile TimerWheel.Timeout timeout;
+
+        Parked(HttpRequestHandler handler, AsyncContext context, byte[] body, NewsFeed feed) {
+            this.handler = handler;
+            this.context = context;
+            this.body = body;
+            this.feed = feed;
+        }
+
+        // news or timeout: execute call again
+        @Override
+        public void run() {
+            if (cancel()) {
+                context.start(this::resume);
+            }
+        }
+
+        private void resume() {
+            HttpServletRequest request = (HttpServletRequest) context.getRequest();
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+
+            CALL.set(new Call(true));
+            try {
+                handler.handleRequest(new ReplayedRequest(request, body, body.length, null), response);
+
+            } catch (Exception e) {
+                LOG.warn("Unable to resume parked call.", e);
+
+            } finally {
+                CALL.remove();
+                context.complete();
+            }
+        }
+
+        private boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+
+            feed.unlisten(this);
+            TimerWheel.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (cancel()) {
+                LOG.warn("Parked call timed out by container.");
+                context.complete();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            if (cancel()) {
+                LOG.debug("Parked call failed: {}", event.getThrowable().toString());
+                context.complete();
+            }
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // request body: bytes already read (head), then rest of the original stream (if any)
+    private static class ReplayedRequest extends HttpServletRequestWrapper {
+
+        private final byte[] head;
+        private final int headLength;
+        private final ServletInputStream rest;
+        private ServletInputStream stream;
+
+        ReplayedRequest(HttpServletRequest request, byte[] head, int headLength, @Nullable ServletInputStream rest) {
+            super(request);
+            this.head = head;
+            this.headLength = headLength;
+            this.rest = rest;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            if (stream != null) {
+                return stream;
+            }
+
+            ByteArrayInputStream in = new ByteArrayInputStream(head, 0, headLength);
+
+            stream = new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    return b != -1 || rest == null ? b : rest.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (in.available() > 0 || rest == null) {
+                        return in.read(b, off, len);
+                    }
+                    return rest.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0 && (rest == null || rest.isFinished());
+                }
+
+                @Override
+                public boolean isReady() {
+                    return in.available() > 0 || rest == null || rest.isReady();
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    if (rest != null) {
+                        // head is readable at once, container calls listener again when rest is available
+                        rest.setReadListener(readListener);
+                        return;
+                    }
+
+                    try {
+                        if (in.available() > 0) {
+                            readListener.onDataAvailable();
+                        }
+                        readListener.onAllDataRead();
+                    } catch (IOException e) {
+                        readListener.onError(e);
+                    }
+                }
+            };
+
+            return stream;
+        }
+
+        @Override
+        public int getContentLength() {
+            return rest == null ? headLength : super.getContentLength();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // writes are passed through until the call is parked, then they are discarded (result is ignored)
+    private static class ParkableResponse extends HttpServletResponseWrapper {
+
+        private final Call call;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        ParkableResponse(HttpServletResponse response, Call call) {
+            super(response);
+            this.call = call;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream != null) {
+                return stream;
+            }
+
+            ServletOutputStream out = super.getOutputStream();
+
+            stream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    if (call.feed == null) {
+                        out.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (call.feed == null) {
+                        out.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (call.feed == null) {
+                        out.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (call.feed == null) {
+                        out.close();
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return out.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    out.setWriteListener(writeListener);
+                }
+            };
+
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (call.feed == null) {
+                super.flushBuffer();
+            }
+        }
+
+        void flushWriter() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+}
@@ -2,44 +2,72 @@ package pl.nn44.rchat.server.impl;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import pl.nn44.rchat.protocol.ChatService;
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.CommandResult;
 import pl.nn44.rchat.protocol.exception.ChatException;
 import pl.nn44.rchat.protocol.exception.ChatException.Reason;
 import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.ChannelList;
+import pl.nn44.rchat.protocol.model.HistoryPage;
+import pl.nn44.rchat.protocol.model.MemberDelta;
+import pl.nn44.rchat.protocol.model.MemberPage;
 import pl.nn44.rchat.protocol.model.Response;
 import pl.nn44.rchat.protocol.model.User;
 import pl.nn44.rchat.protocol.model.WhatsUp;
 import pl.nn44.rchat.protocol.model.WhatsUp.What;
 import pl.nn44.rchat.server.aspect.Loggable;
+import pl.nn44.rchat.server.history.HistoryStore;
+import pl.nn44.rchat.server.jfr.Jfr;
+import pl.nn44.rchat.server.journal.Change;
+import pl.nn44.rchat.server.journal.Journal;
+import pl.nn44.rchat.server.metrics.RequestTrace;
+import pl.nn44.rchat.server.model.ChannelListCache;
+import pl.nn44.rchat.server.model.MemberLog;
+import pl.nn44.rchat.server.model.NewsFeed;
+import pl.nn44.rchat.server.model.NewsLimits;
+import pl.nn44.rchat.server.model.NewsStats;
+import pl.nn44.rchat.server.model.NewsLimits.Overflow;
 import pl.nn44.rchat.server.model.ServerChannel;
 import pl.nn44.rchat.server.model.ServerUser;
 import pl.nn44.rchat.server.util.BigIdGenerator;
+import pl.nn44.rchat.server.util.LockStats;
+import pl.nn44.rchat.server.util.Outbox;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.SecureRandom;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 @Loggable
-public class BestChatService implements ChatService {
+public class BestChatService implements ChatService, FeedSource, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(BestChatService.class);
 
     public static final int MAX_NEWS_PER_REQUEST = 8;
+    public static final int NEWS_CAPACITY = 512;
     public static final int ID_RANDOM_BITS = 8 * BigIdGenerator.BITS_PER_CHAR;
     public static final int STRIPED_LOCKS = 32;
+    public static final int MAX_BATCH_STRIPES = STRIPED_LOCKS / 8; // more: batch commands are locked one by one
+    public static final int DISPATCHER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int JOIN_MEMBERS_PAGE = 256;
+    public static final int MAX_MEMBERS_PAGE = 1024;
+    public static final int MAX_HISTORY_PAGE = 256;
+    public static final long LOCK_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+    public static final String LOCK_STATS_CRON = "30 */5 * * * *";
 
-    public static final String SESSION_CLEANUP_CRON = "0 */5 * * * *";
     public static final long SESSION_TIMEOUT_SECONDS = TimeUnit.MINUTES.toSeconds(3L);
 
     private final Random random = new SecureRandom();
@@ -48,35 +76,175 @@ public class BestChatService implements ChatService {
 
     private final ConcurrentMap<String, String> accounts/*username/password*/ = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, ServerUser> sessionToUser = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ServerUser> userByName = new ConcurrentHashMap<>(); // logged in only
     private final ConcurrentMap<String, ServerChannel> channelByName = new ConcurrentHashMap<>();
+    private final ChannelListCache channelList;
+    private final NewsStats newsStats = new NewsStats(sessionToUser::values, channelByName::values);
 
-    private final Striped<Lock> stripedLocks = Striped.lazyWeakLock(STRIPED_LOCKS);
+    private final Striped<Lock> stripedLocks = Striped.lock(STRIPED_LOCKS);
+    private final Map<Lock, Integer> stripeIndex = new IdentityHashMap<>(STRIPED_LOCKS);
+    private final LockStats lockStats = new LockStats(stripedLocks.size());
+    private final ThreadLocal<Locks> batchLocks = new ThreadLocal<>();
+    private final ExecutorService dispatcher; // executes outboxes (news fan-out) after unlock
+
+    private final NewsLimits newsLimits;
+    private final SessionExpiry sessionExpiry;
+    private final Journal journal;
 
     public BestChatService() {
+        this(NewsLimits.of(NEWS_CAPACITY, Overflow.DROP_OLDEST, SESSION_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    public BestChatService(NewsLimits newsLimits) {
+        this(newsLimits, Journal.disabled(), HistoryStore.disabled());
+    }
+
+    public BestChatService(NewsLimits newsLimits, Journal journal, HistoryStore history) {
+        this.newsLimits = newsLimits;
+        this.journal = journal;
+        this.sessionExpiry = new SessionExpiry(SESSION_TIMEOUT_SECONDS, TimeUnit.SECONDS, this::expire);
+        this.dispatcher = Executors.newFixedThreadPool(
+                DISPATCHER_THREADS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("outbox-%d")
+                        .setDaemon(true)
+                        .build()
+        );
+
+        for (int i = 0; i < stripedLocks.size(); i++) {
+            stripeIndex.put(stripedLocks.getAt(i), i);
+        }
+
+        populate(accounts, channelByName, journal, history);
+        this.channelList = new ChannelListCache(channelByName);
+
+        LOG.info("{} instance created: {}.", getClass().getSimpleName(), newsLimits);
+    }
+
+    // hard-coded accounts (shared by all engines),
+    // channels are recovered from journal, or created by seed changes on first start
+    static void populate(Map<String, String> accounts,
+                         Map<String, ServerChannel> channelByName,
+                         Journal journal,
+                         HistoryStore history) {
+
         accounts.put("admin", "admin");
         accounts.put("student", "student");
 
-        channelByName.put("anybody", new ServerChannel("anybody", null, ""));
-        channelByName.put("python", new ServerChannel("python", null, "python lovers"));
-        channelByName.put("cars", new ServerChannel("cars", null, "no bike"));
-        channelByName.put("students", new ServerChannel("students", null, "trust me, i'm an engineer"));
-        channelByName.put("admins", new ServerChannel("admins", "admins", "keep silence"));
+        journal.recover(channelByName, Arrays.asList(
+                Change.channel("anybody", null, ""),
+                Change.channel("python", null, "python lovers"),
+                Change.channel("cars", null, "no bike"),
+                Change.channel("students", null, "trust me, i'm an engineer"),
+                Change.channel("admins", "admins", "keep silence"),
+
+                Change.admin("anybody", "admin", true),
+                Change.admin("python", "admin", true),
+                Change.admin("cars", "admin", true),
+                Change.admin("students", "admin", true),
+                Change.admin("students", "student", true),
+                Change.admin("admins", "admin", true),
+
+                Change.ban("python", "java", true)
+        ));
 
-        channelByName.get("anybody").getAdmins().add("admin");
-        channelByName.get("python").getAdmins().add("admin");
-        channelByName.get("cars").getAdmins().add("admin");
-        channelByName.get("students").getAdmins().add("admin");
-        channelByName.get("students").getAdmins().add("student");
-        channelByName.get("admins").getAdmins().add("admin");
+        for (ServerChannel channel : channelByName.values()) {
+            try {
+                channel.setHistory(history.of(channel.getName()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // members page after given username (shared by all engines), requires channel owner
+    static MemberPage memberPage(Map<String, String> accounts,
+                                 ServerUser caller,
+                                 ServerChannel channel,
+                                 @Nullable String after,
+                                 int limit) {
+
+        // one more member than requested: next cursor is given only if the next page is not empty
+        List<ServerUser> members = channel.getUsers(after, limit + 1);
+        boolean more = members.size() > limit;
+
+        if (more) {
+            members = members.subList(0, limit);
+        }
+
+        return new MemberPage(
+                channel.getName(),
+                channel.getMemberLog().getVersion(),
+                channel.getUsersCount(),
+                users(accounts, caller, channel, members),
+                more ? members.get(limit - 1).getUsername() : null
+        );
+    }
+
+    // membership changes since given version (shared by all engines), requires channel owner
+    static MemberDelta memberDelta(Map<String, String> accounts,
+                                   ServerUser caller,
+                                   ServerChannel channel,
+                                   int sinceVersion) {
+
+        MemberLog log = channel.getMemberLog();
+        Map<String, Boolean> changes = log.since(sinceVersion);
+
+        if (changes == null) {
+            return MemberDelta.reset(channel.getName(), log.getVersion());
+        }
+
+        List<ServerUser> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            ServerUser member = channel.getUser(change.getKey());
+
+            if (change.getValue() && member != null) {
+                joined.add(member);
+            } else if (!change.getValue() && member == null) {
+                left.add(change.getKey());
+            }
+        }
+
+        return new MemberDelta(
+                channel.getName(),
+                log.getVersion(),
+                false,
+                users(accounts, caller, channel, joined),
+                left.toArray(new String[left.size()])
+        );
+    }
 
-        channelByName.get("python").getBanned().add("java");
+    // members as seen by the caller
+    private static User[] users(Map<String, String> accounts,
+                                ServerUser caller,
+                                ServerChannel channel,
+                                List<ServerUser> members) {
+
+        // one copy per page instead of list lookup per member
+        Set<String> ignored = new HashSet<>(caller.getIgnored());
+        User[] users = new User[members.size()];
+
+        for (int i = 0; i < users.length; i++) {
+            String username = members.get(i).getUsername();
+
+            users[i] = new User(
+                    channel.getName(),
+                    username,
+                    accounts.containsKey(username),
+                    ignored.contains(username),
+                    channel.getAdmins().contains(username),
+                    channel.getBanned().contains(username)
+            );
+        }
 
-        LOG.info("{} instance created.", getClass().getSimpleName());
+        return users;
     }
 
     @Override
     public Response<String> login(String username, @Nullable String password) throws ChatException {
-        Locks locks = locks(null, null, username);
+        Locks locks = locks("login", null, null, username);
 
         try {
             if (!nameValidator.matcher(username).matches()) {
@@ -87,16 +255,20 @@ public class BestChatService implements ChatService {
                 throw new ChatException(Reason.GIVEN_BAD_PASSWORD);
             }
 
-            if (sessionToUser.containsValue(ServerUser.dummyUser(username))) {
+            String session = idGenerator.next();
+            ServerUser user = new ServerUser(session, username, newsLimits, newsStats);
+
+            if (userByName.putIfAbsent(username, user) != null) {
                 throw new ChatException(Reason.ALREADY_LOGGED_IN);
             }
 
-            String session = idGenerator.next();
-            ServerUser user = new ServerUser(session, username);
             sessionToUser.put(session, user);
+            sessionExpiry.watch(user);
 
-            WhatsUp nothing = WhatsUp.create(What.NOTHING);
-            offer(nothing, user);
+            locks.publish(user.getOutbox(), () -> {
+                WhatsUp nothing = WhatsUp.create(What.NOTHING);
+                offer(nothing, user);
+            });
 
             return Response.ok(user.getSession());
 
@@ -107,58 +279,64 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> logout(String session) throws ChatException {
-        Locks locks = locks(session, null, null);
+        Params params;
 
+        Locks locks = locks("logout", session, null, null);
         try {
-            Params params = params(session, null, null, false, false);
-
-            for (ServerChannel channel : params.caller.getChannels()) {
-                // double lock is safe operation:
-                // "If the current thread already holds the lock
-                // then the hold count is incremented by one and the method returns immediately."
-                part(session, channel.getName(), "unused");
-            }
-
-            WhatsUp nothing = WhatsUp.create(What.NOTHING);
-            offer(nothing, params.caller);
+            params = params(session, null, null, false, false);
 
+            // session is not accepted from now, so caller cannot join again
             sessionToUser.remove(session);
-
-            return Response.ok();
+            userByName.remove(params.caller.getUsername(), params.caller);
+            sessionExpiry.unwatch(params.caller);
 
         } finally {
             locks.unlock();
         }
+
+        // channels are left outside the caller lock,
+        // because locks of one call must be taken at once (in stripe order)
+        for (ServerChannel channel : params.caller.getChannels()) {
+            Locks chanLocks = locks("logout", null, channel.getName(), params.caller.getUsername());
+            try {
+                leave(chanLocks, params.caller, channel);
+            } finally {
+                chanLocks.unlock();
+            }
+        }
+
+        WhatsUp nothing = WhatsUp.create(What.NOTHING);
+        offer(nothing, params.caller);
+
+        return Response.ok();
     }
 
     @Override
     public Response<Channel[]> channels(String session) throws ChatException {
-        Locks locks = locks(session, null, null);
+        //  side-effect used: verify session (no locks: session map is concurrent)
+        params(session, null, null, false, false);
 
-        try {
-            //  side-effect used: verify session
-            params(session, null, null, false, false);
-
-            Channel[] channels = channelByName.values().stream()
-                    .map(chan -> new Channel(
-                            chan.getName(),
-                            chan.getPassword() != null
-                    ))
-                    .toArray(Channel[]::new);
+        return channelList.channels();
+    }
 
-            return Response.ok(channels);
+    @Override
+    public Response<ChannelList> channelList(String session, int knownVersion) throws ChatException {
+        //  side-effect used: verify session (no locks: session map is concurrent)
+        params(session, null, null, false, false);
 
-        } finally {
-            locks.unlock();
-        }
+        return channelList.since(knownVersion);
     }
 
     @Override
     public Response<Channel> join(String session, String channel, @Nullable String password) throws ChatException {
-        Locks locks = locks(session, channel, null);
+        Params params;
+        MemberPage members;
+        String topic;
+        int historyId;
 
+        Locks locks = locks("join", session, channel, null);
         try {
-            Params params = params(session, null, null, false, false);
+            params = params(session, null, null, false, false);
             // cannot get channel in one params request as then there is used verification if user is on channel
             params.channel = params(null, channel, null, false, false).channel;
 
@@ -176,7 +354,7 @@ public class BestChatService implements ChatService {
             }
             */
 
-            boolean addC = params.channel.getUsers().addIfAbsent(params.caller);
+            boolean addC = params.channel.addUser(params.caller);
             boolean addU = params.caller.getChannels().addIfAbsent(params.channel);
 
             if (addC ^ addU) {
@@ -184,91 +362,134 @@ public class BestChatService implements ChatService {
             }
 
             if (addC) {
-                boolean auth = accounts.containsKey(params.caller.getUsername());
-                boolean admin = params.channel.getAdmins().contains(params.caller.getUsername());
-
-                params.channel.getUsers().stream()
-                        .filter(su -> !su.equals(params.caller))
-                        .forEach(su -> {
-                            boolean ignored = su.getIgnored().contains(params.caller.getUsername());
-
-                            WhatsUp whatsUp = WhatsUp.create(
-                                    What.JOIN,
-                                    params.channel.getName(),
-                                    params.caller.getUsername(),
-                                    Boolean.toString(auth),
-                                    Boolean.toString(ignored),
-                                    Boolean.toString(admin)
-                            );
-
-                            offer(whatsUp, su);
-                        });
-            }
-
-            User[] users = params.channel.getUsers()
-                    .stream()
-                    .map(cUser -> new User(
-                            params.channel.getName(),
-                            cUser.getUsername(),
-                            accounts.containsKey(cUser.getUsername()),
-                            params.caller.getIgnored().contains(cUser.getUsername()),
-                            params.channel.getAdmins().contains(cUser.getUsername()),
-                            params.channel.getBanned().contains(cUser.getUsername())
-                    ))
-                    .toArray(User[]::new);
-
-            Channel pChannel = new Channel(
-                    params.channel.getName(),
-                    params.channel.getPassword() != null,
-                    params.channel.getTopic(),
-                    users
-            );
+                ServerUser pCaller = params.caller;
+                ServerChannel pChannel = params.channel;
+                boolean auth = accounts.containsKey(pCaller.getUsername());
+                boolean admin = pChannel.getAdmins().contains(pCaller.getUsername());
+
+                locks.publish(pChannel, () -> {
+                    // users ignoring the caller see JOIN with ignored flag set
+                    WhatsUp[] whatsUps = new WhatsUp[2];
+                    for (int ignored = 0; ignored < whatsUps.length; ignored++) {
+                        whatsUps[ignored] = WhatsUp.create(
+                                What.JOIN,
+                                pChannel.getName(),
+                                pCaller.getUsername(),
+                                Boolean.toString(auth),
+                                Boolean.toString(ignored == 1),
+                                Boolean.toString(admin)
+                        );
+                    }
+
+                    pChannel.getLog().append(whatsUps[0], pCaller.getUsername(), whatsUps[1]);
+                    // cursor is set after JOIN, so the caller does not get own JOIN
+                    pCaller.getNews().attach(pChannel);
+                });
+            }
 
-            return Response.ok(pChannel);
+            // first page as of this commit, later changes come to the caller as news (and memberDeltas)
+            members = memberPage(accounts, params.caller, params.channel, null, JOIN_MEMBERS_PAGE);
+            topic = params.channel.getTopic();
+            // messages committed later come to the caller as news, older ones are in history
+            historyId = params.channel.getHistory().nextId();
 
         } finally {
             locks.unlock();
         }
+
+        Channel pChannel = new Channel(
+                params.channel.getName(),
+                params.channel.getPassword() != null,
+                topic,
+                members.getUsers(),
+                members.getVersion(),
+                members.getTotal(),
+                members.getNext(),
+                historyId
+        );
+
+        return Response.ok(pChannel);
     }
 
     @Override
     public Response<?> part(String session, String channel, String unused) throws ChatException {
-        Locks locks = locks(session, channel, null);
+        Locks locks = locks("part", session, channel, null);
 
         try {
             Params params = params(session, null, null, false, false);
             // without verification if caller is on channel, NO_PERMISSION will not be thrown
             params.channel = params(null, channel, null, false, false).channel;
 
-            boolean removeC = params.channel.getUsers().remove(params.caller);
-            boolean removeU = params.caller.getChannels().remove(params.channel);
+            leave(locks, params.caller, params.channel);
 
-            if (removeC ^ removeU) {
-                LOG.warn("part(): removeC ^ removeU is true, but it should not");
-            }
+            return Response.ok();
 
-            if (removeC) {
-                WhatsUp whatsUp = WhatsUp.create(
-                        What.PART,
-                        params.channel.getName(),
-                        params.caller.getUsername()
-                );
+        } finally {
+            locks.unlock();
+        }
+    }
 
-                for (ServerUser su : params.channel.getUsers()) {
-                    offer(whatsUp, su);
-                }
-            }
+    @Override
+    public Response<MemberPage> members(String session, String channel, @Nullable String after, int limit)
+            throws ChatException {
 
-            return Response.ok();
+        Locks locks = locks("members", session, channel, null);
+
+        try {
+            Params params = params(session, channel, null, false, false);
+            int pageLimit = Math.max(1, Math.min(limit, MAX_MEMBERS_PAGE));
+
+            return Response.ok(memberPage(accounts, params.caller, params.channel, after, pageLimit));
 
         } finally {
             locks.unlock();
         }
     }
 
+    @Override
+    public Response<MemberDelta> memberDeltas(String session, String channel, int sinceVersion)
+            throws ChatException {
+
+        Locks locks = locks("memberDeltas", session, channel, null);
+
+        try {
+            Params params = params(session, channel, null, false, false);
+
+            return Response.ok(memberDelta(accounts, params.caller, params.channel, sinceVersion));
+
+        } finally {
+            locks.unlock();
+        }
+    }
+
+    // requires channel & user locks
+    private void leave(Locks locks, ServerUser user, ServerChannel channel) {
+        boolean removeC = channel.removeUser(user);
+        boolean removeU = user.getChannels().remove(channel);
+
+        if (removeC ^ removeU) {
+            LOG.warn("leave(): removeC ^ removeU is true, but it should not");
+        }
+
+        locks.publish(channel, () -> {
+            // cursor is removed before PART, so the user does not get own PART
+            user.getNews().detach(channel);
+
+            if (removeC) {
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.PART,
+                        channel.getName(),
+                        user.getUsername()
+                );
+
+                channel.getLog().append(whatsUp);
+            }
+        });
+    }
+
     @Override
     public Response<?> topic(String session, String channel, String text) throws ChatException {
-        Locks locks = locks(session, channel, null);
+        Locks locks = locks("topic", session, channel, null);
 
         try {
             Params params = params(session, channel, null, true, false);
@@ -277,17 +498,18 @@ public class BestChatService implements ChatService {
 
             if (change) {
                 params.channel.setTopic(text);
+                journal.append(Change.topic(params.channel.getName(), text));
 
-                WhatsUp whatsUp = WhatsUp.create(
-                        What.TOPIC,
-                        params.channel.getName(),
-                        params.caller.getUsername(),
-                        text
-                );
+                locks.publish(params.channel, () -> {
+                    WhatsUp whatsUp = WhatsUp.create(
+                            What.TOPIC,
+                            params.channel.getName(),
+                            params.caller.getUsername(),
+                            text
+                    );
 
-                for (ServerUser su : params.channel.getUsers()) {
-                    offer(whatsUp, su);
-                }
+                    params.channel.getLog().append(whatsUp);
+                });
             }
 
             return Response.ok();
@@ -299,12 +521,12 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> kick(String session, String channel, String username) throws ChatException {
-        Locks locks = locks(session, channel, username);
+        Locks locks = locks("kick", session, channel, username);
 
         try {
             Params params = params(session, channel, username, true, true);
 
-            boolean removeC = params.channel.getUsers().remove(params.affUser);
+            boolean removeC = params.channel.removeUser(params.affUser);
             boolean removeU = params.affUser.getChannels().remove(params.channel);
 
             if (removeC ^ removeU) {
@@ -312,18 +534,18 @@ public class BestChatService implements ChatService {
             }
 
             if (removeC) {
-                WhatsUp wuKick = WhatsUp.create(
-                        What.KICK,
-                        params.channel.getName(),
-                        params.affUser.getUsername(),
-                        params.caller.getUsername()
-                );
-
-                for (ServerUser su : params.channel.getUsers()) {
-                    offer(wuKick, su);
-                }
-
-                offer(wuKick, params.affUser);
+                locks.publish(params.channel, () -> {
+                    WhatsUp wuKick = WhatsUp.create(
+                            What.KICK,
+                            params.channel.getName(),
+                            params.affUser.getUsername(),
+                            params.caller.getUsername()
+                    );
+
+                    params.channel.getLog().append(wuKick);
+                    // cursor is removed after KICK, so affUser gets KICK too
+                    params.affUser.getNews().detach(params.channel);
+                });
             }
 
             return Response.ok();
@@ -335,27 +557,29 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> ban(String session, String channel, String username, boolean state) throws ChatException {
-        Locks locks = locks(session, channel, username);
+        Locks locks = locks("ban", session, channel, username);
 
         try {
             Params params = params(session, channel, username, true, false);
 
             boolean change = state
-                    ? params.channel.getBanned().addIfAbsent(params.affUser.getUsername())
+                    ? params.channel.getBanned().add(params.affUser.getUsername())
                     : params.channel.getBanned().remove(params.affUser.getUsername());
 
             if (change) {
-                WhatsUp whatsUp = WhatsUp.create(
-                        What.BAN,
-                        params.channel.getName(),
-                        params.affUser.getUsername(),
-                        params.caller.getUsername(),
-                        state ? "on" : "off"
-                );
+                journal.append(Change.ban(params.channel.getName(), params.affUser.getUsername(), state));
 
-                for (ServerUser su : params.channel.getUsers()) {
-                    offer(whatsUp, su);
-                }
+                locks.publish(params.channel, () -> {
+                    WhatsUp whatsUp = WhatsUp.create(
+                            What.BAN,
+                            params.channel.getName(),
+                            params.affUser.getUsername(),
+                            params.caller.getUsername(),
+                            state ? "on" : "off"
+                    );
+
+                    params.channel.getLog().append(whatsUp);
+                });
             }
 
             return Response.ok();
@@ -367,27 +591,29 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> admin(String session, String channel, String username, boolean state) throws ChatException {
-        Locks locks = locks(session, channel, username);
+        Locks locks = locks("admin", session, channel, username);
 
         try {
             Params params = params(session, channel, username, true, false);
 
             boolean change = state
-                    ? params.channel.getAdmins().addIfAbsent(params.affUser.getUsername())
+                    ? params.channel.getAdmins().add(params.affUser.getUsername())
                     : params.channel.getAdmins().remove(params.affUser.getUsername());
 
             if (change) {
-                WhatsUp whatsUp = WhatsUp.create(
-                        What.ADMIN,
-                        params.channel.getName(),
-                        params.affUser.getUsername(),
-                        params.caller.getUsername(),
-                        state ? "on" : "off"
-                );
+                journal.append(Change.admin(params.channel.getName(), params.affUser.getUsername(), state));
 
-                for (ServerUser su : params.channel.getUsers()) {
-                    offer(whatsUp, su);
-                }
+                locks.publish(params.channel, () -> {
+                    WhatsUp whatsUp = WhatsUp.create(
+                            What.ADMIN,
+                            params.channel.getName(),
+                            params.affUser.getUsername(),
+                            params.caller.getUsername(),
+                            state ? "on" : "off"
+                    );
+
+                    params.channel.getLog().append(whatsUp);
+                });
             }
 
             return Response.ok();
@@ -399,7 +625,7 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> ignore(String session, String unused, String username, boolean state) throws ChatException {
-        Locks locks = locks(session, null, username);
+        Locks locks = locks("ignore", session, null, username);
 
         try {
             Params params = params(session, null, username, false, false);
@@ -417,14 +643,12 @@ public class BestChatService implements ChatService {
                         state ? "on" : "off"
                 );
 
-                offer(whatsUp, params.caller);
+                locks.publish(params.caller.getOutbox(), () -> offer(whatsUp, params.caller));
 
-                // notify affUser if he is on any chan
-                channelByName.values().stream()
-                        .flatMap(c -> c.getUsers().stream())
-                        .filter(u -> u.equals(params.affUser))
-                        .findFirst()
-                        .ifPresent(su -> offer(whatsUp, su));
+                // notify affUser if he is logged in
+                if (params.affUser.getSession() != null && !params.affUser.equals(params.caller)) {
+                    locks.publish(params.affUser.getOutbox(), () -> offer(whatsUp, params.affUser));
+                }
             }
 
             return Response.ok();
@@ -436,25 +660,26 @@ public class BestChatService implements ChatService {
 
     @Override
     public Response<?> message(String session, String channel, String text) throws ChatException {
-        Locks locks = locks(session, channel, null);
+        Locks locks = locks("message", session, channel, null);
 
         try {
             Params params = params(session, channel, null, false, false);
 
-            WhatsUp whatsUp = WhatsUp.create(
-                    What.MESSAGE,
-                    params.channel.getName(),
-                    params.caller.getUsername(),
-                    text
-            );
+            // under channel lock: history order is commit order (see join: historyId)
+            params.channel.getHistory().append(params.caller.getUsername(), text, System.currentTimeMillis());
 
-            for (ServerUser su : params.channel.getUsers()) {
-                boolean ignore = su.getIgnored().contains(params.caller.getUsername());
+            locks.publish(params.channel, () -> {
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.MESSAGE,
+                        params.channel.getName(),
+                        params.caller.getUsername(),
+                        text
+                );
 
-                if (!ignore) {
-                    offer(whatsUp, su);
-                }
-            }
+                // users ignoring the caller skip it while reading
+                params.channel.getLog().append(whatsUp, params.caller.getUsername(), null);
+                newsStats.fanOut(params.channel.getLog().readers());
+            });
 
             return Response.ok();
 
@@ -463,13 +688,40 @@ public class BestChatService implements ChatService {
         }
     }
 
+    @Override
+    public Response<HistoryPage> history(String session, String channel, int beforeId, int limit)
+            throws ChatException {
+
+        //  no locks: history is read without locks (members are concurrent)
+        Params params = params(session, channel, null, false, false);
+        int pageLimit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+
+        return Response.ok(params.channel.getHistory().page(beforeId, pageLimit, params.caller.getIgnored()));
+    }
+
+    @Override
+    public Response<HistoryPage> search(String session, String channel, String query, int limit)
+            throws ChatException {
+
+        //  no locks: as history
+        Params params = params(session, channel, null, false, false);
+        int pageLimit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+
+        return Response.ok(params.channel.getHistory().search(query, pageLimit, params.caller.getIgnored()));
+    }
+
     @Override
     public Response<?> privy(String session, String username, String text) throws ChatException {
-        Locks locks = locks(session, null, username);
+        Locks locks = locks("privy", session, null, username);
 
         try {
             Params params = params(session, null, username, false, false);
 
+            // message to user who is not logged in
+            if (params.affUser.getSession() == null) {
+                throw new ChatException(Reason.GIVEN_BAD_USERNAME);
+            }
+
             boolean ignore = params.affUser.getIgnored().contains(params.caller.getUsername());
 
             if (!ignore) {
@@ -481,8 +733,11 @@ public class BestChatService implements ChatService {
                         text
                 );
 
-                offer(whatsUp, params.caller);
-                offer(whatsUp, params.affUser);
+                locks.publish(params.caller.getOutbox(), () -> offer(whatsUp, params.caller));
+
+                if (!params.affUser.equals(params.caller)) {
+                    locks.publish(params.affUser.getOutbox(), () -> offer(whatsUp, params.affUser));
+                }
             }
 
             return Response.ok();
@@ -492,43 +747,130 @@ public class BestChatService implements ChatService {
         }
     }
 
+    @Override
+    public Response<CommandResult[]> batch(String session, Command[] commands) throws ChatException {
+        CommandResult[] results = new CommandResult[commands.length];
+        int executed = Math.min(commands.length, Command.MAX_BATCH);
+
+        String[] channels = new String[executed];
+        String[] usernames = new String[executed];
+
+        for (int i = 0; i < executed; i++) {
+            channels[i] = lockedChannel(commands[i]);
+            usernames[i] = lockedUsername(commands[i]);
+        }
+
+        // locks of all commands are taken once, commands executed under them take no locks (see locks()),
+        // unless they span too many stripes (blocking most of the service): then each command takes its own
+        Locks locks = new Locks("batch", session, channels, usernames);
+        boolean locked = locks.stripes() <= MAX_BATCH_STRIPES;
+
+        if (locked) {
+            locks.lock();
+            batchLocks.set(locks);
+        }
+
+        try {
+            for (int i = 0; i < executed; i++) {
+                try {
+                    results[i] = CommandResult.ok(commands[i].execute(this, session));
+                } catch (ChatException e) {
+                    results[i] = CommandResult.failed(e.getReason());
+                }
+            }
+
+        } finally {
+            if (locked) {
+                batchLocks.remove();
+            }
+            locks.unlock(); // nothing to unlock if not locked, ends the command
+        }
+
+        for (int i = executed; i < commands.length; i++) {
+            results[i] = CommandResult.failed(Reason.SERVER_BUSY);
+        }
+
+        return Response.ok(results);
+    }
+
+    // channel locked by the command's call (see locks(session, channel, username) of each call)
+    private static String lockedChannel(Command command) {
+        switch (command.getAction()) {
+            case IGNORE:
+            case PRIVY:
+                return null;
+            default:
+                return command.getParam1();
+        }
+    }
+
+    // username locked by the command's call (see locks(session, channel, username) of each call)
+    private static String lockedUsername(Command command) {
+        switch (command.getAction()) {
+            case KICK:
+            case BAN:
+            case ADMIN:
+            case IGNORE:
+                return command.getParam2();
+            case PRIVY:
+                return command.getParam1();
+            default:
+                return null;
+        }
+    }
+
     @Override
     public Response<WhatsUp[]> whatsUp(String session, int longPoolingTimeoutMs) throws ChatException {
         Params params;
 
-        Locks locks = locks(session, null, null);
+        Locks locks = locks("whatsUp", session, null, null);
         try {
             params = params(session, null, null, false, true);
         } finally {
             locks.unlock();
         }
 
-        ArrayList<WhatsUp> news = new ArrayList<>(MAX_NEWS_PER_REQUEST / 2);
+        // Overflow.LOGOUT: consumer was too slow
+        if (params.caller.getNews().isOverflowed()) {
+            logout(session);
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
 
-        while (news.size() < MAX_NEWS_PER_REQUEST) {
-            WhatsUp poll = params.caller.getNews().poll();
+        NewsFeed feed = params.caller.getNews();
+        long timeoutMs = longPoolingTimeoutMs;
+        boolean resumed = AsyncPolls.isResumed();
+        boolean waits = !resumed && timeoutMs > 0 && !feed.hasNews();
 
-            if (poll != null) {
-                news.add(poll);
+        Object pollEvent = Jfr.longPollBegin();
 
-            } else if (news.size() == 0) {
-                try {
-                    poll = params.caller.getNews().poll(longPoolingTimeoutMs, TimeUnit.MILLISECONDS);
+        if (resumed) {
+            // parked call executed again: there are news or timeout passed
+            timeoutMs = 0;
 
-                    if (poll != null) {
-                        news.add(poll);
-                    } else {
-                        break;
-                    }
+        } else if (waits && AsyncPolls.park(feed, timeoutMs)) {
+            // request thread is released, result is ignored
+            Jfr.longPollEnd(pollEvent, Jfr.POLL_PARK, params.caller.getUsername(), timeoutMs, 0);
+            return Response.ok(new WhatsUp[0]);
+        }
 
-                } catch (InterruptedException e) {
-                    LOG.warn("whatsUp InterruptedException", e);
-                    break;
-                }
+        List<WhatsUp> news;
 
-            } else {
-                break;
-            }
+        try {
+            news = feed.poll(
+                    MAX_NEWS_PER_REQUEST,
+                    timeoutMs,
+                    TimeUnit.MILLISECONDS
+            );
+
+        } catch (InterruptedException e) {
+            LOG.warn("whatsUp InterruptedException", e);
+            news = Collections.emptyList();
+        }
+
+        // polls without wait (timeout 0, news ready) are not long-polls
+        if (resumed || waits) {
+            String phase = news.isEmpty() ? Jfr.POLL_TIMEOUT : Jfr.POLL_WAKE;
+            Jfr.longPollEnd(pollEvent, phase, params.caller.getUsername(), longPoolingTimeoutMs, news.size());
         }
 
         WhatsUp[] newsArray = new WhatsUp[news.size()];
@@ -536,31 +878,62 @@ public class BestChatService implements ChatService {
         return Response.ok(newsArray);
     }
 
+    @Override
+    public NewsStats newsStats() {
+        return newsStats;
+    }
+
+    @Override
+    public NewsFeed feed(String session) throws ChatException {
+        ServerUser user = sessionToUser.get(session);
+
+        if (user == null) {
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
+
+        return user.getNews();
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
-    @Scheduled(cron = SESSION_CLEANUP_CRON)
-    public int sessionCleanup() {
-        LocalDateTime now = LocalDateTime.now();
+    // session expired (SessionExpiry)
+    private void expire(ServerUser user) {
+        int channels = user.getChannels().size();
+        long idleNs = System.nanoTime() - user.getLastSync();
+        Object event = Jfr.sessionExpiryBegin();
 
-        List<Map.Entry<String, ServerUser>> ghosts =
-                sessionToUser
-                        .entrySet().stream()
-                        .filter(se -> {
-                            LocalDateTime lastSync = se.getValue().getLastSync();
-                            return ChronoUnit.SECONDS.between(lastSync, now) >= SESSION_TIMEOUT_SECONDS;
-                        })
-                        .collect(Collectors.toList());
+        try {
+            logout(user.getSession());
 
-        ghosts.forEach(se -> {
-            try {
-                logout(se.getKey());
+        } catch (ChatException e) {
+            LOG.warn("session expiry ChatException: {} {}", user, e.toString());
+        }
 
-            } catch (ChatException e) {
-                LOG.warn("sessionCleanup ChatException: {} {}", se.getValue(), e.toString());
-            }
-        });
+        Jfr.sessionExpiryEnd(event, user.getUsername(), channels, TimeUnit.NANOSECONDS.toMillis(idleNs));
+    }
+
+    public SessionExpiry getSessionExpiry() {
+        return sessionExpiry;
+    }
+
+    @Scheduled(cron = LOCK_STATS_CRON)
+    public void lockStatsReport() {
+        LOG.info("Lock stats: {}, top: {}", lockStats, lockStats.top(5));
+    }
 
-        return ghosts.size();
+    public LockStats getLockStats() {
+        return lockStats;
+    }
+
+    @Scheduled(fixedRate = NewsStats.SAMPLE_MS)
+    public void newsStatsSample() {
+        newsStats.sample();
+    }
+
+    @Override
+    public void close() {
+        sessionExpiry.close();
+        dispatcher.shutdown();
     }
 
     // ---------------------------------------------------------------------------------------------------------------
@@ -571,6 +944,11 @@ public class BestChatService implements ChatService {
             throw new ChatException(Reason.NO_PERMISSION);
         }
 
+        return testResponse();
+    }
+
+    // sample of all types, used to test serialization (shared by all engines)
+    static Response<?> testResponse() {
         return Response.ok(
                 Response.ok(
                         new ImmutableMap.Builder<>()
@@ -635,21 +1013,22 @@ public class BestChatService implements ChatService {
             }
 
             if (caller != null && channel != null) {
-                if (!channel.getUsers().contains(caller)) {
+                if (!channel.hasUser(caller)) {
                     throw new ChatException(Reason.NO_PERMISSION);
                 }
             }
 
             if (pUsername != null && channel == null) {
-                this.affUser = ServerUser.dummyUser(pUsername);
+                // logged in user, dummy (without session) otherwise
+                this.affUser = userByName.get(pUsername);
+
+                if (affUser == null) {
+                    this.affUser = ServerUser.dummyUser(pUsername);
+                }
             }
 
             if (pUsername != null && channel != null) {
-                ServerUser dummyAffUser = ServerUser.dummyUser(pUsername);
-
-                this.affUser = channel.getUsers().stream()
-                        .filter(u -> u.equals(dummyAffUser))
-                        .findFirst().orElse(null);
+                this.affUser = channel.getUser(pUsername);
             }
 
             if (pUsername != null && channel != null && pAffUserOnChan) {
@@ -678,7 +1057,7 @@ public class BestChatService implements ChatService {
 
     // session user is now -> caller
     // channel is now -> channel
-    // param username is now -> affUser
+    // param username is now -> affUser (logged in user if channel == null)
     //
     // checks if:
     // - caller(session) is proper (GIVEN_BAD_SESSION)           [ if session != null ]
@@ -705,17 +1084,44 @@ public class BestChatService implements ChatService {
 
     // ---------------------------------------------------------------------------------------------------------------
 
+    // all locks of one call are taken at once, in stripe index order (deadlock-free),
+    // each with bounded wait: SERVER_BUSY is thrown instead of waiting forever
+    //
+    // commit-then-publish: state is changed under locks, news are published after unlock,
+    // through outboxes of channels/users (tasks are added under locks, so in commit order),
+    // executed by dispatcher threads, so the caller does not wait for fan-out
+    //
+    // batch: locks of all its commands are taken at once, calls of the commands get nested Locks,
+    // which take nothing and publish through the batch Locks (so news are published at the end of batch);
+    // batch over more than MAX_BATCH_STRIPES stripes is not locked, its commands take own Locks one by one
     private class Locks {
 
-        private final Lock lockCaller;
-        private final Lock lockChannel;
-        private final Lock lockAffUser;
+        private final List<Lock> locks;
+        private final Locks batch;
+        private int locked = 0;
+        private final Set<Outbox> outboxes = Collections.newSetFromMap(new IdentityHashMap<>(2));
+        private final Object event; // Jfr command event, from creation to unlock()
+        private boolean ended = false;
 
-        Locks(String session,
+        Locks(String command,
+              String session,
               String channel,
               String username)
                 throws ChatException {
 
+            this(command, session, new String[]{channel}, new String[]{username});
+        }
+
+        Locks(String command,
+              String session,
+              String[] channels,
+              String[] usernames)
+                throws ChatException {
+
+            this.event = Jfr.commandBegin(command, channels.length == 1 ? channels[0] : null);
+
+            List<String> keys = new ArrayList<>(1 + usernames.length + channels.length);
+
             if (session != null) {
                 ServerUser user = sessionToUser.get(session);
 
@@ -723,55 +1129,139 @@ public class BestChatService implements ChatService {
                     throw new ChatException(Reason.GIVEN_BAD_SESSION);
                 }
 
-                this.lockCaller = stripedLocks.get("U$" + user.getUsername());
-            } else {
-                this.lockCaller = null;
+                keys.add("U$" + user.getUsername());
             }
 
-            if (username != null) {
-                this.lockAffUser = stripedLocks.get("U$" + username);
-            } else {
-                this.lockAffUser = null;
+            for (String username : usernames) {
+                if (username != null) {
+                    keys.add("U$" + username);
+                }
             }
 
-            if (channel != null) {
-                this.lockChannel = stripedLocks.get("C$" + channel);
-            } else {
-                this.lockChannel = null;
+            for (String channel : channels) {
+                if (channel != null) {
+                    keys.add("C$" + channel);
+                }
             }
-        }
 
-        void lock() {
-            if (lockChannel != null) {
-                lockChannel.lock();
+            // "the returned list is sorted by stripe index", keys of one stripe are locked once
+            this.locks = new ArrayList<>();
+            for (Lock lock : stripedLocks.bulkGet(keys)) {
+                if (this.locks.isEmpty() || this.locks.get(this.locks.size() - 1) != lock) {
+                    this.locks.add(lock);
+                }
             }
-            if (lockAffUser != null) {
-                lockAffUser.lock();
+
+            this.batch = null;
+        }
+
+        Locks(String command, String channel, Locks batch) {
+            this.locks = Collections.emptyList();
+            this.batch = batch;
+            this.event = Jfr.commandBegin(command, channel);
+        }
+
+        int stripes() {
+            return locks.size();
+        }
+
+        void lock() throws ChatException {
+            try {
+                for (Lock lock : locks) {
+                    int stripe = stripeIndex.get(lock);
+
+                    if (lock.tryLock()) {
+                        lockStats.uncontended(stripe);
+
+                    } else {
+                        Object waitEvent = Jfr.lockWaitBegin();
+
+                        long startNs = System.nanoTime();
+                        boolean acquired = lock.tryLock(LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        long waitedNs = System.nanoTime() - startNs;
+                        lockStats.contended(stripe, waitedNs, acquired);
+                        RequestTrace.lockWaited(waitedNs);
+
+                        Jfr.lockWaitEnd(waitEvent, stripe, acquired);
+
+                        if (!acquired) {
+                            LOG.warn("Lock timeout, stripe={}, {}", stripe, lockStats);
+                            throw new ChatException(Reason.SERVER_BUSY);
+                        }
+                    }
+
+                    locked++;
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ChatException(Reason.SERVER_BUSY);
+
+            } finally {
+                if (locked != locks.size()) {
+                    unlock();
+                }
             }
-            if (lockCaller != null) {
-                lockCaller.lock();
+        }
+
+        // requires locks, news of channel are offered to feeds reading its log (fan-out)
+        void publish(ServerChannel channel, Runnable task) {
+            Jfr.commandFanOut(event, channel.getLog().readers());
+            enqueue(channel.getOutbox(), task);
+        }
+
+        // requires locks, news of single user
+        void publish(Outbox outbox, Runnable task) {
+            Jfr.commandFanOut(event, 1);
+            enqueue(outbox, task);
+        }
+
+        private void enqueue(Outbox outbox, Runnable task) {
+            if (batch != null) {
+                batch.enqueue(outbox, task);
+                return;
             }
+
+            outbox.add(task);
+            outboxes.add(outbox);
         }
 
         void unlock() {
-            if (lockChannel != null) {
-                lockChannel.unlock();
+            for (; locked > 0; locked--) {
+                locks.get(locked - 1).unlock();
             }
-            if (lockAffUser != null) {
-                lockAffUser.unlock();
+
+            if (!outboxes.isEmpty()) {
+                long startNs = System.nanoTime();
+
+                for (Outbox outbox : outboxes) {
+                    outbox.dispatch(dispatcher);
+                }
+                outboxes.clear();
+
+                RequestTrace.fanOut(System.nanoTime() - startNs);
             }
-            if (lockCaller != null) {
-                lockCaller.unlock();
+
+            // the first unlock() ends the command (lock() unlocks on failure)
+            if (!ended) {
+                ended = true;
+                Jfr.commandEnd(event);
             }
         }
     }
 
-    private Locks locks(String session,
+    private Locks locks(String command,
+                        String session,
                         String channel,
                         String username)
             throws ChatException {
 
-        Locks locks = new Locks(session, channel, username);
+        Locks batch = batchLocks.get();
+        if (batch != null) {
+            return new Locks(command, channel, batch);
+        }
+
+        Locks locks = new Locks(command, session, channel, username);
         locks.lock();
         return locks;
     }
@@ -10,20 +10,30 @@ import org.slf4j.LoggerFactory;
 import org.springframework.remoting.caucho.BurlapServiceExporter;
 import org.springframework.remoting.caucho.HessianServiceExporter;
 import org.springframework.web.HttpRequestHandler;
+import pl.nn44.niorpc.server.NioRpcServer;
+import pl.nn44.niorpc.server.PushSource;
+import pl.nn44.rchat.server.metrics.Metrics;
 import pl.nn44.xmlrpc.common.AnyTypeFactory;
 import pl.nn44.xmlrpc.server.AnyXmlRpcServer;
 import pl.nn44.xmlrpc.server.FaultMapper;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
 public class Endpoints<T> {
 
     private static final Logger LOG = LoggerFactory.getLogger(Endpoints.class);
 
     private final T service;
     private final Class<T> clazz;
+    private final AsyncPolls asyncPolls;
+    private final Metrics metrics;
 
-    public Endpoints(T service, Class<T> clazz) {
+    public Endpoints(T service, Class<T> clazz, AsyncPolls asyncPolls, Metrics metrics) {
         this.service = service;
         this.clazz = clazz;
+        this.asyncPolls = asyncPolls;
+        this.metrics = metrics;
     }
 
     public HttpRequestHandler hessian() {
@@ -32,7 +42,7 @@ public class Endpoints<T> {
         exporter.setServiceInterface(clazz);
 
         LOG.info("hessian endpoint created.");
-        return exporter;
+        return metrics.timed("hessian", asyncPolls.wrap(exporter));
     }
 
     public HttpRequestHandler burlap() {
@@ -42,7 +52,7 @@ public class Endpoints<T> {
         exporter.setServiceInterface(clazz);
 
         LOG.info("burlap endpoint created.");
-        return exporter;
+        return metrics.timed("burlap", asyncPolls.wrap(exporter));
     }
 
     public HttpRequestHandler xmlRpc(FaultMapper faultMapper) throws XmlRpcException {
@@ -66,8 +76,22 @@ public class Endpoints<T> {
         server.setHandlerMapping(handlerMapping);
         server.setTypeFactory(new AnyTypeFactory(server)); // [axe-180254 or [remove statement]]
         server.setFaultMapper(faultMapper); // [axe-180254 or [remove statement]]
+        // response is written to the servlet stream as it is encoded, without Content-Length
+        // (asyncPolls passes it through, so it is not buffered anywhere)
+        server.setStreaming(true); // [axe-180254 or [remove statement]]
 
         LOG.info("xml-rpc endpoint created.");
-        return server::execute;
+        return metrics.timed("xml-rpc", asyncPolls.wrap(server::execute));
+    }
+
+    public NioRpcServer<T> tcp(InetSocketAddress address, int workerThreads, PushSource pushSource) throws IOException {
+        // whatsUp long-poll blocks a worker for its whole timeout, subscriptions (pushSource) are preferred
+        T timed = metrics.timed("tcp", clazz, service, NioRpcServer::requestId);
+        NioRpcServer<T> server = new NioRpcServer<>(timed, clazz, workerThreads);
+        server.setPushSource(pushSource);
+        server.start(address);
+
+        LOG.info("tcp endpoint created: {}", address);
+        return server;
     }
 }
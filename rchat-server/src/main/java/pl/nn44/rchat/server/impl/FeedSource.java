@@ -0,0 +1,18 @@
+package pl.nn44.rchat.server.impl;
+
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.server.model.NewsFeed;
+import pl.nn44.rchat.server.model.NewsStats;
+
+/**
+ * Access to NewsFeed of logged in user, for news consumers other than whatsUp (NewsPumps).<br/>
+ * News should be still read by whatsUp(session, 0): it applies overflow policy and keeps session alive.<br/>
+ * newsStats(): news counters of all sessions (see StatsController).
+ */
+public interface FeedSource {
+
+    // GIVEN_BAD_SESSION if there is no such session
+    NewsFeed feed(String session) throws ChatException;
+
+    NewsStats newsStats();
+}
@@ -0,0 +1,883 @@
+package pl.nn44.rchat.server.impl;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import pl.nn44.rchat.protocol.ChatService;
+import pl.nn44.rchat.protocol.command.Command;
+import pl.nn44.rchat.protocol.command.CommandResult;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.exception.ChatException.Reason;
+import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.ChannelList;
+import pl.nn44.rchat.protocol.model.HistoryPage;
+import pl.nn44.rchat.protocol.model.MemberDelta;
+import pl.nn44.rchat.protocol.model.MemberPage;
+import pl.nn44.rchat.protocol.model.Response;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.protocol.model.WhatsUp.What;
+import pl.nn44.rchat.server.aspect.Loggable;
+import pl.nn44.rchat.server.history.HistoryStore;
+import pl.nn44.rchat.server.journal.Change;
+import pl.nn44.rchat.server.journal.Journal;
+import pl.nn44.rchat.server.metrics.RequestTrace;
+import pl.nn44.rchat.server.model.ChannelListCache;
+import pl.nn44.rchat.server.model.NewsFeed;
+import pl.nn44.rchat.server.model.NewsLimits;
+import pl.nn44.rchat.server.model.NewsStats;
+import pl.nn44.rchat.server.model.ServerChannel;
+import pl.nn44.rchat.server.model.ServerUser;
+import pl.nn44.rchat.server.util.BigIdGenerator;
+import pl.nn44.rchat.server.util.EventLoops;
+
+import javax.annotation.Nullable;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import static pl.nn44.rchat.server.impl.BestChatService.*;
+
+/**
+ * ChatService engine without locks.<br/>
+ * Every channel is owned by one event loop (EventLoops), state of the channel is changed by the loop thread only.<br/>
+ * Calls on channel are handed to the owner loop and the request thread waits for the result.<br/>
+ * Calls of one user which change user state (ignore) are executed by the loop owning the username.<br/>
+ * <br/>
+ * Behaves as BestChatService, so both engines may be compared under the same load.
+ */
+@Loggable
+public class LoopChatService implements ChatService, FeedSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoopChatService.class);
+
+    public static final long CALL_TIMEOUT_MS = LOCK_TIMEOUT_MS;
+    public static final String LOOP_STATS_CRON = "30 */5 * * * *";
+
+    private final Random random = new SecureRandom();
+    private final Iterator<String> idGenerator = BigIdGenerator.bits(random, ID_RANDOM_BITS);
+    private final Pattern nameValidator = Pattern.compile("[a-zA-Z0-9_.-]{1,10}");
+
+    private final ConcurrentMap<String, String> accounts/*username/password*/ = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ServerUser> sessionToUser = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ServerUser> userByName = new ConcurrentHashMap<>(); // logged in only
+    private final ConcurrentMap<String, ServerChannel> channelByName = new ConcurrentHashMap<>();
+    private final ChannelListCache channelList;
+    private final NewsStats newsStats = new NewsStats(sessionToUser::values, channelByName::values);
+
+    private final EventLoops loops;
+    private final NewsLimits newsLimits;
+    private final SessionExpiry sessionExpiry;
+    private final Journal journal;
+
+    public LoopChatService(NewsLimits newsLimits, int loops) {
+        this(newsLimits, loops, Journal.disabled(), HistoryStore.disabled());
+    }
+
+    public LoopChatService(NewsLimits newsLimits, int loops, Journal journal, HistoryStore history) {
+        this.newsLimits = newsLimits;
+        this.journal = journal;
+        this.loops = new EventLoops("chat-loop", loops);
+        this.sessionExpiry = new SessionExpiry(SESSION_TIMEOUT_SECONDS, TimeUnit.SECONDS, this::expire);
+
+        populate(accounts, channelByName, journal, history);
+        this.channelList = new ChannelListCache(channelByName);
+
+        LOG.info("{} instance created: {}, {}.", getClass().getSimpleName(), newsLimits, this.loops);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public Response<String> login(String username, @Nullable String password) throws ChatException {
+        if (!nameValidator.matcher(username).matches()) {
+            throw new ChatException(Reason.GIVEN_BAD_USERNAME);
+        }
+
+        if (!Objects.equals(accounts.get(username), password)) {
+            throw new ChatException(Reason.GIVEN_BAD_PASSWORD);
+        }
+
+        String session = idGenerator.next();
+        ServerUser user = new ServerUser(session, username, newsLimits, newsStats);
+
+        if (userByName.putIfAbsent(username, user) != null) {
+            throw new ChatException(Reason.ALREADY_LOGGED_IN);
+        }
+
+        sessionToUser.put(session, user);
+        sessionExpiry.watch(user);
+
+        WhatsUp nothing = WhatsUp.create(What.NOTHING);
+        offer(nothing, user);
+
+        return Response.ok(user.getSession());
+    }
+
+    @Override
+    public Response<?> logout(String session) throws ChatException {
+        ServerUser caller = sessionToUser.remove(session);
+
+        if (caller == null) {
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
+
+        userByName.remove(caller.getUsername(), caller);
+        sessionExpiry.unwatch(caller);
+
+        // session is not accepted from now, so caller cannot join again;
+        // join already queued by a loop is executed before this task, so its channel is left too
+        for (int i = 0; i < loops.size(); i++) {
+            EventLoops.Loop loop = loops.get(i);
+
+            loop.execute(() -> {
+                for (ServerChannel channel : caller.getChannels()) {
+                    if (loops.of(channel.getName()) == loop) {
+                        leave(caller, channel);
+                    }
+                }
+            });
+        }
+
+        WhatsUp nothing = WhatsUp.create(What.NOTHING);
+        offer(nothing, caller);
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<Channel[]> channels(String session) throws ChatException {
+        //  side-effect used: verify session
+        caller(session);
+
+        return channelList.channels();
+    }
+
+    @Override
+    public Response<ChannelList> channelList(String session, int knownVersion) throws ChatException {
+        //  side-effect used: verify session
+        caller(session);
+
+        return channelList.since(knownVersion);
+    }
+
+    @Override
+    public Response<Channel> join(String session, String channel, @Nullable String password) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        Joined joined = call(chan, () -> {
+            // logout could be processed after caller()
+            if (sessionToUser.get(session) != caller) {
+                throw new ChatException(Reason.GIVEN_BAD_SESSION);
+            }
+
+            if (!Objects.equals(chan.getPassword(), password)) {
+                throw new ChatException(Reason.GIVEN_BAD_PASSWORD);
+            }
+
+            if (chan.getBanned().contains(caller.getUsername())) {
+                throw new ChatException(Reason.UNWELCOME_BANNED);
+            }
+
+            boolean addC = chan.addUser(caller);
+            boolean addU = caller.getChannels().addIfAbsent(chan);
+
+            if (addC ^ addU) {
+                LOG.warn("join(): addC ^ addU is true, but it should not");
+            }
+
+            if (addC) {
+                boolean auth = accounts.containsKey(caller.getUsername());
+                boolean admin = chan.getAdmins().contains(caller.getUsername());
+
+                // users ignoring the caller see JOIN with ignored flag set
+                WhatsUp[] whatsUps = new WhatsUp[2];
+                for (int ignored = 0; ignored < whatsUps.length; ignored++) {
+                    whatsUps[ignored] = WhatsUp.create(
+                            What.JOIN,
+                            chan.getName(),
+                            caller.getUsername(),
+                            Boolean.toString(auth),
+                            Boolean.toString(ignored == 1),
+                            Boolean.toString(admin)
+                    );
+                }
+
+                chan.getLog().append(whatsUps[0], caller.getUsername(), whatsUps[1]);
+                // cursor is set after JOIN, so the caller does not get own JOIN
+                caller.getNews().attach(chan);
+            }
+
+            // first page as of this call, later changes come to the caller as news (and memberDeltas);
+            // messages committed later come to the caller as news, older ones are in history
+            return new Joined(
+                    memberPage(accounts, caller, chan, null, JOIN_MEMBERS_PAGE),
+                    chan.getTopic(),
+                    chan.getHistory().nextId()
+            );
+        });
+
+        Channel pChannel = new Channel(
+                chan.getName(),
+                chan.getPassword() != null,
+                joined.topic,
+                joined.members.getUsers(),
+                joined.members.getVersion(),
+                joined.members.getTotal(),
+                joined.members.getNext(),
+                joined.historyId
+        );
+
+        return Response.ok(pChannel);
+    }
+
+    @Override
+    public Response<?> part(String session, String channel, String unused) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        // without verification if caller is on channel, NO_PERMISSION will not be thrown
+        call(chan, () -> {
+            leave(caller, chan);
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<MemberPage> members(String session, String channel, @Nullable String after, int limit)
+            throws ChatException {
+
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+        int pageLimit = Math.max(1, Math.min(limit, MAX_MEMBERS_PAGE));
+
+        MemberPage page = call(chan, () -> {
+            checkOnChannel(caller, chan, false);
+            return memberPage(accounts, caller, chan, after, pageLimit);
+        });
+
+        return Response.ok(page);
+    }
+
+    @Override
+    public Response<MemberDelta> memberDeltas(String session, String channel, int sinceVersion)
+            throws ChatException {
+
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        MemberDelta delta = call(chan, () -> {
+            checkOnChannel(caller, chan, false);
+            return memberDelta(accounts, caller, chan, sinceVersion);
+        });
+
+        return Response.ok(delta);
+    }
+
+    private static class Joined {
+
+        private final MemberPage members;
+        private final String topic;
+        private final int historyId;
+
+        Joined(MemberPage members, String topic, int historyId) {
+            this.members = members;
+            this.topic = topic;
+            this.historyId = historyId;
+        }
+    }
+
+    // requires owner loop of the channel
+    private void leave(ServerUser user, ServerChannel channel) {
+        boolean removeC = channel.removeUser(user);
+        boolean removeU = user.getChannels().remove(channel);
+
+        if (removeC ^ removeU) {
+            LOG.warn("leave(): removeC ^ removeU is true, but it should not");
+        }
+
+        // cursor is removed before PART, so the user does not get own PART
+        user.getNews().detach(channel);
+
+        if (removeC) {
+            WhatsUp whatsUp = WhatsUp.create(
+                    What.PART,
+                    channel.getName(),
+                    user.getUsername()
+            );
+
+            channel.getLog().append(whatsUp);
+        }
+    }
+
+    @Override
+    public Response<?> topic(String session, String channel, String text) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        call(chan, () -> {
+            checkOnChannel(caller, chan, true);
+
+            boolean change = !chan.getTopic().equals(text);
+
+            if (change) {
+                chan.setTopic(text);
+                journal.append(Change.topic(chan.getName(), text));
+
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.TOPIC,
+                        chan.getName(),
+                        caller.getUsername(),
+                        text
+                );
+
+                chan.getLog().append(whatsUp);
+            }
+
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<?> kick(String session, String channel, String username) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        call(chan, () -> {
+            checkOnChannel(caller, chan, true);
+
+            ServerUser affUser = chan.getUser(username);
+            if (affUser == null) {
+                throw new ChatException(Reason.GIVEN_BAD_USERNAME);
+            }
+
+            boolean removeC = chan.removeUser(affUser);
+            boolean removeU = affUser.getChannels().remove(chan);
+
+            if (removeC ^ removeU) {
+                LOG.warn("kick(): removeC ^ removeU is true, but it should not");
+            }
+
+            if (removeC) {
+                WhatsUp wuKick = WhatsUp.create(
+                        What.KICK,
+                        chan.getName(),
+                        affUser.getUsername(),
+                        caller.getUsername()
+                );
+
+                chan.getLog().append(wuKick);
+                // cursor is removed after KICK, so affUser gets KICK too
+                affUser.getNews().detach(chan);
+            }
+
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<?> ban(String session, String channel, String username, boolean state) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        call(chan, () -> {
+            checkOnChannel(caller, chan, true);
+
+            boolean change = state
+                    ? chan.getBanned().add(username)
+                    : chan.getBanned().remove(username);
+
+            if (change) {
+                journal.append(Change.ban(chan.getName(), username, state));
+
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.BAN,
+                        chan.getName(),
+                        username,
+                        caller.getUsername(),
+                        state ? "on" : "off"
+                );
+
+                chan.getLog().append(whatsUp);
+            }
+
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<?> admin(String session, String channel, String username, boolean state) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        call(chan, () -> {
+            checkOnChannel(caller, chan, true);
+
+            boolean change = state
+                    ? chan.getAdmins().add(username)
+                    : chan.getAdmins().remove(username);
+
+            if (change) {
+                journal.append(Change.admin(chan.getName(), username, state));
+
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.ADMIN,
+                        chan.getName(),
+                        username,
+                        caller.getUsername(),
+                        state ? "on" : "off"
+                );
+
+                chan.getLog().append(whatsUp);
+            }
+
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<?> ignore(String session, String unused, String username, boolean state) throws ChatException {
+        ServerUser caller = caller(session);
+
+        // ignored list of the caller has single writer: loop of the caller
+        call(loops.of(caller.getUsername()), () -> {
+            ServerUser affUser = loggedIn(username);
+
+            boolean change = state
+                    ? caller.getIgnored().addIfAbsent(affUser.getUsername())
+                    : caller.getIgnored().remove(affUser.getUsername());
+
+            if (change) {
+                WhatsUp whatsUp = WhatsUp.create(
+                        What.IGNORE,
+                        "unused",
+                        affUser.getUsername(),
+                        caller.getUsername(),
+                        state ? "on" : "off"
+                );
+
+                offer(whatsUp, caller);
+
+                // notify affUser if he is logged in
+                if (affUser.getSession() != null && !affUser.equals(caller)) {
+                    offer(whatsUp, affUser);
+                }
+            }
+
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<?> message(String session, String channel, String text) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+
+        call(chan, () -> {
+            checkOnChannel(caller, chan, false);
+
+            WhatsUp whatsUp = WhatsUp.create(
+                    What.MESSAGE,
+                    chan.getName(),
+                    caller.getUsername(),
+                    text
+            );
+
+            // users ignoring the caller skip it while reading
+            chan.getLog().append(whatsUp, caller.getUsername(), null);
+            newsStats.fanOut(chan.getLog().readers());
+            // on owner loop: history order is commit order (see join: historyId)
+            chan.getHistory().append(caller.getUsername(), text, System.currentTimeMillis());
+            return null;
+        });
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<HistoryPage> history(String session, String channel, int beforeId, int limit)
+            throws ChatException {
+
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+        int pageLimit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+
+        // not handed to the owner loop: history is read without locks (members are concurrent)
+        checkOnChannel(caller, chan, false);
+
+        return Response.ok(chan.getHistory().page(beforeId, pageLimit, caller.getIgnored()));
+    }
+
+    @Override
+    public Response<HistoryPage> search(String session, String channel, String query, int limit)
+            throws ChatException {
+
+        ServerUser caller = caller(session);
+        ServerChannel chan = channel(channel);
+        int pageLimit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+
+        // not handed to the owner loop: as history
+        checkOnChannel(caller, chan, false);
+
+        return Response.ok(chan.getHistory().search(query, pageLimit, caller.getIgnored()));
+    }
+
+    @Override
+    public Response<?> privy(String session, String username, String text) throws ChatException {
+        ServerUser caller = caller(session);
+        ServerUser affUser = loggedIn(username);
+
+        // message to user who is not logged in
+        if (affUser.getSession() == null) {
+            throw new ChatException(Reason.GIVEN_BAD_USERNAME);
+        }
+
+        // news feeds are thread-safe, no owner loop is needed
+        boolean ignore = affUser.getIgnored().contains(caller.getUsername());
+
+        if (!ignore) {
+            WhatsUp whatsUp = WhatsUp.create(
+                    What.PRIVY,
+                    "unused",
+                    affUser.getUsername(),
+                    caller.getUsername(),
+                    text
+            );
+
+            offer(whatsUp, caller);
+
+            if (!affUser.equals(caller)) {
+                offer(whatsUp, affUser);
+            }
+        }
+
+        return Response.ok();
+    }
+
+    @Override
+    public Response<CommandResult[]> batch(String session, Command[] commands) throws ChatException {
+        ServerUser caller = caller(session);
+
+        CommandResult[] results = new CommandResult[commands.length];
+        int executed = Math.min(commands.length, Command.MAX_BATCH);
+        Arrays.fill(results, executed, commands.length, CommandResult.failed(Reason.SERVER_BUSY));
+
+        // consecutive commands of one loop are handed to the loop at once, and executed there without hand-offs
+        for (int from = 0, to; from < executed; from = to) {
+            EventLoops.Loop loop = null;
+
+            for (to = from; to < executed; to++) {
+                EventLoops.Loop cLoop = loopOf(caller, commands[to]);
+
+                if (loop != null && cLoop != null && cLoop != loop) {
+                    break;
+                }
+                if (cLoop != null) {
+                    loop = cLoop;
+                }
+            }
+
+            int first = from;
+            int last = to;
+            LoopCall<CommandResult[]> run = () -> {
+                CommandResult[] runResults = new CommandResult[last - first];
+                for (int i = first; i < last; i++) {
+                    runResults[i - first] = execute(commands[i], session);
+                }
+                return runResults;
+            };
+
+            try {
+                CommandResult[] runResults = loop != null ? call(loop, run) : run.call();
+                System.arraycopy(runResults, 0, results, first, runResults.length);
+
+            } catch (ChatException e) {
+                // loop call timeout: commands of the run are not executed
+                Arrays.fill(results, first, last, CommandResult.failed(e.getReason()));
+            }
+        }
+
+        return Response.ok(results);
+    }
+
+    private CommandResult execute(Command command, String session) {
+        try {
+            return CommandResult.ok(command.execute(this, session));
+        } catch (ChatException e) {
+            return CommandResult.failed(e.getReason());
+        }
+    }
+
+    // owner loop of the command's call, null if it is executed by any thread (privy)
+    private EventLoops.Loop loopOf(ServerUser caller, Command command) {
+        switch (command.getAction()) {
+            case IGNORE:
+                return loops.of(caller.getUsername());
+            case PRIVY:
+                return null;
+            default:
+                return command.getParam1() != null
+                        ? loops.of(command.getParam1())
+                        : null;
+        }
+    }
+
+    @Override
+    public Response<WhatsUp[]> whatsUp(String session, int longPoolingTimeoutMs) throws ChatException {
+        ServerUser caller = caller(session);
+        NewsFeed feed = caller.getNews();
+
+        // Overflow.LOGOUT: consumer was too slow
+        if (feed.isOverflowed()) {
+            logout(session);
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
+
+        long timeoutMs = longPoolingTimeoutMs;
+
+        if (AsyncPolls.isResumed()) {
+            // parked call executed again: there are news or timeout passed
+            timeoutMs = 0;
+
+        } else if (timeoutMs > 0 && !feed.hasNews() && AsyncPolls.park(feed, timeoutMs)) {
+            // request thread is released, result is ignored
+            return Response.ok(new WhatsUp[0]);
+        }
+
+        List<WhatsUp> news;
+
+        try {
+            news = feed.poll(
+                    MAX_NEWS_PER_REQUEST,
+                    timeoutMs,
+                    TimeUnit.MILLISECONDS
+            );
+
+        } catch (InterruptedException e) {
+            LOG.warn("whatsUp InterruptedException", e);
+            news = Collections.emptyList();
+        }
+
+        WhatsUp[] newsArray = new WhatsUp[news.size()];
+        newsArray = news.toArray(newsArray);
+        return Response.ok(newsArray);
+    }
+
+    @Override
+    public NewsStats newsStats() {
+        return newsStats;
+    }
+
+    @Override
+    public NewsFeed feed(String session) throws ChatException {
+        ServerUser user = sessionToUser.get(session);
+
+        if (user == null) {
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
+
+        return user.getNews();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // session expired (SessionExpiry)
+    private void expire(ServerUser user) {
+        try {
+            logout(user.getSession());
+
+        } catch (ChatException e) {
+            LOG.warn("session expiry ChatException: {} {}", user, e.toString());
+        }
+    }
+
+    public SessionExpiry getSessionExpiry() {
+        return sessionExpiry;
+    }
+
+    @Scheduled(cron = LOOP_STATS_CRON)
+    public void loopStatsReport() {
+        LOG.info("Loop stats: {}, loops: {}", loops, loops.details());
+    }
+
+    public EventLoops getLoops() {
+        return loops;
+    }
+
+    @Scheduled(fixedRate = NewsStats.SAMPLE_MS)
+    public void newsStatsSample() {
+        newsStats.sample();
+    }
+
+    @Override
+    public void close() {
+        loops.close();
+        sessionExpiry.close();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public Response<?> test(boolean exception) throws ChatException {
+        if (exception) {
+            throw new ChatException(Reason.NO_PERMISSION);
+        }
+
+        return testResponse();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // caller(session) is proper (GIVEN_BAD_SESSION), its last sync timestamp is updated
+    private ServerUser caller(String session) throws ChatException {
+        ServerUser caller = sessionToUser.get(session);
+
+        if (caller == null) {
+            throw new ChatException(Reason.GIVEN_BAD_SESSION);
+        }
+
+        caller.updateLastSync();
+        return caller;
+    }
+
+    // channel(channel) is proper (GIVEN_BAD_CHANNEL)
+    private ServerChannel channel(String channel) throws ChatException {
+        ServerChannel chan = channelByName.get(channel);
+
+        if (chan == null) {
+            throw new ChatException(Reason.GIVEN_BAD_CHANNEL);
+        }
+
+        return chan;
+    }
+
+    // logged in user, dummy (without session) otherwise
+    private ServerUser loggedIn(String username) {
+        ServerUser user = userByName.get(username);
+
+        return user != null
+                ? user
+                : ServerUser.dummyUser(username);
+    }
+
+    // caller is on channel, and is admin on channel if checkAdmin (NO_PERMISSION)
+    // requires owner loop of the channel
+    private void checkOnChannel(ServerUser caller, ServerChannel channel, boolean checkAdmin) throws ChatException {
+        if (!channel.hasUser(caller)) {
+            throw new ChatException(Reason.NO_PERMISSION);
+        }
+
+        if (checkAdmin && !channel.getAdmins().contains(caller.getUsername())) {
+            throw new ChatException(Reason.NO_PERMISSION);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @FunctionalInterface
+    private interface LoopCall<T> {
+
+        T call() throws ChatException;
+    }
+
+    private <T> T call(ServerChannel channel, LoopCall<T> call) throws ChatException {
+        return call(loops.of(channel.getName()), call);
+    }
+
+    // executes call on the loop, the current thread waits for result (at most CALL_TIMEOUT_MS)
+    private <T> T call(EventLoops.Loop loop, LoopCall<T> call) throws ChatException {
+        if (loop.inLoop()) {
+            return call.call();
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        AtomicBoolean started = new AtomicBoolean(false); // by the loop, or by the caller giving up
+        RequestTrace trace = RequestTrace.current();
+        long submitNs = System.nanoTime();
+
+        loop.execute(() -> {
+            // caller gave up (SERVER_BUSY), call must not be executed
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+
+            // wait in loop queue is the lock phase of request (completion publishes it to the request thread)
+            if (trace != null) {
+                trace.addLockWait(System.nanoTime() - submitNs);
+            }
+
+            try {
+                future.complete(call.call());
+            } catch (ChatException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return await(future, started, loop);
+    }
+
+    // SERVER_BUSY ("call may be repeated") only if the call is not started, otherwise its result is awaited
+    private <T> T await(CompletableFuture<T> future, AtomicBoolean started, Executor loop) throws ChatException {
+        try {
+            try {
+                return future.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            } catch (TimeoutException e) {
+                if (started.compareAndSet(false, true)) {
+                    LOG.warn("Loop call timeout: {}", loop);
+                    throw new ChatException(Reason.SERVER_BUSY);
+                }
+
+                // executed meanwhile (changes may be committed)
+                return Uninterruptibles.getUninterruptibly(future);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                if (started.compareAndSet(false, true)) {
+                    throw new ChatException(Reason.SERVER_BUSY);
+                }
+
+                return Uninterruptibles.getUninterruptibly(future);
+            }
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ChatException) {
+                throw (ChatException) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void offer(WhatsUp wu, ServerUser su) {
+        boolean offer = su.getNews().offer(wu);
+
+        if (!offer) {
+            LOG.warn("Unable to offer: {}, {}", wu, su);
+        }
+    }
+}
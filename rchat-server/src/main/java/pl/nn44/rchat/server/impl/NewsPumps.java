@@ -0,0 +1,205 @@
+package pl.nn44.rchat.server.impl;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.niorpc.common.Subscription;
+import pl.nn44.niorpc.server.PushSink;
+import pl.nn44.niorpc.server.PushSource;
+import pl.nn44.rchat.protocol.ChatService;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.server.model.NewsFeed;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pumps news (WhatsUp) of a session into a Sink as they are offered, instead of whatsUp long-polls.<br/>
+ * Used by websocket push (PushSockets) and by tcp subscriptions (as nio-rpc PushSource, args = {session}).<br/>
+ * <br/>
+ * News are read by whatsUp(session, 0) on "push" threads when NewsFeed listener fires,<br/>
+ * so overflow policy and session sync work as for polling clients.<br/>
+ * NewsFeed has one listener: session should not be polled by whatsUp while it is pumped.
+ */
+public class NewsPumps implements PushSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NewsPumps.class);
+
+    private final ChatService service;
+    private final FeedSource feeds;
+    private final ExecutorService executor;
+
+    private final AtomicInteger pumps = new AtomicInteger();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NewsPumps(ChatService service, FeedSource feeds, int threads) {
+        this.service = service;
+        this.feeds = feeds;
+        this.executor = Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("push-%d")
+                        .setDaemon(true)
+                        .build()
+        );
+
+        LOG.info("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Pump start(String session, Sink sink) throws ChatException {
+        Pump pump = new Pump(session, feeds.feed(session), sink);
+        pumps.incrementAndGet();
+        pump.schedule();
+        return pump;
+    }
+
+    @Override
+    public Subscription subscribe(Object[] args, PushSink sink) throws ChatException {
+        return start((String) args[0], new Sink() {
+
+            @Override
+            public void send(WhatsUp[] news) throws IOException {
+                sink.push(news);
+            }
+
+            @Override
+            public void close(ChatException.Reason reason) {
+                sink.end(reason != null ? new ChatException(reason) : null);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int getPumps() {
+        return pumps.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("pumps", pumps.get())
+                .add("frames", frames.get())
+                .add("events", events.get())
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public interface Sink {
+
+        void send(WhatsUp[] news) throws IOException;
+
+        // reason: session is no longer valid, null: send failure
+        void close(ChatException.Reason reason);
+    }
+
+    public class Pump implements Subscription {
+
+        private final String session;
+        private final NewsFeed feed;
+        private final Sink sink;
+
+        // drain requests: first one submits drain(), others make the running drain() repeat
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+        private final Runnable listener = this::schedule; // same instance for listen/unlisten
+
+        Pump(String session, NewsFeed feed, Sink sink) {
+            this.session = session;
+            this.feed = feed;
+            this.sink = sink;
+        }
+
+        // heartbeat or NewsFeed listener (on thread offering the news)
+        public void schedule() {
+            if (stopped.get() || requests.getAndIncrement() != 0) {
+                return;
+            }
+
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                requests.set(0);
+            }
+        }
+
+        public void stop() {
+            if (stopped.compareAndSet(false, true)) {
+                pumps.decrementAndGet();
+                feed.unlisten(listener);
+            }
+        }
+
+        // heartbeat: news are read by whatsUp, which keeps the session alive
+        @Override
+        public void ping() {
+            schedule();
+        }
+
+        @Override
+        public void close() {
+            stop();
+        }
+
+        private void drain() {
+            int seen;
+
+            do {
+                seen = requests.get();
+
+                try {
+                    while (!stopped.get()) {
+                        WhatsUp[] news = service.whatsUp(session, 0).getPayload();
+                        if (news.length == 0) {
+                            break;
+                        }
+
+                        sink.send(news);
+                        frames.incrementAndGet();
+                        events.addAndGet(news.length);
+                    }
+
+                    if (!stopped.get()) {
+                        feed.listen(listener);
+                    }
+
+                } catch (ChatException e) {
+                    stop();
+                    sink.close(e.getReason());
+
+                } catch (IOException | RuntimeException e) {
+                    LOG.debug("Push failed: {}", e.toString());
+                    stop();
+                    sink.close(null);
+                }
+
+            } while (requests.addAndGet(-seen) != 0);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package pl.nn44.rchat.server.impl;
+
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.SerializerFactory;
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import pl.nn44.rchat.protocol.exception.ChatException;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket endpoint pushing news (WhatsUp) as they are offered, instead of whatsUp long-polls.<br/>
+ * <br/>
+ * Client sends session token as the first text message, next text messages are heartbeats (content is ignored).<br/>
+ * Server sends binary messages, each with Hessian2 encoded WhatsUp[] (as returned by one whatsUp call).<br/>
+ * Connection is closed with reason = ChatException.Reason name, e.g. GIVEN_BAD_SESSION after logout.<br/>
+ * <br/>
+ * News are pumped by NewsPumps.
+ */
+public class PushSockets extends AbstractWebSocketHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PushSockets.class);
+    private static final String PUMP_ATTRIBUTE = PushSockets.class.getName();
+
+    public static final int SEND_TIME_LIMIT_MS = 10_000;
+    public static final int SEND_BUFFER_LIMIT = 512 * 1024;
+
+    private final NewsPumps pumps;
+    private final SerializerFactory serializerFactory = new SerializerFactory();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public PushSockets(NewsPumps pumps) {
+        this.pumps = pumps;
+        LOG.info("{} instance created.", getClass().getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession socket) {
+        connections.incrementAndGet();
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession socket, TextMessage message) throws IOException {
+        NewsPumps.Pump pump = (NewsPumps.Pump) socket.getAttributes().get(PUMP_ATTRIBUTE);
+
+        if (pump != null) {
+            pump.ping();
+            return;
+        }
+
+        try {
+            pump = pumps.start(message.getPayload(), new Sink(socket));
+        } catch (ChatException e) {
+            socket.close(CloseStatus.POLICY_VIOLATION.withReason(e.getReason().name()));
+            return;
+        }
+
+        socket.getAttributes().put(PUMP_ATTRIBUTE, pump);
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession socket, Throwable exception) {
+        LOG.debug("Push transport error: {}", exception.toString());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession socket, CloseStatus status) {
+        connections.decrementAndGet();
+
+        NewsPumps.Pump pump = (NewsPumps.Pump) socket.getAttributes().remove(PUMP_ATTRIBUTE);
+        if (pump != null) {
+            pump.stop();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    private BinaryMessage encode(WhatsUp[] news) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        Hessian2Output output = new Hessian2Output(bytes);
+        output.setSerializerFactory(serializerFactory);
+        output.writeObject(news);
+        output.close();
+
+        return new BinaryMessage(bytes.toByteArray());
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("connections", connections.get())
+                .add("pumps", pumps)
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private class Sink implements NewsPumps.Sink {
+
+        private final WebSocketSession socket; // sends are serialized, slow consumer is closed
+
+        Sink(WebSocketSession socket) {
+            this.socket = new ConcurrentWebSocketSessionDecorator(socket, SEND_TIME_LIMIT_MS, SEND_BUFFER_LIMIT);
+        }
+
+        @Override
+        public void send(WhatsUp[] news) throws IOException {
+            socket.sendMessage(encode(news));
+        }
+
+        @Override
+        public void close(ChatException.Reason reason) {
+            CloseStatus status = reason != null
+                    ? CloseStatus.POLICY_VIOLATION.withReason(reason.name())
+                    : CloseStatus.SERVER_ERROR;
+
+            try {
+                socket.close(status);
+            } catch (IOException e) {
+                LOG.debug("Push close failed: {}", e.toString());
+            }
+        }
+    }
+}
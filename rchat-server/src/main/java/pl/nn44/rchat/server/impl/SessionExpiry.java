@@ -0,0 +1,131 @@
+package pl.nn44.rchat.server.impl;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.server.model.ServerUser;
+import pl.nn44.rchat.server.util.TimerWheel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Expiry of inactive sessions on TimerWheel.<br/>
+ * Activity only updates ServerUser last sync timestamp (monotonic), timeout is checked when it fires:<br/>
+ * session idle for less than timeout is scheduled again for the remaining time, otherwise it is expired.<br/>
+ * Cost depends on number of expiring sessions, not on number of all sessions.
+ */
+public class SessionExpiry implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionExpiry.class);
+
+    private final long timeoutNs;
+    private final Consumer<ServerUser> expire;
+
+    private final TimerWheel timerWheel;
+    private final ExecutorService expirer; // expire (logout) may wait for locks, so not on the wheel thread
+    private final ConcurrentMap<String, TimerWheel.Timeout> timeouts = new ConcurrentHashMap<>(); // by session
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rescheduled = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public SessionExpiry(long timeout, TimeUnit unit, Consumer<ServerUser> expire) {
+        this.timeoutNs = unit.toNanos(timeout);
+        this.expire = expire;
+
+        this.timerWheel = new TimerWheel("session-expiry", 1, TimeUnit.SECONDS, 512);
+        this.expirer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("session-expirer")
+                        .setDaemon(true)
+                        .build()
+        );
+
+        LOG.info("{} instance created: {}.", getClass().getSimpleName(), this);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // after login
+    public void watch(ServerUser user) {
+        TimerWheel.Timeout previous = timeouts.put(user.getSession(), schedule(user, timeoutNs));
+
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    // after logout
+    public void unwatch(ServerUser user) {
+        TimerWheel.Timeout timeout = timeouts.remove(user.getSession());
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    public int size() {
+        return timeouts.size();
+    }
+
+    @Override
+    public void close() {
+        timerWheel.close();
+        expirer.shutdownNow();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private TimerWheel.Timeout schedule(ServerUser user, long delayNs) {
+        return timerWheel.schedule(() -> check(user), delayNs, TimeUnit.NANOSECONDS);
+    }
+
+    // executed by the wheel thread
+    private void check(ServerUser user) {
+        TimerWheel.Timeout current = timeouts.get(user.getSession());
+
+        // unwatched meanwhile
+        if (current == null) {
+            return;
+        }
+
+        long idleNs = System.nanoTime() - user.getLastSync();
+
+        if (idleNs < timeoutNs && !user.getNews().isOverflowed()) {
+            // replaced only if not unwatched (or watched again) since get()
+            TimerWheel.Timeout next = schedule(user, timeoutNs - idleNs);
+
+            if (timeouts.replace(user.getSession(), current, next)) {
+                rescheduled.incrementAndGet();
+            } else {
+                next.cancel();
+            }
+            return;
+        }
+
+        if (timeouts.remove(user.getSession(), current)) {
+            expired.incrementAndGet();
+            expirer.execute(() -> expire.accept(user));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("timeoutMs", TimeUnit.NANOSECONDS.toMillis(timeoutNs))
+                .add("sessions", timeouts.size())
+                .add("expired", expired.get())
+                .add("rescheduled", rescheduled.get())
+                .toString();
+    }
+}
@@ -0,0 +1,38 @@
+package pl.nn44.rchat.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Execution of chat command (striped locks taken, executed, news published).<br/>
+ * Only commands longer than threshold are recorded, so it can be always enabled.
+ */
+@Name("pl.nn44.rchat.Command")
+@Label("Chat Command")
+@Category("RChat")
+@Description("Execution of chat command, with lock waits and publishing of news")
+@StackTrace(false)
+@Threshold("1 ms")
+public class CommandEvent extends Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Channel")
+    public String channel;
+
+    @Label("Fan-out")
+    @Description("Number of feeds the published channel news are offered to")
+    public int fanOut;
+
+
+    public CommandEvent(String command, String channel) {
+        this.command = command;
+        this.channel = channel;
+    }
+}
@@ -0,0 +1,78 @@
+package pl.nn44.rchat.server.jfr;
+
+/**
+ * Events of Jfr holder, the only class referencing event classes (loaded when Jfr.ENABLED).
+ */
+final class Events {
+
+    private Events() {
+    }
+
+    static Object commandBegin(String command, String channel) {
+        CommandEvent event = new CommandEvent(command, channel);
+        event.begin();
+        return event;
+    }
+
+    static void commandFanOut(Object event, int fanOut) {
+        ((CommandEvent) event).fanOut += fanOut;
+    }
+
+    static void commandEnd(Object event) {
+        ((CommandEvent) event).commit();
+    }
+
+    static Object lockWaitBegin() {
+        LockWaitEvent event = new LockWaitEvent();
+        event.begin();
+        return event;
+    }
+
+    static void lockWaitEnd(Object e, int stripe, boolean acquired) {
+        LockWaitEvent event = (LockWaitEvent) e;
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.stripe = stripe;
+            event.acquired = acquired;
+            event.commit();
+        }
+    }
+
+    static Object longPollBegin() {
+        LongPollEvent event = new LongPollEvent();
+        event.begin();
+        return event;
+    }
+
+    static void longPollEnd(Object e, String phase, String username, long timeoutMs, int news) {
+        LongPollEvent event = (LongPollEvent) e;
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.username = username;
+            event.timeoutMs = timeoutMs;
+            event.news = news;
+            event.commit();
+        }
+    }
+
+    static Object sessionExpiryBegin() {
+        SessionExpiryEvent event = new SessionExpiryEvent();
+        event.begin();
+        return event;
+    }
+
+    static void sessionExpiryEnd(Object e, String username, int channels, long idleMs) {
+        SessionExpiryEvent event = (SessionExpiryEvent) e;
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.channels = channels;
+            event.idleMs = idleMs;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package pl.nn44.rchat.server.jfr;
+
+/**
+ * JFR events of server, through this holder only: events extend jdk.jfr.Event, which is missing before 8u262.<br/>
+ * Event classes are loaded (by Events) only if jdk.jfr.Event is present, otherwise begin methods return null<br/>
+ * and other methods do nothing. Returned events are opaque to callers, they are passed back to this class.
+ */
+public final class Jfr {
+
+    public static final boolean ENABLED = isPresent("jdk.jfr.Event");
+
+    public static final String POLL_PARK = "PARK";
+    public static final String POLL_WAKE = "WAKE";
+    public static final String POLL_TIMEOUT = "TIMEOUT";
+
+    private Jfr() {
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, Jfr.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static Object commandBegin(String command, String channel) {
+        return ENABLED ? Events.commandBegin(command, channel) : null;
+    }
+
+    public static void commandFanOut(Object event, int fanOut) {
+        if (event != null) {
+            Events.commandFanOut(event, fanOut);
+        }
+    }
+
+    public static void commandEnd(Object event) {
+        if (event != null) {
+            Events.commandEnd(event);
+        }
+    }
+
+    public static Object lockWaitBegin() {
+        return ENABLED ? Events.lockWaitBegin() : null;
+    }
+
+    public static void lockWaitEnd(Object event, int stripe, boolean acquired) {
+        if (event != null) {
+            Events.lockWaitEnd(event, stripe, acquired);
+        }
+    }
+
+    public static Object longPollBegin() {
+        return ENABLED ? Events.longPollBegin() : null;
+    }
+
+    public static void longPollEnd(Object event, String phase, String username, long timeoutMs, int news) {
+        if (event != null) {
+            Events.longPollEnd(event, phase, username, timeoutMs, news);
+        }
+    }
+
+    public static Object sessionExpiryBegin() {
+        return ENABLED ? Events.sessionExpiryBegin() : null;
+    }
+
+    public static void sessionExpiryEnd(Object event, String username, int channels, long idleMs) {
+        if (event != null) {
+            Events.sessionExpiryEnd(event, username, channels, idleMs);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package pl.nn44.rchat.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Wait for contended stripe of striped locks (uncontended acquisitions are not recorded).
+ */
+@Name("pl.nn44.rchat.LockWait")
+@Label("Chat Lock Wait")
+@Category("RChat")
+@StackTrace(false)
+public class LockWaitEvent extends Event {
+
+    @Label("Stripe")
+    public int stripe;
+
+    @Label("Acquired")
+    public boolean acquired;
+}
@@ -0,0 +1,32 @@
+package pl.nn44.rchat.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Long-poll (whatsUp) lifecycle (Jfr.POLL_*): PARK (request thread released), WAKE (news), TIMEOUT (no news).<br/>
+ * Blocking polls (not parked) are recorded with duration of the wait.
+ */
+@Name("pl.nn44.rchat.LongPoll")
+@Label("Chat Long-Poll")
+@Category("RChat")
+@StackTrace(false)
+public class LongPollEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Username")
+    public String username;
+
+    @Label("Timeout")
+    @Timespan(Timespan.MILLISECONDS)
+    public long timeoutMs;
+
+    @Label("News")
+    public int news;
+}
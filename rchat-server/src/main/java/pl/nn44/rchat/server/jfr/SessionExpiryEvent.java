@@ -0,0 +1,28 @@
+package pl.nn44.rchat.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Logout of expired session (SessionExpiry), duration is the logout.
+ */
+@Name("pl.nn44.rchat.SessionExpiry")
+@Label("Chat Session Expiry")
+@Category("RChat")
+@StackTrace(false)
+public class SessionExpiryEvent extends Event {
+
+    @Label("Username")
+    public String username;
+
+    @Label("Channels")
+    public int channels;
+
+    @Label("Idle")
+    @Timespan(Timespan.MILLISECONDS)
+    public long idleMs;
+}
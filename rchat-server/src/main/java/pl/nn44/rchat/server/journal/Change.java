@@ -0,0 +1,146 @@
+package pl.nn44.rchat.server.journal;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One state-changing operation of a channel, as stored in the journal.<br/>
+ * Args by op: CHANNEL (password, topic), TOPIC (text), ADMIN/BAN (username, state).
+ */
+public class Change {
+
+    private final Op op;
+    private final String channel;
+    private final String arg1;
+    private final String arg2;
+    private final boolean state;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private Change(Op op, String channel, @Nullable String arg1, @Nullable String arg2, boolean state) {
+        this.op = op;
+        this.channel = channel;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.state = state;
+    }
+
+    public static Change channel(String channel, @Nullable String password, String topic) {
+        return new Change(Op.CHANNEL, channel, password, topic, false);
+    }
+
+    public static Change topic(String channel, String text) {
+        return new Change(Op.TOPIC, channel, text, null, false);
+    }
+
+    public static Change admin(String channel, String username, boolean state) {
+        return new Change(Op.ADMIN, channel, username, null, state);
+    }
+
+    public static Change ban(String channel, String username, boolean state) {
+        return new Change(Op.BAN, channel, username, null, state);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Op getOp() {
+        return op;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    @Nullable
+    public String getArg1() {
+        return arg1;
+    }
+
+    @Nullable
+    public String getArg2() {
+        return arg2;
+    }
+
+    public boolean isState() {
+        return state;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeByte(op.ordinal());
+        writeString(out, channel);
+        writeNullable(out, arg1);
+        writeNullable(out, arg2);
+        out.writeBoolean(state);
+    }
+
+    static Change readFrom(DataInput in) throws IOException {
+        int op = in.readUnsignedByte();
+
+        if (op >= Op.VALUES.length) {
+            throw new IOException("unknown op: " + op);
+        }
+
+        return new Change(
+                Op.VALUES[op],
+                readString(in),
+                readNullable(in),
+                readNullable(in),
+                in.readBoolean()
+        );
+    }
+
+    // length-prefixed utf-8 (writeUTF is limited to 64 KB)
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeNullable(DataOutput out, @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    @Nullable
+    static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("op", op)
+                .add("channel", channel)
+                .add("arg1", arg1)
+                .add("arg2", arg2)
+                .add("state", state)
+                .toString();
+    }
+
+    public enum Op {
+        CHANNEL, // CHANNEL channel password topic
+        TOPIC, // TOPIC channel text
+        ADMIN, // ADMIN channel username state
+        BAN; // BAN channel username state
+
+        // ordinal is the stored form: new ops are added at the end only
+        private static final Op[] VALUES = values();
+    }
+}
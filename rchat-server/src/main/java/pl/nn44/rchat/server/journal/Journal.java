@@ -0,0 +1,414 @@
+package pl.nn44.rchat.server.journal;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.server.model.ServerChannel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only journal of channel changes, with periodic snapshots.<br/>
+ * Callers only enqueue changes (in commit order: under channel lock / on channel loop), one writer thread
+ * writes all queued changes at once and forces them to disk once per batch (group commit).<br/>
+ * A change is durable after its batch is forced, not when the call returns: crash loses at most the last batch.<br/>
+ * <br/>
+ * Startup: snapshot is loaded, newer journal records are replayed, torn tail (crash while writing) is truncated.<br/>
+ * Record: length (int), crc32 of payload (int), payload: seq (long), Change.
+ */
+public class Journal implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    public static final String JOURNAL_FILE = "journal.log";
+    public static final String SNAPSHOT_FILE = "snapshot.bin";
+    public static final int SNAPSHOT_MAGIC = 0x52434A53; // RCJS
+    public static final int SNAPSHOT_FORMAT = 1;
+    public static final int DEFAULT_SNAPSHOT_RECORDS = 10_000;
+    public static final int MAX_BATCH = 4096;
+    public static final int MAX_RECORD = 16 << 20;
+    public static final long POLL_MS = 100;
+    public static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final Path dir; // null = disabled
+    private final int snapshotRecords;
+    private final JournalState state = new JournalState(); // caller thread until recover(), writer thread after
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+
+    // writer thread only
+    private FileChannel file;
+    private long committed = 0; // size of journal with complete records
+    private int sinceSnapshot = 0;
+    private final Buffer batch = new Buffer();
+    private final Buffer record = new Buffer();
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private Thread writer;
+    private volatile boolean closed = false;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private Journal(Path dir, int snapshotRecords) {
+        this.dir = dir;
+        this.snapshotRecords = snapshotRecords;
+    }
+
+    // loads snapshot and replays journal of the directory (created if needed)
+    public static Journal open(Path dir, int snapshotRecords) throws IOException {
+        Files.createDirectories(dir);
+
+        Journal journal = new Journal(dir, snapshotRecords);
+        journal.load();
+
+        LOG.info("{} instance created: {}, {}.", Journal.class.getSimpleName(), dir.toAbsolutePath(), journal);
+        return journal;
+    }
+
+    // nothing is stored: state is lost on restart
+    public static Journal disabled() {
+        return new Journal(null, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void load() throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+
+        if (Files.exists(snapshot)) {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshot)),
+                    new CRC32()
+            );
+
+            try (DataInputStream in = new DataInputStream(checked)) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+                    throw new IOException("not a snapshot (or unknown format): " + snapshot);
+                }
+
+                state.readFrom(in);
+
+                long checksum = checked.getChecksum().getValue();
+                if (in.readLong() != checksum) {
+                    throw new IOException("snapshot checksum mismatch: " + snapshot);
+                }
+            }
+        }
+
+        long snapshotSeq = state.getSeq();
+        file = FileChannel.open(dir.resolve(JOURNAL_FILE), CREATE, READ, WRITE);
+
+        // stream is not closed: it would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file)));
+        int replayed = 0;
+
+        while (true) {
+            byte[] payload;
+            int checksum;
+
+            try {
+                int length = in.readInt();
+                checksum = in.readInt();
+
+                if (length < 0 || length > MAX_RECORD) {
+                    break;
+                }
+
+                payload = new byte[length];
+                in.readFully(payload);
+
+            } catch (EOFException e) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+            long seq = rec.readLong();
+            Change change = Change.readFrom(rec);
+
+            // records already in snapshot (crash between snapshot and journal truncate) are skipped
+            if (seq > state.getSeq()) {
+                state.apply(seq, change);
+                replayed++;
+            }
+
+            committed += 8 + payload.length;
+        }
+
+        if (committed < file.size()) {
+            LOG.warn("Journal torn tail truncated: {} of {} bytes are valid.", committed, file.size());
+            file.truncate(committed);
+            file.force(true);
+        }
+
+        file.position(committed);
+        sinceSnapshot = replayed;
+
+        LOG.info("Journal loaded: snapshot seq={}, replayed={}, {}.", snapshotSeq, replayed, state);
+    }
+
+    // fills channelByName by recovered state, or by seed changes if nothing was recovered (first start);
+    // must be called once, before first append
+    public void recover(Map<String, ServerChannel> channelByName, List<Change> seed) {
+        if (state.isEmpty()) {
+            try {
+                commit(seed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        state.populate(channelByName);
+
+        if (dir != null) {
+            writer = new Thread(this::loop, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    // non-blocking, change is written by the writer thread
+    public void append(Change change) {
+        if (dir == null) {
+            return;
+        }
+
+        appended.incrementAndGet();
+        queue.add(change);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void loop() {
+        List<Change> changes = new ArrayList<>();
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Change first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+
+                if (first != null) {
+                    changes.add(first);
+                    queue.drainTo(changes, MAX_BATCH - 1);
+                    commit(changes);
+                }
+
+                // also retries snapshot forced by a failure
+                if (sinceSnapshot >= snapshotRecords) {
+                    snapshot();
+                }
+
+            } catch (InterruptedException e) {
+                LOG.warn("Journal writer interrupted, {} changes not written.", queue.size());
+                return;
+
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                LOG.error("Journal write failed, changes are kept by snapshot.", e);
+                recoverFailure();
+
+            } finally {
+                changes.clear();
+            }
+        }
+    }
+
+    // all changes are applied to state first (so snapshot has them even if write fails), then written and forced
+    // at once; a change which can not be journaled (record too long) is skipped and a snapshot is forced instead
+    private void commit(List<Change> changes) throws IOException {
+        long firstSeq = state.getSeq() + 1;
+
+        for (Change change : changes) {
+            state.apply(state.getSeq() + 1, change);
+        }
+
+        if (dir == null || changes.isEmpty()) {
+            return;
+        }
+
+        batch.reset();
+        long seq = firstSeq;
+        int records = 0;
+
+        for (Change change : changes) {
+            record.reset();
+            recordOut.writeLong(seq++);
+            change.writeTo(recordOut);
+
+            if (record.size() > MAX_RECORD) {
+                failures.incrementAndGet();
+                LOG.error("Journal record too long, skipped (kept by snapshot): {}, {} bytes.",
+                        change.getOp(), record.size());
+
+                sinceSnapshot = snapshotRecords;
+                continue;
+            }
+
+            crc.reset();
+            crc.update(record.array(), 0, record.size());
+
+            batchOut.writeInt(record.size());
+            batchOut.writeInt((int) crc.getValue());
+            record.writeTo(batchOut);
+            records++;
+        }
+
+        ByteBuffer buffer = batch.wrap();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        file.force(false);
+
+        committed += batch.size();
+        sinceSnapshot += records;
+        written.addAndGet(records);
+        commits.incrementAndGet();
+    }
+
+    // partial batch is cut off, changes of the failed batch are in state: snapshot is taken now,
+    // if it fails too, it is retried by the writer loop (every POLL_MS)
+    private void recoverFailure() {
+        sinceSnapshot = snapshotRecords;
+
+        try {
+            file.truncate(committed);
+            file.position(committed);
+        } catch (IOException e) {
+            LOG.error("Journal truncate failed.", e);
+        }
+
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Snapshot failed, retried in {} ms.", POLL_MS, e);
+        }
+    }
+
+    // state is written to temp file and moved over the previous snapshot, then journal is emptied
+    private void snapshot() throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+
+        try (FileChannel out = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out)),
+                    new CRC32()
+            );
+
+            DataOutputStream data = new DataOutputStream(checked);
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(SNAPSHOT_FORMAT);
+            state.writeTo(data);
+            data.writeLong(checked.getChecksum().getValue());
+            data.flush();
+
+            out.force(true);
+        }
+
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+
+        // crash before truncate: journal records are skipped by seq on replay
+        file.truncate(0);
+        file.force(true);
+
+        committed = 0;
+        sinceSnapshot = 0;
+        snapshots.incrementAndGet();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void close() {
+        if (dir == null || closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (writer != null) {
+            try {
+                writer.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (writer.isAlive()) {
+                LOG.warn("Journal writer not stopped in {} ms, {} changes not written.", CLOSE_TIMEOUT_MS, queue.size());
+                return;
+            }
+        }
+
+        try {
+            // shorter replay on next start
+            if (sinceSnapshot > 0) {
+                snapshot();
+            }
+            file.close();
+
+        } catch (IOException e) {
+            LOG.error("Journal close failed.", e);
+        }
+
+        LOG.info("{} closed: {}.", getClass().getSimpleName(), this);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", dir != null)
+                .add("appended", appended)
+                .add("written", written)
+                .add("commits", commits)
+                .add("snapshots", snapshots)
+                .add("failures", failures)
+                .add("pending", queue.size())
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
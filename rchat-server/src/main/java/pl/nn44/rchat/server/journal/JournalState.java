@@ -0,0 +1,147 @@
+package pl.nn44.rchat.server.journal;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.server.model.ServerChannel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journaled state of channels, built by applying changes in journal order.<br/>
+ * Kept by the journal writer, so a snapshot is written without reading (or locking) the live channels.
+ */
+class JournalState {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalState.class);
+
+    private final Map<String, ChannelState> channels = new LinkedHashMap<>(); // by name, in creation order
+    private long seq = 0; // of last applied change
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    long getSeq() {
+        return seq;
+    }
+
+    boolean isEmpty() {
+        return channels.isEmpty();
+    }
+
+    void apply(long seq, Change change) {
+        this.seq = seq;
+
+        if (change.getOp() == Change.Op.CHANNEL) {
+            channels.put(change.getChannel(), new ChannelState(change.getArg1(), change.getArg2()));
+            return;
+        }
+
+        ChannelState channel = channels.get(change.getChannel());
+        if (channel == null) {
+            LOG.warn("Change of unknown channel skipped: {}", change);
+            return;
+        }
+
+        switch (change.getOp()) {
+            case TOPIC:
+                channel.topic = change.getArg1();
+                break;
+            case ADMIN:
+                update(channel.admins, change.getArg1(), change.isState());
+                break;
+            case BAN:
+                update(channel.banned, change.getArg1(), change.isState());
+                break;
+        }
+    }
+
+    private static void update(Set<String> set, String username, boolean state) {
+        if (state) {
+            set.add(username);
+        } else {
+            set.remove(username);
+        }
+    }
+
+    void populate(Map<String, ServerChannel> channelByName) {
+        channels.forEach((name, state) -> {
+            ServerChannel channel = new ServerChannel(name, state.password, state.topic);
+            channel.getAdmins().addAll(state.admins);
+            channel.getBanned().addAll(state.banned);
+
+            channelByName.put(name, channel);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(seq);
+        out.writeInt(channels.size());
+
+        for (Map.Entry<String, ChannelState> e : channels.entrySet()) {
+            ChannelState channel = e.getValue();
+
+            Change.writeString(out, e.getKey());
+            Change.writeNullable(out, channel.password);
+            Change.writeString(out, channel.topic);
+            writeSet(out, channel.admins);
+            writeSet(out, channel.banned);
+        }
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        seq = in.readLong();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = Change.readString(in);
+            ChannelState channel = new ChannelState(Change.readNullable(in), Change.readString(in));
+            readSet(in, channel.admins);
+            readSet(in, channel.banned);
+
+            channels.put(name, channel);
+        }
+    }
+
+    private static void writeSet(DataOutput out, Set<String> set) throws IOException {
+        out.writeInt(set.size());
+        for (String value : set) {
+            Change.writeString(out, value);
+        }
+    }
+
+    private static void readSet(DataInput in, Set<String> set) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            set.add(Change.readString(in));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("seq", seq)
+                .add("channels", channels.keySet())
+                .toString();
+    }
+
+    private static class ChannelState {
+
+        private final String password;
+        private String topic;
+        private final Set<String> admins = new LinkedHashSet<>();
+        private final Set<String> banned = new LinkedHashSet<>();
+
+        ChannelState(String password, String topic) {
+            this.password = password;
+            this.topic = topic;
+        }
+    }
+}
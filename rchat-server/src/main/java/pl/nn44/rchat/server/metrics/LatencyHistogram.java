@@ -0,0 +1,134 @@
+package pl.nn44.rchat.server.metrics;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram (nanoseconds) with log-linear buckets, as in HdrHistogram:<br/>
+ * every power of two is split into SUB_BUCKETS linear buckets, so relative error is below 1/SUB_BUCKETS.<br/>
+ * Recording is lock-free (one atomic increment), values above MAX_NS are counted as MAX_NS.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    public static final long MAX_NS = (1L << 40) - 1; // ~18 minutes
+
+    private static final int MAX_SHIFT = 63 - Long.numberOfLeadingZeros(MAX_NS) - SUB_BITS;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNs = new LongAdder();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void record(long ns) {
+        long value = Math.max(0, Math.min(ns, MAX_NS));
+
+        counts.incrementAndGet(bucket(value));
+        sumNs.add(value);
+    }
+
+    // values < 2 * SUB_BUCKETS: own bucket, others: SUB_BUCKETS buckets per power of two
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // the highest value counted in bucket
+    static long highest(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // counts are copied: snapshot is consistent for all its percentiles
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+
+        return new Snapshot(copy, count, sumNs.sum());
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sumNs;
+
+        private Snapshot(long[] counts, long count, long sumNs) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNs = sumNs;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sumNs() {
+            return sumNs;
+        }
+
+        // value below which the fraction of recorded values is (0..1], 0 if nothing is recorded
+        public long percentileNs(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank && counts[i] > 0) {
+                    return highest(i);
+                }
+            }
+
+            return 0;
+        }
+
+        public long maxNs() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highest(i);
+                }
+            }
+
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("count", count)
+                    .add("p50us", TimeUnit.NANOSECONDS.toMicros(percentileNs(0.5)))
+                    .add("p99us", TimeUnit.NANOSECONDS.toMicros(percentileNs(0.99)))
+                    .add("maxUs", TimeUnit.NANOSECONDS.toMicros(maxNs()))
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package pl.nn44.rchat.server.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.web.HttpRequestHandler;
+import pl.nn44.rchat.protocol.RequestId;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Latency histograms of server calls: per ChatService method (see AsMetrics), per transport
+ * and per phase of request (see RequestTrace).<br/>
+ * Requests longer than slow request threshold are logged with their phases.<br/>
+ * scrape(): all histograms in Prometheus text format (summaries, with max of each as a gauge).
+ */
+public class Metrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    public static final String MDC_REQUEST_ID = "req.id";
+
+    // long-polls wait by design, they are not traced by phases and not slow
+    public static final String LONG_POLL_METHOD = "whatsUp";
+
+    private static final Pattern VALID_REQUEST_ID = Pattern.compile("[a-zA-Z0-9._-]{1," + RequestId.MAX_LENGTH + "}");
+
+    private final ConcurrentMap<String, LatencyHistogram> methods = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> transports = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentSkipListMap<>();
+
+    private final long slowRequestNs;
+    private final AtomicLong serverRequestIds = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Metrics(long slowRequestMs) {
+        this.slowRequestNs = TimeUnit.MILLISECONDS.toNanos(slowRequestMs);
+        LOG.info("{} instance created: slowRequestMs={}.", getClass().getSimpleName(), slowRequestMs);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public LatencyHistogram method(String name) {
+        return histogram(methods, name);
+    }
+
+    public LatencyHistogram transport(String name) {
+        return histogram(transports, name);
+    }
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String name) {
+        LatencyHistogram histogram = histograms.get(name);
+
+        return histogram != null
+                ? histogram
+                : histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // parked long-polls are measured until parked (resumed execution is not)
+    // request id: RequestId.HEADER of request (if valid) or generated
+    public HttpRequestHandler timed(String transport, HttpRequestHandler handler) {
+        LatencyHistogram histogram = transport(transport);
+
+        return (request, response) -> {
+            String id = request.getHeader(RequestId.HEADER);
+            RequestTrace trace = RequestTrace.start(requestId(id), transport);
+            MDC.put(MDC_REQUEST_ID, trace.getId());
+
+            try {
+                handler.handleRequest(request, response);
+            } finally {
+                MDC.remove(MDC_REQUEST_ID);
+                trace.end();
+                histogram.record(trace.totalNs());
+                traced(trace);
+            }
+        };
+    }
+
+    // service of transports calling service interface directly (tcp): not decoded/encoded in trace,
+    // clientRequestIds gives id sent by client with current call (null if none)
+    public <T> T timed(String transport, Class<T> clazz, T service, Supplier<String> clientRequestIds) {
+        LatencyHistogram histogram = transport(transport);
+
+        Object proxy = Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz}, (p, method, args) -> {
+            RequestTrace trace = RequestTrace.start(requestId(clientRequestIds.get()), transport);
+            MDC.put(MDC_REQUEST_ID, trace.getId());
+
+            try {
+                return method.invoke(service, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                MDC.remove(MDC_REQUEST_ID);
+                trace.end();
+                histogram.record(trace.totalNs());
+                traced(trace);
+            }
+        });
+
+        return clazz.cast(proxy);
+    }
+
+    private String requestId(@Nullable String clientId) {
+        return clientId != null && VALID_REQUEST_ID.matcher(clientId).matches()
+                ? clientId
+                : "s-" + serverRequestIds.incrementAndGet();
+    }
+
+    private void traced(RequestTrace trace) {
+        if (LONG_POLL_METHOD.equals(trace.getMethod())) {
+            return;
+        }
+
+        for (RequestTrace.Phase phase : RequestTrace.Phase.values()) {
+            histogram(phases, phase.name().toLowerCase()).record(trace.phaseNs(phase));
+        }
+
+        if (trace.totalNs() >= slowRequestNs) {
+            LOG.warn("Slow request: {}", trace);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        summary(out, "rchat_call_seconds", "method", methods);
+        summary(out, "rchat_transport_seconds", "transport", transports);
+        summary(out, "rchat_phase_seconds", "phase", phases);
+        return out.toString();
+    }
+
+    // <name>_max is not a part of summary, it is a separate gauge family (after the summary)
+    private static void summary(StringBuilder out,
+                                String name,
+                                String label,
+                                Map<String, LatencyHistogram> histograms) {
+
+        Map<String, Long> maxNs = new LinkedHashMap<>();
+        out.append("# TYPE ").append(name).append(" summary\n");
+
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            String labels = label + "=\"" + entry.getKey() + "\"";
+
+            for (double quantile : QUANTILES) {
+                line(out, name, labels + ",quantile=\"" + quantile + "\"", snapshot.percentileNs(quantile));
+            }
+
+            line(out, name + "_sum", labels, snapshot.sumNs());
+            out.append(name).append("_count{").append(labels).append("} ").append(snapshot.count()).append('\n');
+            maxNs.put(labels, snapshot.maxNs());
+        }
+
+        out.append("# TYPE ").append(name).append("_max gauge\n");
+
+        for (Map.Entry<String, Long> entry : maxNs.entrySet()) {
+            line(out, name + "_max", entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void line(StringBuilder out, String name, String labels, long ns) {
+        out.append(name).append('{').append(labels).append("} ")
+                .append(String.format(Locale.ROOT, "%.9f", ns / 1e9))
+                .append('\n');
+    }
+}
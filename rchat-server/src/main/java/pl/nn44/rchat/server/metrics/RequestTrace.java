@@ -0,0 +1,152 @@
+package pl.nn44.rchat.server.metrics;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing of one request by phases: decode (transport, until service method is called), lock (wait for locks
+ * or event loop), execute (service method without lock and fan-out), fan-out (publishing news), encode (transport,
+ * after service method).<br/>
+ * Bound to the request thread by Metrics.timed() wrappers, phases are reported through static methods,
+ * they do nothing outside of traced request.
+ */
+public class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    public enum Phase {
+        DECODE,
+        LOCK,
+        EXECUTE,
+        FAN_OUT,
+        ENCODE
+    }
+
+    private final String id;
+    private final String transport;
+    private final long startNs;
+
+    private String method;
+    private long invokeStartNs;
+    private long invokeEndNs;
+    private long lockNs;
+    private long fanOutNs;
+    private long endNs;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private RequestTrace(String id, String transport, long startNs) {
+        this.id = id;
+        this.transport = transport;
+        this.startNs = startNs;
+    }
+
+    static RequestTrace start(String id, String transport) {
+        RequestTrace trace = new RequestTrace(id, transport, System.nanoTime());
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    void end() {
+        endNs = System.nanoTime();
+        CURRENT.remove();
+
+        // service method was not called (bad request)
+        if (method == null) {
+            invokeStartNs = endNs;
+            invokeEndNs = endNs;
+        }
+    }
+
+    @Nullable
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // the first (outermost) service method of request
+    public static void invoked(String method, long startNs, long endNs) {
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null && trace.method == null) {
+            trace.method = method;
+            trace.invokeStartNs = startNs;
+            trace.invokeEndNs = endNs;
+        }
+    }
+
+    public static void lockWaited(long ns) {
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            trace.lockNs += ns;
+        }
+    }
+
+    // may be called by other thread (event loop), if the request thread waits for it
+    public void addLockWait(long ns) {
+        lockNs += ns;
+    }
+
+    public static void fanOut(long ns) {
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            trace.fanOutNs += ns;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    @Nullable
+    public String getMethod() {
+        return method;
+    }
+
+    public long totalNs() {
+        return endNs - startNs;
+    }
+
+    public long phaseNs(Phase phase) {
+        switch (phase) {
+            case DECODE:
+                return invokeStartNs - startNs;
+            case LOCK:
+                return lockNs;
+            case EXECUTE:
+                return Math.max(0, invokeEndNs - invokeStartNs - lockNs - fanOutNs);
+            case FAN_OUT:
+                return fanOutNs;
+            case ENCODE:
+                return endNs - invokeEndNs;
+            default:
+                throw new AssertionError(phase);
+        }
+    }
+
+    @Override
+    public String toString() {
+        MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("transport", transport)
+                .add("method", method)
+                .add("totalUs", TimeUnit.NANOSECONDS.toMicros(totalNs()));
+
+        for (Phase phase : Phase.values()) {
+            helper.add(phase.name().toLowerCase() + "Us", TimeUnit.NANOSECONDS.toMicros(phaseNs(phase)));
+        }
+
+        return helper.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+import pl.nn44.rchat.protocol.model.Channel;
+import pl.nn44.rchat.protocol.model.ChannelList;
+import pl.nn44.rchat.protocol.model.Response;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable, versioned snapshot of the channel list (names, password flags), shared by all channels() calls.<br/>
+ * Responses are built once per version, refresh() must be called when channels or their passwords change.
+ */
+public class ChannelListCache {
+
+    private final Map<String, ServerChannel> channelByName;
+    private int version; // random start: version known by a client is not valid after server restart
+    private volatile Snapshot snapshot;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public ChannelListCache(Map<String, ServerChannel> channelByName) {
+        this.channelByName = channelByName;
+        this.version = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE / 2);
+        refresh();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public synchronized void refresh() {
+        Channel[] channels = channelByName.values().stream()
+                .sorted(Comparator.comparing(ServerChannel::getName))
+                .map(chan -> new Channel(
+                        chan.getName(),
+                        chan.getPassword() != null
+                ))
+                .toArray(Channel[]::new);
+
+        snapshot = new Snapshot(++version, channels);
+    }
+
+    public Response<Channel[]> channels() {
+        return snapshot.channels;
+    }
+
+    public Response<ChannelList> since(int knownVersion) {
+        Snapshot snapshot = this.snapshot;
+
+        return snapshot.version == knownVersion
+                ? snapshot.notModified
+                : snapshot.list;
+    }
+
+    public int getVersion() {
+        return snapshot.version;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("version", snapshot.version)
+                .add("channels", snapshot.list.getPayload().getChannels().length)
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Snapshot {
+
+        private final int version;
+        private final Response<Channel[]> channels;
+        private final Response<ChannelList> list;
+        private final Response<ChannelList> notModified;
+
+        Snapshot(int version, Channel[] channels) {
+            this.version = version;
+            this.channels = Response.ok(channels);
+            this.list = Response.ok(ChannelList.of(version, channels));
+            this.notModified = Response.ok(ChannelList.notModified(version));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.math.IntMath;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import javax.annotation.Nullable;
+import java.math.RoundingMode;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only ring buffer of channel events.<br/>
+ * Every event is stored once and read by members through own cursors (NewsFeed).
+ */
+public class EventLog {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final LogEntry[] ring;
+    private final int mask;
+    private volatile long tail = 0; // position of next entry
+    private volatile long offered = 0; // sum of readers of all entries (written under lock)
+    private final AtomicInteger readers = new AtomicInteger(); // attached feeds
+
+    // feeds waiting for any new entry (NewsFeed.poll, NewsFeed.listen)
+    private final ConcurrentHashMultiset<NewsFeed> waiters = ConcurrentHashMultiset.create();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public EventLog(int capacity) {
+        int size = IntMath.pow(2, IntMath.log2(capacity, RoundingMode.CEILING));
+
+        this.ring = new LogEntry[size];
+        this.mask = size - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public long tail() {
+        return tail;
+    }
+
+    public long head() {
+        return Math.max(0, tail - ring.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public LogEntry append(WhatsUp whatsUp) {
+        return append(whatsUp, null, null);
+    }
+
+    public LogEntry append(WhatsUp whatsUp,
+                           @Nullable String author,
+                           @Nullable WhatsUp whatsUpIgnored) {
+
+        LogEntry entry;
+
+        synchronized (this) {
+            long position = tail;
+            entry = new LogEntry(position, whatsUp, author, whatsUpIgnored);
+            ring[(int) (position & mask)] = entry;
+            offered += readers.get();
+            tail = position + 1; // publish
+        }
+
+        for (NewsFeed waiter : waiters.elementSet()) {
+            waiter.signal();
+        }
+
+        return entry;
+    }
+
+    // returns null if position is not written yet or already overwritten
+    @Nullable
+    public LogEntry get(long position) {
+        if (position >= tail) {
+            return null;
+        }
+
+        LogEntry entry = ring[(int) (position & mask)];
+        return entry != null && entry.getPosition() == position
+                ? entry
+                : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int readers() {
+        return readers.get();
+    }
+
+    // every entry is offered to all feeds attached at append
+    public long offered() {
+        return offered;
+    }
+
+    void addReader() {
+        readers.incrementAndGet();
+    }
+
+    void removeReader() {
+        readers.decrementAndGet();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    void addWaiter(NewsFeed feed) {
+        waiters.add(feed);
+    }
+
+    void removeWaiter(NewsFeed feed) {
+        waiters.remove(feed);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("capacity", ring.length)
+                .add("tail", tail)
+                .add("readers", readers.get())
+                .toString();
+    }
+}
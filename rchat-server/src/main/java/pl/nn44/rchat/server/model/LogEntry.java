@@ -0,0 +1,105 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single WhatsUp stored in EventLog (shared) or in NewsFeed (private).<br/>
+ * Entries are ordered by global sequence, so news from many sources may be merged.
+ */
+public class LogEntry {
+
+    public static final Comparator<LogEntry> BY_SEQ = Comparator
+            .comparingLong(LogEntry::getSeq)
+            .thenComparingLong(LogEntry::getPosition);
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final long seq;
+    private final long nanoTime;
+    private final long position;
+    private final WhatsUp whatsUp;
+    private final String author;
+    private final WhatsUp whatsUpIgnored;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // author:         who caused the event, null if event may not be ignored
+    // whatsUpIgnored: what is seen by users ignoring the author, null = nothing
+    LogEntry(long position,
+             WhatsUp whatsUp,
+             @Nullable String author,
+             @Nullable WhatsUp whatsUpIgnored) {
+
+        this(SEQUENCE.incrementAndGet(), position, whatsUp, author, whatsUpIgnored);
+    }
+
+    // entry placed among existing ones (seq is not unique), visible to everyone
+    LogEntry(long seq, long position, WhatsUp whatsUp) {
+        this(seq, position, whatsUp, null, null);
+    }
+
+    private LogEntry(long seq,
+                     long position,
+                     WhatsUp whatsUp,
+                     @Nullable String author,
+                     @Nullable WhatsUp whatsUpIgnored) {
+
+        this.seq = seq;
+        this.nanoTime = System.nanoTime();
+        this.position = position;
+        this.whatsUp = whatsUp;
+        this.author = author;
+        this.whatsUpIgnored = whatsUpIgnored;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public WhatsUp getWhatsUp() {
+        return whatsUp;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Nullable
+    public WhatsUp visibleTo(Collection<String> ignored) {
+        if (author == null || !ignored.contains(author)) {
+            return whatsUp;
+        }
+
+        return whatsUpIgnored;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("seq", seq)
+                .add("position", position)
+                .add("whatsUp", whatsUp)
+                .add("author", author)
+                .toString();
+    }
+}
@@ -0,0 +1,80 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.math.IntMath;
+
+import javax.annotation.Nullable;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Versioned ring buffer of membership changes (join/leave) of one channel.<br/>
+ * Every change increments the version; changes since a version are available as long as they are in the ring.<br/>
+ * Written and read by the channel owner only (channel lock / channel loop).
+ */
+public class MemberLog {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final String[] usernames;
+    private final boolean[] joins;
+    private final int mask;
+    private volatile int version; // random start: version known by a client is not valid after server restart
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public MemberLog(int capacity) {
+        int size = IntMath.pow(2, IntMath.log2(capacity, RoundingMode.CEILING));
+
+        this.usernames = new String[size];
+        this.joins = new boolean[size];
+        this.mask = size - 1;
+        this.version = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE / 2);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int append(String username, boolean join) {
+        int next = version + 1;
+
+        usernames[next & mask] = username;
+        joins[next & mask] = join;
+        version = next;
+
+        return next;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // last change of every username since given version (true = joined), null if the version is not in ring
+    @Nullable
+    public Map<String, Boolean> since(int sinceVersion) {
+        int version = this.version;
+        int behind = version - sinceVersion; // overflow-safe
+
+        if (behind < 0 || behind > usernames.length) {
+            return null;
+        }
+
+        Map<String, Boolean> changes = new LinkedHashMap<>();
+        for (int v = sinceVersion + 1; v - version <= 0; v++) {
+            changes.put(usernames[v & mask], joins[v & mask]);
+        }
+
+        return changes;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("capacity", usernames.length)
+                .add("version", version)
+                .toString();
+    }
+}
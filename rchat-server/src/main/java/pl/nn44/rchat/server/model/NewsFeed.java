@@ -0,0 +1,500 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.protocol.model.WhatsUp.What;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * News of single user.<br/>
+ * Merges (by LogEntry seq) channel EventLogs read through cursors<br/>
+ * and small private queue for events addressed to the user only (PRIVY, IGNORE, ...).<br/>
+ * Number of not yet read news is bounded by NewsLimits.
+ */
+public class NewsFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NewsFeed.class);
+
+    private final Collection<String> ignored;
+    private final NewsLimits limits;
+    private final NewsStats stats;
+
+    private final PriorityBlockingQueue<LogEntry> privy = new PriorityBlockingQueue<>(11, LogEntry.BY_SEQ);
+    private final Map<ServerChannel, Cursor> cursors = new ConcurrentHashMap<>();
+
+    private long cursorsPending = 0; // not yet read entries of cursors, up to Cursor.counted (under lock)
+
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile boolean overflowed = false;
+    private volatile long drained = 0; // written under lock
+
+    // one-shot listeners, see listen()
+    private final Set<Runnable> listeners = new HashSet<>(2);
+    private final Set<EventLog> listenedOn = new HashSet<>();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NewsFeed(Collection<String> ignored, NewsLimits limits, NewsStats stats) {
+        this.ignored = ignored;
+        this.limits = limits;
+        this.stats = stats;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public boolean offer(WhatsUp whatsUp) {
+        LogEntry entry = new LogEntry(-1, whatsUp, null, null);
+        boolean offer;
+
+        synchronized (this) {
+            offer = privy.offer(entry);
+            trim();
+        }
+
+        stats.offer();
+
+        signal();
+        return offer;
+    }
+
+    // start reading channel log from its current tail
+    public synchronized void attach(ServerChannel channel) {
+        EventLog log = channel.getLog();
+        if (cursors.putIfAbsent(channel, new Cursor(channel.getName(), log, log.tail())) == null) {
+            log.addReader();
+        }
+
+        if (!listeners.isEmpty() && listenedOn.add(log)) {
+            log.addWaiter(this);
+        }
+
+        notifyAll();
+    }
+
+    // stop reading channel log, not yet read entries are moved to private queue
+    public synchronized void detach(ServerChannel channel) {
+        Cursor cursor = cursors.remove(channel);
+        if (cursor == null) {
+            return;
+        }
+
+        cursor.log.removeReader();
+
+        for (LogEntry entry = cursor.peek(); entry != null; entry = cursor.peek()) {
+            privy.offer(entry);
+            cursor.advance();
+        }
+
+        countAppended();
+        trim();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public synchronized List<WhatsUp> poll(int max) {
+        List<WhatsUp> news = new ArrayList<>(Math.min(max, 4));
+        long drainedBefore = drained;
+
+        countAppended();
+        trim();
+
+        while (news.size() < max) {
+            LogEntry entry = next(true);
+
+            if (entry == null) {
+                break;
+            }
+
+            drained++;
+            WhatsUp whatsUp = entry.visibleTo(ignored);
+            if (whatsUp != null) {
+                news.add(whatsUp);
+            }
+        }
+
+        stats.drain(drained - drainedBefore);
+        return news;
+    }
+
+    public List<WhatsUp> poll(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        List<WhatsUp> news = poll(max);
+        if (!news.isEmpty() || timeout <= 0) {
+            return news;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Set<EventLog> waitingOn = new HashSet<>();
+
+        try {
+            while (news.isEmpty()) {
+                synchronized (this) {
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        break;
+                    }
+
+                    // channels may be attached while waiting
+                    for (Cursor cursor : cursors.values()) {
+                        if (waitingOn.add(cursor.log)) {
+                            cursor.log.addWaiter(this);
+                        }
+                    }
+
+                    if (!hasNews()) {
+                        wait(remainingMs);
+                    }
+                }
+
+                news = poll(max);
+            }
+
+        } finally {
+            for (EventLog log : waitingOn) {
+                log.removeWaiter(this);
+            }
+        }
+
+        return news;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // listener is run once, on the first news (or immediately if there are news)
+    // it is run by thread which offers the news, so it must be short
+    // many listeners may wait at once (e.g. retried poll), each is removed by own unlisten()
+    public void listen(Runnable callback) {
+        synchronized (this) {
+            listeners.add(callback);
+
+            for (Cursor cursor : cursors.values()) {
+                if (listenedOn.add(cursor.log)) {
+                    cursor.log.addWaiter(this);
+                }
+            }
+        }
+
+        if (hasNews()) {
+            fire();
+        }
+    }
+
+    public synchronized void unlisten(Runnable callback) {
+        listeners.remove(callback);
+
+        if (listeners.isEmpty()) {
+            removeWaiters();
+        }
+    }
+
+    private void removeWaiters() {
+        for (EventLog log : listenedOn) {
+            log.removeWaiter(this);
+        }
+        listenedOn.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public synchronized boolean hasNews() {
+        if (!privy.isEmpty()) {
+            return true;
+        }
+
+        for (Cursor cursor : cursors.values()) {
+            if (cursor.position < cursor.log.tail()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public synchronized long size() {
+        countAppended();
+        return pending();
+    }
+
+    // age of the oldest not yet read news, 0 if there are no news
+    public synchronized long oldestAgeNs() {
+        LogEntry entry = next(false);
+
+        return entry != null
+                ? System.nanoTime() - entry.getNanoTime()
+                : 0;
+    }
+
+    public NewsLimits getLimits() {
+        return limits;
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    // news read (including ones not visible to the user), since feed was created
+    public long getDrained() {
+        return drained;
+    }
+
+    void signal() {
+        synchronized (this) {
+            notifyAll();
+        }
+
+        fire();
+    }
+
+    private void fire() {
+        Runnable[] callbacks;
+
+        synchronized (this) {
+            if (listeners.isEmpty()) {
+                return;
+            }
+
+            callbacks = listeners.toArray(new Runnable[listeners.size()]);
+            listeners.clear();
+            removeWaiters();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // oldest entry of all sources (removed if remove is set)
+    @Nullable
+    private LogEntry next(boolean remove) {
+        LogEntry best = privy.peek();
+        Cursor bestCursor = null;
+
+        for (Cursor cursor : cursors.values()) {
+            LogEntry entry = cursor.peek();
+
+            if (entry != null && (best == null || entry.getSeq() < best.getSeq())) {
+                best = entry;
+                bestCursor = cursor;
+            }
+        }
+
+        if (best != null && remove) {
+            if (bestCursor != null) {
+                bestCursor.advance();
+            } else {
+                privy.poll();
+            }
+        }
+
+        return best;
+    }
+
+    // not yet read entries, without ones appended to logs since the last countAppended()
+    private long pending() {
+        return privy.size() + cursorsPending;
+    }
+
+    // counts entries appended to logs of cursors (poll, detach), offer() counts only own entry
+    private void countAppended() {
+        for (Cursor cursor : cursors.values()) {
+            cursor.countAppended();
+        }
+    }
+
+    // applies overflow policy if capacity is exceeded
+    private void trim() {
+        NewsLimits.Overflow overflow = limits.getOverflow();
+        long excess = pending() - limits.getCapacity();
+        long dropped = 0;
+
+        if (overflow == NewsLimits.Overflow.EXPIRE) {
+            long expiredNs = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(limits.getTtlMs());
+
+            for (LogEntry e = next(false); e != null && e.getNanoTime() - expiredNs < 0; e = next(false)) {
+                next(true);
+                dropped++;
+                excess--;
+            }
+        }
+
+        if (excess > 0) {
+            switch (overflow) {
+                case DROP_OLDEST:
+                case EXPIRE:
+                    for (; excess > 0 && next(true) != null; excess--) {
+                        dropped++;
+                    }
+                    break;
+
+                case LOGOUT:
+                    if (!overflowed) {
+                        overflowed = true;
+                        LOG.warn("News overflow, feed marked to logout: {}", this);
+                    }
+                    break;
+
+                case DROP_MESSAGES:
+                    // the oldest entries (JOIN, PART, ...) only if there is no message to drop
+                    for (; excess > 0 && (dropMessage() || next(true) != null); excess--) {
+                        dropped++;
+                    }
+                    break;
+            }
+        }
+
+        if (dropped > 0) {
+            overflow(dropped);
+        }
+    }
+
+    // message at the head of a cursor, or any message of private queue
+    private boolean dropMessage() {
+        for (Cursor cursor : cursors.values()) {
+            LogEntry entry = cursor.peek();
+
+            if (entry != null && isMessage(entry)) {
+                cursor.advance();
+                return true;
+            }
+        }
+
+        for (Iterator<LogEntry> it = privy.iterator(); it.hasNext(); ) {
+            if (isMessage(it.next())) {
+                it.remove();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // entries overwritten before read (reader slower than EventLog capacity) are dropped news,
+    // the policy applies as for own capacity; otherwise the user gets RESYNC of the channel
+    private void overrun(long lost, EventLog log) {
+        LOG.warn("Cursor overrun, {} entries lost: {}, {}", lost, log, this);
+        overflow(lost);
+
+        if (limits.getOverflow() == NewsLimits.Overflow.LOGOUT && !overflowed) {
+            overflowed = true;
+            LOG.warn("News overflow, feed marked to logout: {}", this);
+        }
+    }
+
+    private void overflow(long dropped) {
+        long total = overflows.addAndGet(dropped);
+        stats.drop(dropped);
+        LOG.debug("News overflow, {} dropped ({} total): {}", dropped, total, this);
+    }
+
+    private static boolean isMessage(LogEntry entry) {
+        What what = entry.getWhatsUp().getWhat();
+        return what == What.MESSAGE || what == What.PRIVY;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("privy", privy.size())
+                .add("cursors", cursors.size())
+                .add("overflows", overflows.get())
+                .add("overflowed", overflowed)
+                .add("drained", drained)
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private class Cursor {
+
+        private final String channel;
+        private final EventLog log;
+        private long position;
+        private long counted; // entries before it are counted in cursorsPending (counted >= position)
+        private LogEntry resync = null; // read before the entry at position
+
+        Cursor(String channel, EventLog log, long position) {
+            this.channel = channel;
+            this.log = log;
+            this.position = position;
+            this.counted = position;
+        }
+
+        LogEntry peek() {
+            if (resync != null) {
+                return resync;
+            }
+
+            long lost = 0;
+
+            while (position < log.tail()) {
+                LogEntry entry = log.get(position);
+
+                if (entry == null) {
+                    // reader is too slow, entries were overwritten
+                    long head = Math.max(position + 1, log.head());
+                    lost += head - position;
+                    skipTo(head);
+                    continue;
+                }
+
+                if (lost > 0) {
+                    overrun(lost, log);
+                    stats.offer();
+
+                    // in order of the first not lost entry
+                    resync = new LogEntry(
+                            entry.getSeq(),
+                            -1,
+                            WhatsUp.create(What.RESYNC, channel, String.valueOf(lost))
+                    );
+                    return resync;
+                }
+
+                return entry;
+            }
+
+            return null;
+        }
+
+        void advance() {
+            if (resync != null) {
+                resync = null;
+            } else {
+                skipTo(position + 1);
+            }
+        }
+
+        void countAppended() {
+            long tail = log.tail();
+            cursorsPending += tail - counted;
+            counted = tail;
+        }
+
+        private void skipTo(long newPosition) {
+            cursorsPending -= Math.min(newPosition, counted) - position;
+            position = newPosition;
+            counted = Math.max(counted, position);
+        }
+    }
+}
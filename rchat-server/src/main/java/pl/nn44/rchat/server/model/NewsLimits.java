@@ -0,0 +1,62 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of single NewsFeed.<br/>
+ * Capacity is max number of not yet read news, Overflow says what to do when it is exceeded.
+ */
+public class NewsLimits {
+
+    public static final NewsLimits UNBOUNDED = new NewsLimits(Integer.MAX_VALUE, Overflow.DROP_OLDEST, Long.MAX_VALUE);
+
+    private final int capacity;
+    private final Overflow overflow;
+    private final long ttlMs;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NewsLimits(int capacity, Overflow overflow, long ttlMs) {
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.ttlMs = ttlMs;
+    }
+
+    public static NewsLimits of(int capacity, Overflow overflow, long ttl, TimeUnit unit) {
+        return new NewsLimits(capacity, overflow, unit.toMillis(ttl));
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("capacity", capacity)
+                .add("overflow", overflow)
+                .add("ttlMs", ttlMs)
+                .toString();
+    }
+
+    public enum Overflow {
+        DROP_OLDEST, // drop the oldest news, whatever it is
+        DROP_MESSAGES, // drop MESSAGE and PRIVY, membership/moderation news only if there is no message
+        EXPIRE, // drop news older than ttl, then the oldest news
+        LOGOUT, // mark feed as overflowed, session is closed by ChatService
+    }
+}
@@ -0,0 +1,203 @@
+package pl.nn44.rchat.server.model;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * News counters of all sessions: offered, drained (read) and dropped news, fan-out of channel messages.<br/>
+ * Offered news: private ones (NewsFeed.offer) and channel events times feeds attached at append (EventLog).<br/>
+ * Rates are computed by sample() (every SAMPLE_MS), depth and age of not yet read news on report().
+ */
+public class NewsStats {
+
+    public static final long SAMPLE_MS = 10_000;
+
+    private final Supplier<Collection<ServerUser>> users;
+    private final Supplier<Collection<ServerChannel>> channels;
+
+    private final LongAdder privyOffered = new LongAdder();
+    private final LongAdder drained = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder fanOutSum = new LongAdder();
+    private final LongAccumulator fanOutMax = new LongAccumulator(Math::max, 0);
+
+    private volatile Rates rates = new Rates(0, 0, System.nanoTime());
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public NewsStats(Supplier<Collection<ServerUser>> users, Supplier<Collection<ServerChannel>> channels) {
+        this.users = users;
+        this.channels = channels;
+    }
+
+    // counters of users not known by any chat service (dummy users)
+    public static NewsStats detached() {
+        return new NewsStats(Collections::emptyList, Collections::emptyList);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    void offer() {
+        privyOffered.increment();
+    }
+
+    void drain(long count) {
+        if (count > 0) {
+            drained.add(count);
+        }
+    }
+
+    void drop(long count) {
+        dropped.add(count);
+    }
+
+    // message appended to channel log read by members
+    public void fanOut(int members) {
+        messages.increment();
+        fanOutSum.add(members);
+        fanOutMax.accumulate(members);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // channels are never removed, so the sum is not decreasing
+    public long offered() {
+        long offered = privyOffered.sum();
+
+        for (ServerChannel channel : channels.get()) {
+            offered += channel.getLog().offered();
+        }
+
+        return offered;
+    }
+
+    public long drained() {
+        return drained.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public void sample() {
+        Rates prev = rates;
+        long nowNs = System.nanoTime();
+        double seconds = Math.max(1e-3, (nowNs - prev.timeNs) / 1e9);
+        long offered = offered();
+        long drained = drained();
+
+        rates = new Rates(
+                offered,
+                drained,
+                (offered - prev.offered) / seconds,
+                (drained - prev.drained) / seconds,
+                nowNs
+        );
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // totals, rates and sessions with the oldest not yet read news (then the most news)
+    public String report(int top) {
+        Collection<Lag> lags = users.get().stream()
+                .map(Lag::new)
+                .collect(Collectors.toList());
+
+        long depth = lags.stream().mapToLong(lag -> lag.depth).sum();
+        long messages = this.messages.sum();
+        Rates rates = this.rates;
+
+        String lagging = lags.stream()
+                .filter(lag -> lag.depth > 0)
+                .sorted(Comparator.<Lag>comparingLong(lag -> lag.ageNs)
+                        .thenComparingLong(lag -> lag.depth)
+                        .reversed())
+                .limit(top)
+                .map(Lag::toString)
+                .collect(Collectors.joining("\n", "", "\n"));
+
+        return MoreObjects.toStringHelper(this)
+                .add("sessions", lags.size())
+                .add("depth", depth)
+                .add("offered", offered())
+                .add("drained", drained())
+                .add("dropped", dropped())
+                .add("offeredPerSec", Math.round(rates.offeredPerSec))
+                .add("drainedPerSec", Math.round(rates.drainedPerSec))
+                .add("messages", messages)
+                .add("fanOutAvg", messages > 0 ? fanOutSum.sum() / messages : 0)
+                .add("fanOutMax", fanOutMax.get())
+                .toString()
+                + "\n" + lagging;
+    }
+
+    @Override
+    public String toString() {
+        Rates rates = this.rates;
+
+        return MoreObjects.toStringHelper(this)
+                .add("offered", rates.offered)
+                .add("drained", rates.drained)
+                .add("dropped", dropped())
+                .add("offeredPerSec", Math.round(rates.offeredPerSec))
+                .add("drainedPerSec", Math.round(rates.drainedPerSec))
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static class Rates {
+
+        private final long offered;
+        private final long drained;
+        private final double offeredPerSec;
+        private final double drainedPerSec;
+        private final long timeNs;
+
+        Rates(long offered, long drained, double offeredPerSec, double drainedPerSec, long timeNs) {
+            this.offered = offered;
+            this.drained = drained;
+            this.offeredPerSec = offeredPerSec;
+            this.drainedPerSec = drainedPerSec;
+            this.timeNs = timeNs;
+        }
+
+        Rates(long offered, long drained, long timeNs) {
+            this(offered, drained, 0, 0, timeNs);
+        }
+    }
+
+    private static class Lag {
+
+        private final ServerUser user;
+        private final long depth;
+        private final long ageNs;
+
+        Lag(ServerUser user) {
+            this.user = user;
+            this.depth = user.getNews().size();
+            this.ageNs = user.getNews().oldestAgeNs();
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper("Session")
+                    .add("username", user.getUsername())
+                    .add("depth", depth)
+                    .add("oldestMs", TimeUnit.NANOSECONDS.toMillis(ageNs))
+                    .add("drained", user.getNews().getDrained())
+                    .add("overflows", user.getNews().getOverflows())
+                    .add("channels", user.getChannels().size())
+                    .toString();
+        }
+    }
+}
@@ -2,8 +2,16 @@ package pl.nn44.rchat.server.model;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import pl.nn44.rchat.server.history.ChannelHistory;
+import pl.nn44.rchat.server.util.Outbox;
 
-import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class ServerChannel {
 
@@ -11,9 +19,14 @@ public class ServerChannel {
     private final String password;
     private String topic;
 
-    private final CopyOnWriteArrayList<ServerUser> users = new CopyOnWriteArrayList<>();
-    private final CopyOnWriteArrayList<String> admins = new CopyOnWriteArrayList<>();
-    private final CopyOnWriteArrayList<String> banned = new CopyOnWriteArrayList<>();
+    private final ConcurrentNavigableMap<String, ServerUser> users = new ConcurrentSkipListMap<>(); // by username
+    private volatile int usersCount = 0; // skip list size() is not constant-time
+    private final MemberLog memberLog = new MemberLog(MemberLog.DEFAULT_CAPACITY);
+    private final Set<String> admins = ConcurrentHashMap.newKeySet();
+    private final Set<String> banned = ConcurrentHashMap.newKeySet();
+    private final EventLog log = new EventLog(EventLog.DEFAULT_CAPACITY);
+    private final Outbox outbox = new Outbox(); // log appends in commit order
+    private ChannelHistory history; // set once, before channel is used
 
     // ---------------------------------------------------------------------------------------------------------------
 
@@ -37,18 +50,89 @@ public class ServerChannel {
         return topic;
     }
 
-    public CopyOnWriteArrayList<ServerUser> getUsers() {
-        return users;
+    // page of members ordered by username, after given username (null = from first)
+    public List<ServerUser> getUsers(@Nullable String after, int limit) {
+        Iterable<ServerUser> from = after != null
+                ? users.tailMap(after, false).values()
+                : users.values();
+
+        List<ServerUser> page = new ArrayList<>(Math.min(limit, usersCount));
+        for (ServerUser user : from) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(user);
+        }
+
+        return page;
     }
 
-    public CopyOnWriteArrayList<String> getAdmins() {
+    public Set<String> getAdmins() {
         return admins;
     }
 
-    public CopyOnWriteArrayList<String> getBanned() {
+    public Set<String> getBanned() {
         return banned;
     }
 
+    public MemberLog getMemberLog() {
+        return memberLog;
+    }
+
+    public EventLog getLog() {
+        return log;
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    public ChannelHistory getHistory() {
+        return history;
+    }
+
+    public void setHistory(ChannelHistory history) {
+        this.history = history;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // requires channel owner (as removeUser): membership log is single-writer
+    public boolean addUser(ServerUser user) {
+        boolean add = users.putIfAbsent(user.getUsername(), user) == null;
+
+        if (add) {
+            usersCount++;
+            memberLog.append(user.getUsername(), true);
+        }
+        return add;
+    }
+
+    // removes only given instance, not other (newer) session of the same user
+    public boolean removeUser(ServerUser user) {
+        boolean remove = users.get(user.getUsername()) == user
+                && users.remove(user.getUsername()) != null;
+
+        if (remove) {
+            usersCount--;
+            memberLog.append(user.getUsername(), false);
+        }
+        return remove;
+    }
+
+    public boolean hasUser(ServerUser user) {
+        return users.containsKey(user.getUsername());
+    }
+
+    @Nullable
+    public ServerUser getUser(String username) {
+        return users.get(username);
+    }
+
+    public int getUsersCount() {
+        return usersCount;
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
     public void setTopic(String topic) {
@@ -75,7 +159,7 @@ public class ServerChannel {
         return MoreObjects.toStringHelper(this)
                 .add("name", name)
                 .add("password", password)
-                .add("users", users.stream().map(ServerUser::getUsername).toArray())
+                .add("users", users.keySet())
                 .add("admins", admins)
                 .add("banned", banned)
                 .toString();
@@ -2,29 +2,33 @@ package pl.nn44.rchat.server.model;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
-import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.server.util.Outbox;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ServerUser {
 
     private final String session;
     private final String username;
-    private LocalDateTime lastSync;
+    private volatile long lastSyncNs; // System.nanoTime()
 
     private final CopyOnWriteArrayList<ServerChannel> channels = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<String> ignored = new CopyOnWriteArrayList<>();
-    private final BlockingQueue<WhatsUp> news = new LinkedBlockingQueue<>(); // offer(e), poll(), peek()
+    private final NewsFeed news;
+    private final Outbox outbox = new Outbox(); // private news in commit order
 
     // ---------------------------------------------------------------------------------------------------------------
 
-    public ServerUser(String session, String username) {
+    public ServerUser(String session, String username, NewsLimits newsLimits, NewsStats newsStats) {
         this.session = session;
         this.username = username;
-        this.lastSync = LocalDateTime.now();
+        this.lastSyncNs = System.nanoTime();
+        this.news = new NewsFeed(ignored, newsLimits, newsStats);
+    }
+
+    public ServerUser(String session, String username) {
+        this(session, username, NewsLimits.UNBOUNDED, NewsStats.detached());
     }
 
     public static ServerUser dummyUser(String username) {
@@ -41,8 +45,9 @@ public class ServerUser {
         return username;
     }
 
-    public LocalDateTime getLastSync() {
-        return lastSync;
+    // System.nanoTime() of the last call
+    public long getLastSync() {
+        return lastSyncNs;
     }
 
     public CopyOnWriteArrayList<ServerChannel> getChannels() {
@@ -53,14 +58,18 @@ public class ServerUser {
         return ignored;
     }
 
-    public BlockingQueue<WhatsUp> getNews() {
+    public NewsFeed getNews() {
         return news;
     }
 
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
     // ---------------------------------------------------------------------------------------------------------------
 
     public void updateLastSync() {
-        this.lastSync = LocalDateTime.now();
+        this.lastSyncNs = System.nanoTime();
     }
 
     // ---------------------------------------------------------------------------------------------------------------
@@ -83,9 +92,10 @@ public class ServerUser {
         return MoreObjects.toStringHelper(this)
                 .add("session", session)
                 .add("username", username)
-                .add("lastSync", lastSync)
+                .add("idleMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSyncNs))
                 .add("channels", channels.stream().map(ServerChannel::getName).toArray())
                 .add("ignored", ignored)
+                .add("overflows", news.getOverflows())
                 // .add("news", news)
                 .toString();
     }
@@ -0,0 +1,23 @@
+package pl.nn44.rchat.server.page;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import pl.nn44.rchat.server.metrics.Metrics;
+
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    private final Metrics metrics;
+
+    public MetricsController(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Prometheus text format
+    @RequestMapping(produces = {"text/plain; version=0.0.4"})
+    public ResponseEntity<String> scrape() {
+
+        return new ResponseEntity<>(metrics.scrape(), HttpStatus.OK);
+    }
+}
@@ -0,0 +1,27 @@
+package pl.nn44.rchat.server.page;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import pl.nn44.rchat.server.impl.FeedSource;
+
+@RequestMapping("/stats")
+public class StatsController {
+
+    public static final int MAX_TOP = 1000;
+
+    private final FeedSource feedSource;
+
+    public StatsController(FeedSource feedSource) {
+        this.feedSource = feedSource;
+    }
+
+    // news counters, then top lagging sessions (the oldest not yet read news)
+    @RequestMapping(produces = {"text/plain"})
+    public ResponseEntity<String> stats(@RequestParam(value = "top", defaultValue = "20") int top) {
+
+        String report = feedSource.newsStats().report(Math.max(0, Math.min(top, MAX_TOP)));
+        return new ResponseEntity<>(report, HttpStatus.OK);
+    }
+}
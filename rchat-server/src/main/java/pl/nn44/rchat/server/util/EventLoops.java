@@ -0,0 +1,168 @@
+package pl.nn44.rchat.server.util;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Fixed group of single-thread event loops.<br/>
+ * Every key (channel, user) is owned by one loop, so state of the key has single writer.<br/>
+ * Tasks are handed over through lock-free queues, idle loop thread is parked.
+ */
+public class EventLoops implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoops.class);
+
+    private final Loop[] loops;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public EventLoops(String name, int size) {
+        ThreadFactoryBuilder threads = new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true);
+
+        this.loops = new Loop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new Loop(threads);
+        }
+
+        LOG.info("{} instance created: {}.", getClass().getSimpleName(), this);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int size() {
+        return loops.length;
+    }
+
+    // owner of the key, always the same for equal keys
+    public Loop of(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return loops[Math.floorMod(hash, loops.length)];
+    }
+
+    public Loop get(int index) {
+        return loops[index];
+    }
+
+    @Override
+    public void close() {
+        for (Loop loop : loops) {
+            loop.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", loops.length)
+                .add("executed", Arrays.stream(loops).mapToLong(Loop::executed).sum())
+                .add("pending", Arrays.stream(loops).mapToInt(Loop::pending).sum())
+                .toString();
+    }
+
+    // per loop counters
+    public String details() {
+        return Arrays.stream(loops)
+                .map(Loop::toString)
+                .collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static class Loop implements Executor {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicLong executed = new AtomicLong();
+        private volatile int maxPending = 0;
+
+        private final Thread thread;
+        private volatile boolean parked = false;
+        private volatile boolean running = true;
+
+        Loop(ThreadFactoryBuilder threads) {
+            this.thread = threads.build().newThread(this::run);
+            this.thread.start();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+
+            int depth = pending.incrementAndGet();
+            if (depth > maxPending) {
+                maxPending = depth; // approximate, stats only
+            }
+
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        public int pending() {
+            return pending.get();
+        }
+
+        public long executed() {
+            return executed.get();
+        }
+
+        void close() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        private void run() {
+            while (running) {
+                Runnable task = tasks.poll();
+
+                if (task == null) {
+                    parked = true;
+                    // re-check after the flag is set, see execute()
+                    if (tasks.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+
+                pending.decrementAndGet();
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Event loop task failed.", e);
+                }
+
+                executed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper("Loop")
+                    .add("thread", thread.getName())
+                    .add("executed", executed.get())
+                    .add("pending", pending.get())
+                    .add("maxPending", maxPending)
+                    .toString();
+        }
+    }
+}
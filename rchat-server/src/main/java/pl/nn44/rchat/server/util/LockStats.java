@@ -0,0 +1,119 @@
+package pl.nn44.rchat.server.util;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Acquisition and wait time counters of striped locks, per stripe.<br/>
+ * It is to size number of stripes from data.
+ */
+public class LockStats {
+
+    private final AtomicLongArray acquired;
+    private final AtomicLongArray contended;
+    private final AtomicLongArray timeouts;
+    private final AtomicLongArray waitNs;
+    private final AtomicLongArray maxWaitNs;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public LockStats(int stripes) {
+        this.acquired = new AtomicLongArray(stripes);
+        this.contended = new AtomicLongArray(stripes);
+        this.timeouts = new AtomicLongArray(stripes);
+        this.waitNs = new AtomicLongArray(stripes);
+        this.maxWaitNs = new AtomicLongArray(stripes);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void uncontended(int stripe) {
+        acquired.incrementAndGet(stripe);
+    }
+
+    public void contended(int stripe, long waitedNs, boolean acquired) {
+        if (acquired) {
+            this.acquired.incrementAndGet(stripe);
+        } else {
+            this.timeouts.incrementAndGet(stripe);
+        }
+
+        this.contended.incrementAndGet(stripe);
+        this.waitNs.addAndGet(stripe, waitedNs);
+        this.maxWaitNs.accumulateAndGet(stripe, waitedNs, Math::max);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public int stripes() {
+        return acquired.length();
+    }
+
+    public long acquired(int stripe) {
+        return acquired.get(stripe);
+    }
+
+    public long contended(int stripe) {
+        return contended.get(stripe);
+    }
+
+    public long timeouts(int stripe) {
+        return timeouts.get(stripe);
+    }
+
+    public long waitNs(int stripe) {
+        return waitNs.get(stripe);
+    }
+
+    public long maxWaitNs(int stripe) {
+        return maxWaitNs.get(stripe);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    // stripes with the longest total wait time
+    public String top(int n) {
+        return IntStream.range(0, stripes())
+                .boxed()
+                .filter(i -> contended(i) > 0)
+                .sorted(Comparator.comparingLong(this::waitNs).reversed())
+                .limit(n)
+                .map(i -> MoreObjects.toStringHelper("Stripe")
+                        .add("index", i)
+                        .add("acquired", acquired(i))
+                        .add("contended", contended(i))
+                        .add("timeouts", timeouts(i))
+                        .add("waitMs", TimeUnit.NANOSECONDS.toMillis(waitNs(i)))
+                        .add("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNs(i)))
+                        .toString())
+                .collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    @Override
+    public String toString() {
+        long acquiredSum = 0;
+        long contendedSum = 0;
+        long timeoutsSum = 0;
+        long waitNsSum = 0;
+
+        for (int i = 0; i < stripes(); i++) {
+            acquiredSum += acquired(i);
+            contendedSum += contended(i);
+            timeoutsSum += timeouts(i);
+            waitNsSum += waitNs(i);
+        }
+
+        return MoreObjects.toStringHelper(this)
+                .add("stripes", stripes())
+                .add("acquired", acquiredSum)
+                .add("contended", contendedSum)
+                .add("timeouts", timeoutsSum)
+                .add("waitMs", TimeUnit.NANOSECONDS.toMillis(waitNsSum))
+                .toString();
+    }
+}
@@ -0,0 +1,72 @@
+package pl.nn44.rchat.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serial queue of tasks to be executed after unlock.<br/>
+ * Tasks are added in commit order (under lock) and executed in the same order by dispatcher threads,<br/>
+ * one run of the outbox at a time. A run executes at most MAX_RUN tasks, then the outbox is dispatched again<br/>
+ * (behind other outboxes), so no thread is held by a busy outbox and callers do not execute news of others.
+ */
+public class Outbox {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+
+    public static final int MAX_RUN = 64;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public void add(Runnable task) {
+        tasks.add(task);
+    }
+
+    // after unlock: tasks are handed to dispatcher, unless the outbox is already dispatched
+    public void dispatch(Executor dispatcher) {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                dispatcher.execute(() -> run(dispatcher));
+
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                LOG.warn("Outbox tasks rejected ({} left): {}", tasks.size(), e.toString());
+            }
+        }
+    }
+
+    private void run(Executor dispatcher) {
+        try {
+            for (int i = 0; i < MAX_RUN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Outbox task failed.", e);
+                }
+            }
+
+        } finally {
+            scheduled.set(false);
+        }
+
+        // rest of tasks, or task added after the loop, but before scheduled=false
+        dispatch(dispatcher);
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+}
@@ -0,0 +1,167 @@
+package pl.nn44.rchat.server.util;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel.<br/>
+ * Schedule and cancel are O(1), expiration cost depends on expiring timeouts only.<br/>
+ * Tasks are executed by the single wheel thread, so they must be short.
+ */
+public class TimerWheel implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNs;
+    private final Queue<Timeout>[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public TimerWheel(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+        int size = IntMath.pow(2, IntMath.log2(ticksPerWheel, RoundingMode.CEILING));
+
+        @SuppressWarnings("unchecked")
+        Queue<Timeout>[] wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+
+        this.tickNs = unit.toNanos(tick);
+        this.wheel = wheel;
+        this.mask = size - 1;
+
+        this.worker = new ThreadFactoryBuilder()
+                .setNameFormat(name)
+                .setDaemon(true)
+                .build()
+                .newThread(this::run);
+        this.worker.start();
+
+        LOG.info("{} instance created: {}.", getClass().getSimpleName(), this);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void run() {
+        long startNs = System.nanoTime();
+        long tick = 0;
+
+        while (running) {
+            long deadlineNs = startNs + (tick + 1) * tickNs;
+            long sleepNs = deadlineNs - System.nanoTime();
+
+            if (sleepNs > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNs);
+                } catch (InterruptedException e) {
+                    continue; // running flag decides
+                }
+            }
+
+            expire(wheel[(int) (tick & mask)]);
+            transferPending(startNs, tick);
+            tick++;
+        }
+    }
+
+    private void transferPending(long startNs, long currentTick) {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll()) {
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            // timeout is expired at first tick after deadline, never in the current one
+            long ticks = Math.max((timeout.deadlineNs - startNs + tickNs - 1) / tickNs, currentTick + 1);
+            timeout.rounds = (ticks - currentTick - 1) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+
+            if (timeout.cancelled) {
+                it.remove();
+
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+
+            } else {
+                it.remove();
+                timeout.expire();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("worker", worker.getName())
+                .add("tickMs", TimeUnit.NANOSECONDS.toMillis(tickNs))
+                .add("wheel", wheel.length)
+                .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadlineNs;
+        private long rounds; // wheel thread only
+        private volatile boolean cancelled = false;
+
+        Timeout(Runnable task, long deadlineNs) {
+            this.task = task;
+            this.deadlineNs = deadlineNs;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void expire() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Timeout task failed.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package pl.nn44.rchat.server.history;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.nn44.rchat.protocol.model.HistoryPage;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+public class ChannelHistoryTest {
+
+    private static final int SMALL_SEGMENT = 512; // about ten messages
+    private static final int LARGE_SEGMENT = 64 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void pagesAcrossSegments() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ChannelHistory history = open(dir, SMALL_SEGMENT);
+        appendMessages(history, 1, 100);
+
+        assertTrue("segments rolled", count(dir, ChannelHistory.SEGMENT_SUFFIX) > 2);
+        assertPages(history);
+        assertPages(open(dir, SMALL_SEGMENT));
+    }
+
+    @Test
+    public void searchesAcrossSegments() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ChannelHistory history = open(dir, SMALL_SEGMENT);
+        appendMessages(history, 1, 100);
+
+        assertSearch(history);
+        assertSearch(open(dir, SMALL_SEGMENT)); // terms of full segments are mapped
+
+        deleteAll(dir, ChannelHistory.TERMS_SUFFIX);
+        assertSearch(open(dir, SMALL_SEGMENT)); // rebuilt from segments
+    }
+
+    @Test
+    public void recoversLastSegmentAfterTornRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ChannelHistory history = open(dir, LARGE_SEGMENT);
+        appendMessages(history, 1, 3 * ChannelHistory.INDEX_INTERVAL);
+
+        // the last record is torn (id not written), index is lost: both are recovered by scan
+        Path segment = single(dir, ChannelHistory.SEGMENT_SUFFIX);
+        tearRecord(segment, 3 * ChannelHistory.INDEX_INTERVAL);
+        Files.write(single(dir, ChannelHistory.INDEX_SUFFIX), new byte[(int) Files.size(single(dir, ChannelHistory.INDEX_SUFFIX))]);
+
+        ChannelHistory recovered = open(dir, LARGE_SEGMENT);
+        int lastId = 3 * ChannelHistory.INDEX_INTERVAL - 1;
+
+        assertEquals(lastId + 1, recovered.nextId());
+        assertMessages(recovered.page(0, 1000, Collections.emptySet()), 1, lastId);
+        assertMessages(recovered.page(lastId - 5, 10, Collections.emptySet()), lastId - 15, lastId - 6);
+
+        // torn record is overwritten by next message
+        recovered.append("bob", "again", System.currentTimeMillis());
+        HistoryPage last = open(dir, LARGE_SEGMENT).page(0, 1, Collections.emptySet());
+
+        assertEquals(lastId + 1, last.getFirst());
+        assertEquals("again", text(last.getMessages()[0]));
+    }
+
+    @Test
+    public void skipsAuthors() throws IOException {
+        ChannelHistory history = open(folder.newFolder().toPath(), SMALL_SEGMENT);
+        history.append("bob", "hello all", 1000);
+        history.append("carl", "hello bob", 2000);
+
+        HistoryPage page = history.page(0, 10, Collections.singleton("carl"));
+        HistoryPage found = history.search("hello", 10, Collections.singleton("bob"));
+
+        assertEquals(1, page.getMessages().length);
+        assertEquals("hello all", text(page.getMessages()[0]));
+        assertEquals(1, found.getMessages().length);
+        assertEquals("hello bob", text(found.getMessages()[0]));
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static void assertPages(ChannelHistory history) {
+        HistoryPage newest = history.page(0, 30, Collections.emptySet());
+        assertMessages(newest, 71, 100);
+        assertTrue(newest.isMore());
+
+        HistoryPage older = history.page(newest.getFirst(), 30, Collections.emptySet());
+        assertMessages(older, 41, 70);
+        assertTrue(older.isMore());
+
+        HistoryPage oldest = history.page(5, 30, Collections.emptySet());
+        assertMessages(oldest, 1, 4);
+        assertFalse(oldest.isMore());
+    }
+
+    private static void assertSearch(ChannelHistory history) {
+        HistoryPage all = history.search("even", 1000, Collections.emptySet());
+        assertArrayEquals(
+                IntStream.rangeClosed(1, 100).filter(i -> i % 2 == 0).mapToObj(i -> "message " + i + " even").toArray(),
+                Stream.of(all.getMessages()).map(ChannelHistoryTest::text).toArray()
+        );
+        assertFalse(all.isMore());
+
+        HistoryPage newest = history.search("ODD message", 5, Collections.emptySet());
+        assertArrayEquals(
+                IntStream.of(91, 93, 95, 97, 99).mapToObj(i -> "message " + i + " odd").toArray(),
+                Stream.of(newest.getMessages()).map(ChannelHistoryTest::text).toArray()
+        );
+        assertEquals(91, newest.getFirst());
+        assertTrue(newest.isMore());
+
+        assertEquals(0, history.search("even odd", 10, Collections.emptySet()).getMessages().length);
+    }
+
+    private static void assertMessages(HistoryPage page, int fromId, int toId) {
+        assertEquals(fromId, page.getFirst());
+        assertArrayEquals(
+                IntStream.rangeClosed(fromId, toId).mapToObj(ChannelHistoryTest::message).toArray(),
+                Stream.of(page.getMessages()).map(ChannelHistoryTest::text).toArray()
+        );
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static ChannelHistory open(Path dir, int segmentBytes) throws IOException {
+        HistoryStore.Limits limits = new HistoryStore.Limits(segmentBytes, Long.MAX_VALUE, Long.MAX_VALUE);
+        return new ChannelHistory("anybody", dir, limits, Runnable::run);
+    }
+
+    private static void appendMessages(ChannelHistory history, int fromId, int toId) {
+        for (int id = fromId; id <= toId; id++) {
+            history.append("bob", message(id), 1000L * id);
+        }
+    }
+
+    private static String message(int id) {
+        return "message " + id + (id % 2 == 0 ? " even" : " odd");
+    }
+
+    private static String text(WhatsUp message) {
+        return message.getParams()[2];
+    }
+
+    // id of the record is zeroed, as if the record was not written completely
+    private static void tearRecord(Path segment, int id) throws IOException {
+        try (FileChannel file = FileChannel.open(segment, READ, WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            long offset = 0;
+
+            for (int i = 1; i < id; i++) {
+                buffer.clear();
+                file.read(buffer, offset);
+                offset += 4 + buffer.getInt(0);
+            }
+
+            buffer.clear();
+            buffer.putInt(0, 0);
+            file.write(buffer, offset + 4);
+        }
+    }
+
+    private static long count(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private static Path single(Path dir, String suffix) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + suffix)) {
+            return files.iterator().next();
+        }
+    }
+
+    private static void deleteAll(Path dir, String suffix) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + suffix)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package pl.nn44.rchat.server.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.nn44.rchat.server.model.ServerChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void replaysJournalRecords() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        append(dir, record(1, Change.channel("a", null, "t1")), record(2, Change.admin("a", "bob", true)));
+
+        Map<String, ServerChannel> channels = recover(dir);
+
+        assertEquals("t1", channels.get("a").getTopic());
+        assertEquals(Collections.singleton("bob"), channels.get("a").getAdmins());
+    }
+
+    @Test
+    public void truncatesTornTail() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        byte[] first = record(1, Change.channel("a", null, "t1"));
+        byte[] second = record(2, Change.topic("a", "t2"));
+        byte[] torn = Arrays.copyOf(record(3, Change.topic("a", "t3")), 11);
+        append(dir, first, second, torn);
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+
+        assertEquals(first.length + second.length, Files.size(dir.resolve(Journal.JOURNAL_FILE)));
+        assertEquals("t2", recover(journal).get("a").getTopic());
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        byte[] first = record(1, Change.channel("a", null, "t1"));
+        byte[] second = record(2, Change.topic("a", "t2"));
+        byte[] third = record(3, Change.topic("a", "t3"));
+        second[second.length - 2] ^= 0x55; // payload does not match its crc
+        append(dir, first, second, third);
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+
+        assertEquals(first.length, Files.size(dir.resolve(Journal.JOURNAL_FILE)));
+        assertEquals("t1", recover(journal).get("a").getTopic());
+    }
+
+    @Test
+    public void appendsAfterTruncatedTail() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        append(dir, record(1, Change.channel("a", null, "t1")), new byte[]{0, 0, 0});
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+        journal.recover(new HashMap<>(), Collections.emptyList());
+        journal.append(Change.topic("a", "t2"));
+        journal.close();
+
+        assertEquals("t2", recover(dir).get("a").getTopic());
+    }
+
+    // crash between snapshot and journal truncate: records already in snapshot must not be applied again
+    @Test
+    public void skipsJournalRecordsInSnapshot() throws IOException {
+        Path dir = folder.newFolder().toPath();
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+        journal.recover(new HashMap<>(), Collections.singletonList(Change.channel("a", null, "t1")));
+        journal.append(Change.admin("a", "bob", true));
+        journal.append(Change.topic("a", "t3"));
+        journal.close(); // snapshot of seq 3, journal is empty
+
+        assertEquals(0, Files.size(dir.resolve(Journal.JOURNAL_FILE)));
+        append(dir,
+                record(1, Change.channel("a", null, "t1")),
+                record(2, Change.topic("a", "stale")),
+                record(3, Change.admin("a", "bob", true)),
+                record(4, Change.ban("a", "carl", true))
+        );
+
+        Map<String, ServerChannel> channels = recover(dir);
+
+        assertEquals("t3", channels.get("a").getTopic());
+        assertEquals(Collections.singleton("bob"), channels.get("a").getAdmins());
+        assertEquals(Collections.singleton("carl"), channels.get("a").getBanned());
+    }
+
+    // a record too long for journal does not stop its batch, it is kept by a snapshot
+    @Test
+    public void keepsBatchWithTooLongChange() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        String text = tooLongText();
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+        journal.recover(new HashMap<>(), Arrays.asList(
+                Change.channel("a", null, "t1"),
+                Change.topic("a", text),
+                Change.admin("a", "bob", true)
+        ));
+
+        awaitSnapshot(dir);
+        journal.close();
+
+        Map<String, ServerChannel> channels = recover(dir);
+
+        assertEquals(text.length(), channels.get("a").getTopic().length());
+        assertEquals(Collections.singleton("bob"), channels.get("a").getAdmins());
+    }
+
+    // snapshot is taken by the writer, without waiting for next change (or close)
+    @Test
+    public void snapshotsTooLongChangeImmediately() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        String text = tooLongText();
+
+        Journal journal = Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS);
+        journal.recover(new HashMap<>(), Collections.singletonList(Change.channel("a", null, "t1")));
+        journal.append(Change.topic("a", text));
+
+        awaitSnapshot(dir);
+        journal.close();
+
+        assertEquals(text.length(), recover(dir).get("a").getTopic().length());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private static Map<String, ServerChannel> recover(Path dir) throws IOException {
+        return recover(Journal.open(dir, Journal.DEFAULT_SNAPSHOT_RECORDS));
+    }
+
+    private static Map<String, ServerChannel> recover(Journal journal) {
+        Map<String, ServerChannel> channels = new HashMap<>();
+        journal.recover(channels, Collections.emptyList());
+        journal.close();
+        return channels;
+    }
+
+    private static String tooLongText() {
+        char[] text = new char[Journal.MAX_RECORD + 1];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+
+    private static void awaitSnapshot(Path dir) throws InterruptedException {
+        Path snapshot = dir.resolve(Journal.SNAPSHOT_FILE);
+
+        for (int i = 0; i < 100 && !Files.exists(snapshot); i++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue("snapshot not taken", Files.exists(snapshot));
+    }
+
+    // record as written by Journal: length, crc32 of payload, payload (seq, change)
+    private static byte[] record(long seq, Change change) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeLong(seq);
+        change.writeTo(payloadOut);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(payload.size());
+        recordOut.writeInt((int) crc.getValue());
+        payload.writeTo(recordOut);
+
+        return record.toByteArray();
+    }
+
+    private static void append(Path dir, byte[]... records) throws IOException {
+        for (byte[] record : records) {
+            Files.write(dir.resolve(Journal.JOURNAL_FILE), record, CREATE, APPEND);
+        }
+    }
+}
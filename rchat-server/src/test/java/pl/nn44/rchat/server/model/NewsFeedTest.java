@@ -0,0 +1,200 @@
+package pl.nn44.rchat.server.model;
+
+import org.junit.Test;
+import pl.nn44.rchat.protocol.model.WhatsUp;
+import pl.nn44.rchat.protocol.model.WhatsUp.What;
+import pl.nn44.rchat.server.model.NewsLimits.Overflow;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class NewsFeedTest {
+
+    private final NewsStats stats = new NewsStats(Collections::emptyList, Collections::emptyList);
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    @Test
+    public void mergesPrivateQueueAndChannelsBySeq() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        ServerChannel b = new ServerChannel("b", null, "");
+        NewsFeed feed = feed(100, Overflow.DROP_OLDEST);
+        feed.attach(a);
+        feed.attach(b);
+
+        feed.offer(news(What.PRIVY, "p1"));
+        a.getLog().append(news(What.MESSAGE, "a1"));
+        feed.offer(news(What.PRIVY, "p2"));
+        b.getLog().append(news(What.MESSAGE, "b1"));
+        a.getLog().append(news(What.MESSAGE, "a2"));
+
+        assertEquals(Arrays.asList("p1", "a1", "p2", "b1", "a2"), ids(feed.poll(10)));
+        assertFalse(feed.hasNews());
+    }
+
+    @Test
+    public void detachMovesUnreadEntriesToPrivateQueue() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        NewsFeed feed = feed(100, Overflow.DROP_OLDEST);
+        feed.attach(a);
+
+        a.getLog().append(news(What.MESSAGE, "a1"));
+        feed.offer(news(What.PRIVY, "p1"));
+        feed.detach(a);
+        a.getLog().append(news(What.MESSAGE, "a2"));
+
+        assertEquals(2, feed.size());
+        assertEquals(Arrays.asList("a1", "p1"), ids(feed.poll(10)));
+    }
+
+    @Test
+    public void overrunProducesResync() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        NewsFeed feed = feed(Integer.MAX_VALUE, Overflow.DROP_OLDEST);
+        feed.attach(a);
+
+        int capacity = a.getLog().capacity();
+        for (int i = 0; i < capacity + 10; i++) {
+            a.getLog().append(news(What.MESSAGE, "a" + i));
+        }
+
+        List<WhatsUp> news = feed.poll(2);
+
+        assertEquals(What.RESYNC, news.get(0).getWhat());
+        assertArrayEquals(new String[]{"a", "10"}, news.get(0).getParams());
+        assertEquals("a10", news.get(1).getParams()[1]);
+        assertEquals(10, feed.getOverflows());
+        assertEquals(capacity - 1, feed.size());
+    }
+
+    @Test
+    public void dropOldestBoundsSize() {
+        NewsFeed feed = feed(4, Overflow.DROP_OLDEST);
+
+        for (int i = 0; i < 10; i++) {
+            feed.offer(news(What.JOIN, "j" + i));
+        }
+
+        assertEquals(4, feed.size());
+        assertEquals(6, feed.getOverflows());
+        assertEquals(Arrays.asList("j6", "j7", "j8", "j9"), ids(feed.poll(10)));
+    }
+
+    @Test
+    public void dropOldestBoundsChannelEntries() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        NewsFeed feed = feed(3, Overflow.DROP_OLDEST);
+        feed.attach(a);
+
+        for (int i = 0; i < 5; i++) {
+            a.getLog().append(news(What.MESSAGE, "a" + i));
+        }
+        feed.offer(news(What.PRIVY, "p"));
+
+        assertEquals(Arrays.asList("a3", "a4", "p"), ids(feed.poll(10)));
+        assertEquals(3, feed.getOverflows());
+    }
+
+    @Test
+    public void expireDropsOldNewsThenOldest() throws InterruptedException {
+        NewsFeed feed = feed(3, Overflow.EXPIRE, 50);
+
+        feed.offer(news(What.JOIN, "old1"));
+        feed.offer(news(What.JOIN, "old2"));
+        Thread.sleep(100);
+        feed.offer(news(What.JOIN, "new1"));
+
+        assertEquals(1, feed.size());
+
+        for (int i = 2; i <= 5; i++) {
+            feed.offer(news(What.JOIN, "new" + i));
+        }
+
+        assertEquals(3, feed.size());
+        assertEquals(4, feed.getOverflows());
+        assertEquals(Arrays.asList("new3", "new4", "new5"), ids(feed.poll(10)));
+    }
+
+    @Test
+    public void logoutMarksFeedOverflowed() {
+        NewsFeed feed = feed(2, Overflow.LOGOUT);
+
+        feed.offer(news(What.JOIN, "j1"));
+        feed.offer(news(What.JOIN, "j2"));
+        assertFalse(feed.isOverflowed());
+
+        feed.offer(news(What.JOIN, "j3"));
+        assertTrue(feed.isOverflowed());
+    }
+
+    @Test
+    public void logoutMarksFeedOverflowedOnOverrun() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        NewsFeed feed = feed(Integer.MAX_VALUE, Overflow.LOGOUT);
+        feed.attach(a);
+
+        for (int i = 0; i < a.getLog().capacity() + 1; i++) {
+            a.getLog().append(news(What.MESSAGE, "a" + i));
+        }
+        feed.poll(1);
+
+        assertTrue(feed.isOverflowed());
+    }
+
+    @Test
+    public void dropMessagesDropsMessagesFirst() {
+        ServerChannel a = new ServerChannel("a", null, "");
+        NewsFeed feed = feed(3, Overflow.DROP_MESSAGES);
+        feed.attach(a);
+
+        feed.offer(news(What.JOIN, "j1"));
+        a.getLog().append(news(What.MESSAGE, "m1"));
+        feed.offer(news(What.PRIVY, "p1"));
+        a.getLog().append(news(What.PART, "j2"));
+        feed.offer(news(What.JOIN, "j3"));
+
+        assertEquals(Arrays.asList("j1", "j2", "j3"), ids(feed.poll(10)));
+        assertEquals(2, feed.getOverflows());
+    }
+
+    @Test
+    public void dropMessagesBoundsOtherNews() {
+        NewsFeed feed = feed(3, Overflow.DROP_MESSAGES);
+
+        for (int i = 0; i < 5; i++) {
+            feed.offer(news(What.JOIN, "j" + i));
+        }
+        feed.offer(news(What.PRIVY, "p"));
+
+        assertEquals(3, feed.size());
+        assertEquals(3, feed.getOverflows());
+        assertEquals(Arrays.asList("j2", "j3", "j4"), ids(feed.poll(10)));
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private NewsFeed feed(int capacity, Overflow overflow) {
+        return feed(capacity, overflow, Long.MAX_VALUE);
+    }
+
+    private NewsFeed feed(int capacity, Overflow overflow, long ttlMs) {
+        NewsLimits limits = NewsLimits.of(capacity, overflow, ttlMs, TimeUnit.MILLISECONDS);
+        return new NewsFeed(Collections.emptySet(), limits, stats);
+    }
+
+    // id is the second param (after channel)
+    private static WhatsUp news(What what, String id) {
+        return WhatsUp.create(what, "a", id);
+    }
+
+    private static List<String> ids(List<WhatsUp> news) {
+        return news.stream()
+                .map(whatsUp -> whatsUp.getParams()[1])
+                .collect(Collectors.toList());
+    }
+}